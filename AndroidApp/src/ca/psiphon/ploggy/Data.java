@@ -22,36 +22,77 @@ package ca.psiphon.ploggy;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
+import android.util.LruCache;
 
 /**
  * Data persistence for self, friends, and status.
  *
- * On disk, data is represented as JSON stored in individual files. In memory, data is represented
- * as immutable POJOs which are thread-safe and easily serializable. Self and friend metadata, including
- * identity, and recent status data are kept in-memory. Large data such as map tiles will be left on
- * disk with perhaps an in-memory cache.
+ * On disk, all data is kept in a single KeyValueStore file, one key per entity: self, self status,
+ * each friend, each friend's status, each download and each local resource. Values are encoded by a
+ * StorageCodec: self is JSON, the rest use the compact binary encoding. The individual JSON files
+ * written by earlier versions are converted into the store once, on load. The store's commit log
+ * replaces the mutation journal and the binary snapshot files that preceded it, which were never
+ * released, so there's nothing to migrate from them. In memory, data is
+ * represented as immutable POJOs which are thread-safe and easily serializable. Self and friend metadata,
+ * including identity, and recent status data are kept in-memory. Large data such as map tiles will be
+ * left on disk with perhaps an in-memory cache.
  *
- * Simple consistency is provided: data changes are first written to a commit file, then the commit
- * file replaces the data file. In memory structures are replaced only after the file write succeeds.
+ * Consistency: each mutation is one store commit, which is atomic across all the keys it writes (e.g.,
+ * a self status message and its attachments' local resources). In memory structures are replaced only
+ * after the commit succeeds. The store is compacted in the background when most of its file is dead.
+ *
+ * Statuses are versioned with hybrid logical clock timestamps, so a stale status from a push or pull
+ * that raced a newer one is rejected by comparing versions, which are kept in memory for every friend
+ * status read or written. Statuses are exchanged with friends as deltas: getSelfStatusDelta diffs the self
+ * status against one of the recent versions retained in memory, and updateFriendStatus applies a
+ * friend's delta to their stored status when it's the delta's base.
+ *
+ * Friend sync timestamps (last sent/received status) are updated on every push, pull and served
+ * request, so they're group committed: updates are applied in memory immediately and the set of
+ * dirty friends is flushed as a single commit after the sync state flush interval or once
+ * the dirty count threshold is reached (see setSyncStateFlushPolicy). Durability: a crash may lose
+ * up to one flush interval of timestamp updates; these timestamps are informational only. The Engine
+ * forces a flush when it stops.
+ *
+ * Reads don't block. In-memory state is immutable and published through volatile fields, so readers
+ * -- the UI, the web server handling pulls -- are never held up by writers. Writers are serialized
+ * per collection and per friend status rather than globally, so concurrent pushes from many friends
+ * proceed in parallel up to the store commit. The friend list is published pre-sorted, with a
+ * version number, and returned without copying. The all-messages timeline is a MessageTimeline, a merge
+ * of per-author runs that is updated incrementally as messages arrive and friends are removed.
  *
  * If local security is added to the scope of Ploggy, here's where we'd interface with SQLCipher and/or
  * KeyChain, etc.
  *
  * ==== PROTOTYPE NOTE ====
  * This module is performant for the prototype only. Missing are:
- * - incremental synchronization
- * - synchronization based on logical timestamp
  * - efficient data storage and viewing
  * ========================
  *
@@ -79,28 +120,39 @@ public class Data {
         public final String mId;
         public final Identity.PublicIdentity mPublicIdentity;
         public final Date mAddedTimestamp;
+        // As loaded or last added; the current values are returned by getFriendLastSentStatusTimestamp
+        // and getFriendLastReceivedStatusTimestamp
         public final Date mLastSentStatusTimestamp;
         public final Date mLastReceivedStatusTimestamp;
+        // High-water mark of messages displayed to the user; messages after this are new.
+        // Initialized with the friend's first status, see getInitialReadMark; null until then.
+        public final Date mLastReadMessageTimestamp;
 
         public Friend(
                 Identity.PublicIdentity publicIdentity,
                 Date addedTimestamp) throws Utils.ApplicationError {
-            this(publicIdentity, addedTimestamp, null, null);
+            this(publicIdentity, addedTimestamp, null, null, null);
         }
         public Friend(
                 Identity.PublicIdentity publicIdentity,
                 Date addedTimestamp,
                 Date lastSentStatusTimestamp,
-                Date lastReceivedStatusTimestamp) throws Utils.ApplicationError {
+                Date lastReceivedStatusTimestamp,
+                Date lastReadMessageTimestamp) throws Utils.ApplicationError {
             mId = Utils.formatFingerprint(publicIdentity.getFingerprint());
             mPublicIdentity = publicIdentity;
             mAddedTimestamp = addedTimestamp;
             mLastSentStatusTimestamp = lastSentStatusTimestamp;
             mLastReceivedStatusTimestamp = lastReceivedStatusTimestamp;
+            mLastReadMessageTimestamp = lastReadMessageTimestamp;
+        }
+
+        public boolean isNewMessage(Message message) {
+            return mLastReadMessageTimestamp == null || message.mTimestamp.after(mLastReadMessageTimestamp);
         }
     }
 
-    public class FriendComparator implements Comparator<Friend> {
+    public static class FriendComparator implements Comparator<Friend> {
         @Override
         public int compare(Friend a, Friend b) {
             return a.mPublicIdentity.mNickname.compareToIgnoreCase(b.mPublicIdentity.mNickname);
@@ -137,7 +189,7 @@ public class Data {
         }
     }
 
-    public class AnnotatedMessageComparator implements Comparator<AnnotatedMessage> {
+    public static class AnnotatedMessageComparator implements Comparator<AnnotatedMessage> {
         @Override
         public int compare(AnnotatedMessage a, AnnotatedMessage b) {
             // Descending time order
@@ -145,6 +197,15 @@ public class Data {
             if (result == 0) {
                 result = a.mPublicIdentity.mNickname.compareToIgnoreCase(b.mPublicIdentity.mNickname);
             }
+            // Remaining comparisons make this a total order, as required for paging cursors
+            if (result == 0) {
+                String aFriendId = (a.mFriendId != null) ? a.mFriendId : "";
+                String bFriendId = (b.mFriendId != null) ? b.mFriendId : "";
+                result = aFriendId.compareTo(bFriendId);
+            }
+            if (result == 0) {
+                result = a.mMessage.mContent.compareTo(b.mMessage.mContent);
+            }
             return result;
         }
     }
@@ -173,13 +234,48 @@ public class Data {
     public static class Status {
         final List<Message> mMessages;
         public final Location mLocation;
+        // The author's HybridLogicalClock timestamp of the last change; Protocol.NO_STATUS_VERSION when unknown
+        public final long mVersion;
+
+        public Status(
+                List<Message> messages,
+                Location location) {
+            this(messages, location, Protocol.NO_STATUS_VERSION);
+        }
 
         public Status(
+                List<Message> messages,
+                Location location,
+                long version) {
+            mMessages = messages;
+            mLocation = location;
+            mVersion = version;
+        }
+    }
+
+    public static class StatusDelta {
+        // The changes from the status at mBaseVersion to the status at mVersion: the messages added since,
+        // newest first, and the location, when it changed. A delta with base Protocol.NO_STATUS_VERSION
+        // is a full status.
+        public final long mBaseVersion;
+        public final long mVersion;
+        public final List<Message> mMessages;
+        public final Location mLocation;
+
+        public StatusDelta(
+                long baseVersion,
+                long version,
                 List<Message> messages,
                 Location location) {
+            mBaseVersion = baseVersion;
+            mVersion = version;
             mMessages = messages;
             mLocation = location;
         }
+
+        public boolean isFullStatus() {
+            return mBaseVersion == Protocol.NO_STATUS_VERSION;
+        }
     }
 
     public static class Resource {
@@ -241,6 +337,54 @@ public class Data {
         }
     }
 
+    public static class TimelineIndexEntry {
+        // A null friend id is self
+        public final String mFriendId;
+        public final Message mMessage;
+
+        public TimelineIndexEntry(String friendId, Message message) {
+            mFriendId = friendId;
+            mMessage = message;
+        }
+    }
+
+    public static class TimelineIndex {
+        // The newest messages of all authors, newest first. Every message newer than mBoundary
+        // is present; a null boundary means every message is present.
+        public final Date mBoundary;
+        public final List<TimelineIndexEntry> mEntries;
+
+        public TimelineIndex(Date boundary, List<TimelineIndexEntry> entries) {
+            mBoundary = boundary;
+            mEntries = Collections.unmodifiableList(entries);
+        }
+
+        public boolean includes(Message message) {
+            return mBoundary == null || message.mTimestamp.after(mBoundary);
+        }
+    }
+
+    public static class StartupTiming {
+        // Time to open the store and load the friends, local resources and downloads
+        public final long mDataLoadMilliseconds;
+        // Time from the first message access until the timeline was published, and until all
+        // friend statuses were loaded into it
+        public final long mMessagesPublishMilliseconds;
+        public final long mMessagesLoadMilliseconds;
+        public final int mFriendStatusLoadCount;
+
+        public StartupTiming(
+                long dataLoadMilliseconds,
+                long messagesPublishMilliseconds,
+                long messagesLoadMilliseconds,
+                int friendStatusLoadCount) {
+            mDataLoadMilliseconds = dataLoadMilliseconds;
+            mMessagesPublishMilliseconds = messagesPublishMilliseconds;
+            mMessagesLoadMilliseconds = messagesLoadMilliseconds;
+            mFriendStatusLoadCount = friendStatusLoadCount;
+        }
+    }
+
     // TODO: fix -- having these errors as subclasses of Utils.ApplicationError with
     // no log can result in silent failures when functions only handle the base class
 
@@ -253,6 +397,15 @@ public class Data {
         }
     }
 
+    public static class StatusVersionMismatchError extends Utils.ApplicationError {
+        private static final long serialVersionUID = 5312770458421316042L;
+
+        public StatusVersionMismatchError() {
+            // No log for this expected condition
+            super(null, "");
+        }
+    }
+
     public static class DataAlreadyExistsError extends Utils.ApplicationError {
         private static final long serialVersionUID = 6287628326991088141L;
 
@@ -262,11 +415,107 @@ public class Data {
         }
     }
 
+    private static class SyncTimestamps {
+        public final Date mLastSentStatusTimestamp;
+        public final Date mLastReceivedStatusTimestamp;
+
+        public SyncTimestamps(Date lastSentStatusTimestamp, Date lastReceivedStatusTimestamp) {
+            mLastSentStatusTimestamp = lastSentStatusTimestamp;
+            mLastReceivedStatusTimestamp = lastReceivedStatusTimestamp;
+        }
+    }
+
+    private static class FriendIndex {
+        // Friends are indexed by id, nickname, and certificate, and kept in display (nickname)
+        // order. An index is never modified once published in mFriendIndex; writers copy, modify
+        // the copy, and then publish it with a new version.
+        public final long mVersion;
+        public final LinkedHashMap<String, Friend> mById;
+        public final HashMap<String, Friend> mByNickname;
+        public final HashMap<String, Friend> mByCertificate;
+        private final ArrayList<Friend> mSorted;
+        public final List<Friend> mSortedView;
+        private final FriendComparator mComparator = new FriendComparator();
+
+        public FriendIndex(long version) {
+            mVersion = version;
+            mById = new LinkedHashMap<String, Friend>();
+            mByNickname = new HashMap<String, Friend>();
+            mByCertificate = new HashMap<String, Friend>();
+            mSorted = new ArrayList<Friend>();
+            mSortedView = Collections.unmodifiableList(mSorted);
+        }
+
+        public FriendIndex(long version, FriendIndex other) {
+            mVersion = version;
+            mById = new LinkedHashMap<String, Friend>(other.mById);
+            mByNickname = new HashMap<String, Friend>(other.mByNickname);
+            mByCertificate = new HashMap<String, Friend>(other.mByCertificate);
+            mSorted = new ArrayList<Friend>(other.mSorted);
+            mSortedView = Collections.unmodifiableList(mSorted);
+        }
+
+        public void put(Friend friend) {
+            // Replacing an existing friend retains its position in mById
+            Friend previousFriend = mById.put(friend.mId, friend);
+            if (previousFriend != null) {
+                mByNickname.remove(previousFriend.mPublicIdentity.mNickname);
+                mByCertificate.remove(previousFriend.mPublicIdentity.mX509Certificate);
+                int index = indexOfSortedHelper(previousFriend);
+                if (previousFriend.mPublicIdentity.mNickname.equals(friend.mPublicIdentity.mNickname)) {
+                    // Common case, e.g., read mark updates: the sort position is unchanged
+                    mSorted.set(index, friend);
+                } else {
+                    mSorted.remove(index);
+                    insertSortedHelper(friend);
+                }
+            } else {
+                insertSortedHelper(friend);
+            }
+            mByNickname.put(friend.mPublicIdentity.mNickname, friend);
+            mByCertificate.put(friend.mPublicIdentity.mX509Certificate, friend);
+        }
+
+        public void remove(String id) {
+            Friend friend = mById.remove(id);
+            if (friend != null) {
+                mByNickname.remove(friend.mPublicIdentity.mNickname);
+                mByCertificate.remove(friend.mPublicIdentity.mX509Certificate);
+                mSorted.remove(indexOfSortedHelper(friend));
+            }
+        }
+
+        private int indexOfSortedHelper(Friend friend) {
+            // The friend must be in mSorted. Nicknames are unique, but may differ only in case and so
+            // compare equal; the friend is then found among the run of equal friends.
+            int index = Collections.binarySearch(mSorted, friend, mComparator);
+            if (index < 0) {
+                throw new IllegalStateException("friend not in sorted index");
+            }
+            for (int i = index; i >= 0 && mComparator.compare(mSorted.get(i), friend) == 0; i--) {
+                if (mSorted.get(i).mId.equals(friend.mId)) {
+                    return i;
+                }
+            }
+            for (int i = index + 1; i < mSorted.size() && mComparator.compare(mSorted.get(i), friend) == 0; i++) {
+                if (mSorted.get(i).mId.equals(friend.mId)) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("friend not in sorted index");
+        }
+
+        private void insertSortedHelper(Friend friend) {
+            int index = Collections.binarySearch(mSorted, friend, mComparator);
+            mSorted.add(index < 0 ? -(index + 1) : index, friend);
+        }
+    }
+
     // ---- Singleton ----
     private static Data instance = null;
     public static synchronized Data getInstance() {
        if(instance == null) {
-          instance = new Data();
+          instance = new Data(DATA_DIRECTORY);
        }
        return instance;
     }
@@ -276,124 +525,405 @@ public class Data {
     }
     // -------------------
 
+    public static Data newInstanceForTesting(String dataDirectory) {
+        // Tests and benchmarks use a separate data directory and must not touch the singleton's data
+        return new Data(dataDirectory);
+    }
+
+    public void closeForTesting() throws Utils.ApplicationError {
+        // Closes the store, as on exit, so a test can open the data directory in a new instance; only
+        // one instance may have the store open. Afterwards, only reset may be called on this instance.
+        for (String friendId : new ArrayList<String>(mPendingFriendMessages.keySet())) {
+            awaitFriendMessages(friendId);
+        }
+        synchronized (mInitLock) {
+            flushSyncState();
+            KeyValueStore store = mStore;
+            mStore = null;
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
+    private Data(String dataDirectory) {
+        mDataDirectory = dataDirectory;
+        mStatusLocks = new Object[STATUS_LOCK_STRIPE_COUNT];
+        for (int i = 0; i < mStatusLocks.length; i++) {
+            mStatusLocks[i] = new Object();
+        }
+    }
+
     // TODO: SQLCipher/IOCipher storage? key/value store?
     // TODO: use http://nelenkov.blogspot.ca/2011/11/using-ics-keychain-api.html?
     // ...consistency: write file, then update in-memory; 2pc; only for short lists of friends
     // ...eventually use file system for map tiles etc.
 
     private static final String DATA_DIRECTORY = "ploggyData";
-    private static final String SELF_FILENAME = "self.json";
-    private static final String SELF_STATUS_FILENAME = "selfStatus.json";
-    private static final String FRIENDS_FILENAME = "friends.json";
-    private static final String FRIEND_STATUS_FILENAME_FORMAT_STRING = "%s-friendStatus.json";
-    private static final String LOCAL_RESOURCES_FILENAME = "localResources.json";
-    private static final String DOWNLOADS_FILENAME = "downloads.json";
-    private static final String COMMIT_FILENAME_SUFFIX = ".commit";
-
-    Self mSelf;
-    Status mSelfStatus;
-    Location mPrivateSelfLocation;
-    List<Friend> mFriends;
-    HashMap<String, Status> mFriendStatuses;
-    List<AnnotatedMessage> mNewMessages;
-    List<AnnotatedMessage> mAllMessages;
-    List<LocalResource> mLocalResources;
-    List<Download> mDownloads;
-
-    public synchronized void reset() throws Utils.ApplicationError {
-        // Warning: deletes all files in DATA_DIRECTORY (not recursively)
-        File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-        directory.mkdirs();
-        boolean deleteFailed = false;
-        for (String child : directory.list()) {
-            File file = new File(directory, child);
-            if (file.isFile()) {
-                if (!file.delete()) {
-                    deleteFailed = true;
-                    // Keep attempting to delete remaining files...
-                }
-            }
-        }
-        if (deleteFailed) {
-            throw new Utils.ApplicationError(LOG_TAG, "delete data file failed");
-        }
-    }
-
-    public synchronized Self getSelf() throws Utils.ApplicationError, DataNotFoundError {
-        if (mSelf == null) {
-            mSelf = Json.fromJson(readFile(SELF_FILENAME), Self.class);
-        }
-        return mSelf;
-    }
-
-    public synchronized void updateSelf(Self self) throws Utils.ApplicationError {
-        // When creating a new identity, remove status from previous identity
-        deleteFile(String.format(SELF_STATUS_FILENAME));
-        writeFile(SELF_FILENAME, Json.toJson(self));
-        mSelf = self;
+    private static final String STORE_FILENAME = "ploggy.db";
+    private static final String SELF_KEY = "self";
+    private static final String SELF_STATUS_KEY = "selfStatus";
+    private static final String FRIEND_KEY_PREFIX = "friend/";
+    private static final String FRIEND_STATUS_KEY_PREFIX = "friendStatus/";
+    private static final String DOWNLOAD_KEY_PREFIX = "download/";
+    // Finished (complete or cancelled) downloads are moved to this key range, which isn't loaded on startup
+    private static final String ARCHIVED_DOWNLOAD_KEY_PREFIX = "archivedDownload/";
+    private static final String LOCAL_RESOURCE_KEY_PREFIX = "localResource/";
+    private static final String TIMELINE_INDEX_KEY = "timelineIndex";
+    // Friend ids are fingerprints, so can't collide with this history author key
+    private static final String SELF_HISTORY_AUTHOR_KEY = "self";
+    private static final StorageCodec<Self> SELF_CODEC = StorageCodec.json(Self.class);
+
+    // JSON files written by earlier versions, each replaced through a commit file
+    private static final String LEGACY_SELF_FILENAME = "self.json";
+    private static final String LEGACY_SELF_STATUS_FILENAME = "selfStatus.json";
+    private static final String LEGACY_FRIENDS_FILENAME = "friends.json";
+    private static final String LEGACY_FRIEND_STATUS_FILENAME_SUFFIX = "-friendStatus.json";
+    private static final String LEGACY_LOCAL_RESOURCES_FILENAME = "localResources.json";
+    private static final String LEGACY_DOWNLOADS_FILENAME = "downloads.json";
+    private static final String LEGACY_COMMIT_FILENAME_SUFFIX = ".commit";
+    private static final int DEFAULT_SYNC_STATE_FLUSH_INTERVAL_IN_MILLISECONDS = 60*1000;
+    private static final int DEFAULT_SYNC_STATE_FLUSH_THRESHOLD = 100;
+    private static final int STATUS_LOCK_STRIPE_COUNT = 32;
+    private static final int MESSAGES_LOAD_THREAD_COUNT = 4;
+    // The timeline index holds a few screens of messages, and is rebuilt from all statuses when
+    // removals leave it with less than one screen
+    private static final int TIMELINE_INDEX_SIZE = 60;
+    private static final int TIMELINE_INDEX_MINIMUM_SIZE = 20;
+    private static final int FRIEND_STATUS_CACHE_SIZE = 100;
+    // A few screens of message attachments
+    private static final int ARCHIVED_DOWNLOAD_CACHE_SIZE = 100;
+    // Self statuses replaced within this many changes can be the base of a delta
+    private static final int RECENT_SELF_STATUS_COUNT = 16;
+    // Friend ids are fingerprints, so never empty
+    private static final String SELF_MESSAGES_TIMELINE_KEY = "";
+
+    // Concurrency: readers never lock. The in-memory state is held in immutable values published
+    // through volatile fields; a reader gets a consistent (if possibly slightly stale) value with a
+    // single volatile read. Writers are serialized per collection -- friends, downloads, self status
+    // (including local resources), self -- and per friend, for friend statuses, so a push from one
+    // friend doesn't wait on a push from another. When more than one lock is required, locks are
+    // acquired in this order: mSelfLock, mFriendsLock, mFriendLocationIndexLock, status locks,
+    // mDownloadsLock, mSelfStatusLock, mTimelineIndexLock, mMessagesLock. The store serializes commits
+    // internally.
+
+    private final String mDataDirectory;
+    private final Object mInitLock = new Object();
+    private final Object mSelfLock = new Object();
+    private final Object mFriendsLock = new Object();
+    private final Object mFriendLocationIndexLock = new Object();
+    private final Object mDownloadsLock = new Object();
+    private final Object mSelfStatusLock = new Object();
+    private final Object mTimelineIndexLock = new Object();
+    private final Object mMessagesLock = new Object();
+    private final Object[] mStatusLocks;
+    // Source of FriendIndex versions; versions increase across reset
+    private final AtomicLong mVersionCounter = new AtomicLong(0);
+
+    private volatile Self mSelf;
+    private volatile Status mSelfStatus;
+    // The statuses most recently replaced by mSelfStatus, newest first; in memory only
+    private volatile List<Status> mRecentSelfStatuses = Collections.emptyList();
+    // Issues self status versions
+    private final HybridLogicalClock mClock = new HybridLogicalClock();
+    // Versions of the friend statuses read or written so far, so stale updates are rejected without
+    // reading the stored status; modified under the friend's status lock
+    private final ConcurrentHashMap<String, Long> mFriendStatusVersions = new ConcurrentHashMap<String, Long>();
+    private volatile Location mPrivateSelfLocation;
+    private volatile FriendIndex mFriendIndex;
+    // Local resources, by resource id; modified under mSelfStatusLock and read without it
+    private final ConcurrentHashMap<String, LocalResource> mLocalResources = new ConcurrentHashMap<String, LocalResource>();
+    // In progress downloads, by download key, and each friend's in progress downloads, by
+    // resource id, in the order added; modified under mDownloadsLock and read without it
+    private final ConcurrentHashMap<String, Download> mDownloads = new ConcurrentHashMap<String, Download>();
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> mDownloadQueues =
+            new ConcurrentHashMap<String, ConcurrentLinkedQueue<String>>();
+    // Decoded archived downloads, by archived download key, most recently used; written through by
+    // putDownloadHelper. The generation, guarded by the cache, changes with every write so a reader
+    // doesn't cache a download it read before the write.
+    private final LruCache<String, Download> mArchivedDownloadCache = new LruCache<String, Download>(ARCHIVED_DOWNLOAD_CACHE_SIZE);
+    private long mArchivedDownloadCacheGeneration;
+    // mStore is assigned last in initData, so a non-null value implies the rest of the state is loaded
+    private volatile KeyValueStore mStore;
+    private volatile KeyValueStore.Durability mDurability = KeyValueStore.Durability.BATCHED;
+    // Decoded friend statuses, most recently used; written through by updateFriendStatus
+    private final LruCache<String, Status> mFriendStatusCache = new LruCache<String, Status>(FRIEND_STATUS_CACHE_SIZE);
+    // Counted by getFriendStatus, which looks up the cache twice on a miss
+    private final AtomicInteger mFriendStatusCacheHitCount = new AtomicInteger(0);
+    private final AtomicInteger mFriendStatusCacheMissCount = new AtomicInteger(0);
+    private final AtomicBoolean mStoreCompactionInProgress = new AtomicBoolean(false);
+    private ScheduledExecutorService mBackgroundExecutor;
+    // Modified under mMessagesLock and read without it. New message counts are derived from the
+    // friends' read marks, which are persisted, and maintained as messages arrive.
+    private final ConcurrentHashMap<String, Integer> mNewMessageCounts = new ConcurrentHashMap<String, Integer>();
+    private volatile int mNewMessageCount;
+    private final MessageTimeline mAllMessages = new MessageTimeline(new AnnotatedMessageComparator());
+    private volatile boolean mMessagesInitialized;
+    // The timeline is published before friend statuses not yet in the cache are loaded; each such
+    // friend has a latch, released once its messages are in the timeline. mMessagesGeneration,
+    // guarded by mMessagesLock, is advanced by reset so a load in progress is discarded.
+    private final ConcurrentHashMap<String, CountDownLatch> mPendingFriendMessages = new ConcurrentHashMap<String, CountDownLatch>();
+    private long mMessagesGeneration;
+    private volatile long mDataLoadMilliseconds;
+    // Materialized head of the timeline, persisted and updated in the same commits as the statuses,
+    // so the first screens of messages are available without reading every friend status
+    private volatile TimelineIndex mTimelineIndex;
+    // Complete message history; statuses only carry the most recent messages
+    private volatile MessageHistory mMessageHistory;
+    // Written under mTimelineIndexLock, which serializes all commits that add messages
+    private volatile MessageSearchIndex mMessageSearchIndex;
+    // Location time series; a status only carries the latest location
+    private volatile LocationHistory mLocationHistory;
+    // Friends' latest locations, seeded from every friend status on first use, under
+    // mFriendLocationIndexLock, then maintained, under status locks, as statuses change
+    private final FriendLocationIndex mFriendLocationIndex = new FriendLocationIndex();
+    private volatile boolean mFriendLocationIndexInitialized;
+    private volatile StartupTiming mStartupTiming;
+    // Friends' sync timestamps, by friend id, once updated after load. They change with every push and
+    // pull, so they're kept here rather than in mFriendIndex, which would be copied for each change.
+    // Modified under mFriendsLock and read without it.
+    private final ConcurrentHashMap<String, SyncTimestamps> mFriendSyncTimestamps = new ConcurrentHashMap<String, SyncTimestamps>();
+    // Guarded by mFriendsLock
+    private Set<String> mDirtySyncStateFriendIds = new HashSet<String>();
+    private ScheduledFuture<?> mSyncStateFlushFuture;
+    private int mSyncStateFlushIntervalInMilliseconds = DEFAULT_SYNC_STATE_FLUSH_INTERVAL_IN_MILLISECONDS;
+    private int mSyncStateFlushThreshold = DEFAULT_SYNC_STATE_FLUSH_THRESHOLD;
+
+    public void reset() throws Utils.ApplicationError {
+        // Warning: deletes all files in the data directory (not recursively)
+        // Not safe to call concurrently with other Data operations
+        synchronized (mInitLock) {
+            flushSyncState();
+            KeyValueStore store = mStore;
+            mStore = null;
+            if (store != null) {
+                store.close();
+            }
+            File directory = getDataDirectory();
+            directory.mkdirs();
+            boolean deleteFailed = false;
+            for (String child : directory.list()) {
+                File file = new File(directory, child);
+                if (file.isFile()) {
+                    if (!file.delete()) {
+                        deleteFailed = true;
+                        // Keep attempting to delete remaining files...
+                    }
+                }
+            }
+            // In-memory state is reloaded, from the now empty directory, on next access
+            mFriendStatusCache.evictAll();
+            synchronized (mArchivedDownloadCache) {
+                mArchivedDownloadCache.evictAll();
+                mArchivedDownloadCacheGeneration++;
+            }
+            mFriendStatusVersions.clear();
+            mFriendSyncTimestamps.clear();
+            synchronized (mFriendLocationIndexLock) {
+                mFriendLocationIndex.clear();
+                mFriendLocationIndexInitialized = false;
+            }
+            mSelf = null;
+            mPrivateSelfLocation = null;
+            mRecentSelfStatuses = Collections.emptyList();
+            mTimelineIndex = null;
+            synchronized (mMessagesLock) {
+                mMessagesGeneration++;
+                mMessagesInitialized = false;
+                mNewMessageCounts.clear();
+                mNewMessageCount = 0;
+                mAllMessages.clear();
+            }
+            if (deleteFailed) {
+                throw new Utils.ApplicationError(LOG_TAG, "delete data file failed");
+            }
+        }
+    }
+
+    public Self getSelf() throws Utils.ApplicationError, DataNotFoundError {
+        Self self = mSelf;
+        if (self == null) {
+            initData();
+            synchronized (mSelfLock) {
+                if (mSelf == null) {
+                    mSelf = getStoreValue(mStore, SELF_KEY, SELF_CODEC);
+                }
+                self = mSelf;
+            }
+        }
+        return self;
+    }
+
+    public void updateSelf(Self self) throws Utils.ApplicationError {
+        initData();
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mSelfLock) {
+            // When creating a new identity, remove status from previous identity
+            synchronized (mSelfStatusLock) {
+                synchronized (mTimelineIndexLock) {
+                    // The previous identity's messages are deleted, and so no local resource is referenced
+                    List<LocalResource> unreferencedLocalResources = getUnreferencedLocalResourcesHelper(null);
+                    KeyValueStore.Batch batch = new KeyValueStore.Batch()
+                            .put(SELF_KEY, StorageCodec.encode(SELF_CODEC, self))
+                            .delete(SELF_STATUS_KEY);
+                    for (LocalResource localResource : unreferencedLocalResources) {
+                        batch.delete(LOCAL_RESOURCE_KEY_PREFIX + localResource.mResourceId);
+                    }
+                    MessageHistory.Update historyUpdate = mMessageHistory.newUpdate();
+                    mMessageHistory.delete(batch, historyUpdate, SELF_HISTORY_AUTHOR_KEY);
+                    mLocationHistory.delete(batch, SELF_HISTORY_AUTHOR_KEY);
+                    TimelineIndex timelineIndex = updateTimelineIndexHelper(batch, SELF_STATUS_KEY, null);
+                    commitFuture = commit(batch);
+                    mTimelineIndex = timelineIndex;
+                    mMessageHistory.apply(historyUpdate);
+                    removeLocalResourcesHelper(unreferencedLocalResources);
+                }
+                mSelfStatus = null;
+                mRecentSelfStatuses = Collections.emptyList();
+            }
+            mSelf = self;
+        }
+        awaitCommit(commitFuture);
         Log.addEntry(LOG_TAG, "updated your identity");
         Events.post(new Events.UpdatedSelf());
     }
 
-    public synchronized Status getSelfStatus() throws Utils.ApplicationError {
-        if (mSelfStatus == null) {
-            try {
-                mSelfStatus = Json.fromJson(readFile(SELF_STATUS_FILENAME), Status.class);
-            } catch (DataNotFoundError e) {
-                // If there's no previous status, return a blank one
-                return new Status(new ArrayList<Message>(), new Location(null, 0, 0, 0, null));
+    public Status getSelfStatus() throws Utils.ApplicationError {
+        initData();
+        Status selfStatus = mSelfStatus;
+        if (selfStatus == null) {
+            // If there's no previous status, return a blank one
+            return makeBlankStatus();
+        }
+        return selfStatus;
+    }
+
+    private static Status makeBlankStatus() {
+        return new Status(new ArrayList<Message>(), new Location(null, 0, 0, 0, null), 0);
+    }
+
+    public StatusDelta getSelfStatusDelta(long baseVersion) throws Utils.ApplicationError {
+        // Returns the changes since baseVersion, or the full status when baseVersion isn't a recent
+        // version (e.g., on first contact with a friend, or after a restart). The recent statuses are
+        // read first: a concurrent change may then only cause a full status to be returned.
+        List<Status> recentSelfStatuses = mRecentSelfStatuses;
+        Status selfStatus = getSelfStatus();
+        if (baseVersion != Protocol.NO_STATUS_VERSION) {
+            if (baseVersion == selfStatus.mVersion) {
+                return makeStatusDeltaHelper(selfStatus, selfStatus);
+            }
+            for (Status recentSelfStatus : recentSelfStatuses) {
+                if (recentSelfStatus.mVersion == baseVersion) {
+                    return makeStatusDeltaHelper(recentSelfStatus, selfStatus);
+                }
+            }
+        }
+        return new StatusDelta(Protocol.NO_STATUS_VERSION, selfStatus.mVersion, selfStatus.mMessages, selfStatus.mLocation);
+    }
+
+    private static StatusDelta makeStatusDeltaHelper(Status baseStatus, Status status) {
+        // The base is an earlier self status; unchanged messages and locations are the same instances,
+        // and new messages are at the head of the list
+        int newMessageCount = status.mMessages.size();
+        if (baseStatus.mMessages.size() > 0) {
+            int index = status.mMessages.indexOf(baseStatus.mMessages.get(0));
+            if (index != -1) {
+                newMessageCount = index;
+            }
+        }
+        return new StatusDelta(
+                baseStatus.mVersion,
+                status.mVersion,
+                new ArrayList<Message>(status.mMessages.subList(0, newMessageCount)),
+                (status.mLocation != baseStatus.mLocation) ? status.mLocation : null);
+    }
+
+    private void publishSelfStatusHelper(Status selfStatus) {
+        // Caller must hold mSelfStatusLock
+        Status previousSelfStatus = mSelfStatus;
+        if (previousSelfStatus != null) {
+            List<Status> recentSelfStatuses = new ArrayList<Status>(RECENT_SELF_STATUS_COUNT);
+            recentSelfStatuses.add(previousSelfStatus);
+            for (Status recentSelfStatus : mRecentSelfStatuses) {
+                if (recentSelfStatuses.size() >= RECENT_SELF_STATUS_COUNT) {
+                    break;
+                }
+                recentSelfStatuses.add(recentSelfStatus);
             }
+            mRecentSelfStatuses = recentSelfStatuses;
         }
-        return mSelfStatus;
+        mSelfStatus = selfStatus;
     }
 
-    public synchronized Location getCurrentSelfLocation() throws Utils.ApplicationError {
+    public Location getCurrentSelfLocation() throws Utils.ApplicationError {
         // If location sharing was off when updateSelfStatusLocation was last called, then
         // mPrivateSelfLocation is the more up-to-date than mSelfStatus.
-        if (mPrivateSelfLocation == null) {
+        Location privateSelfLocation = mPrivateSelfLocation;
+        if (privateSelfLocation == null) {
             return getSelfStatus().mLocation;
         }
-        return mPrivateSelfLocation;
+        return privateSelfLocation;
     }
 
-    public synchronized void addSelfStatusMessage(Message message, List<LocalResource> attachmentLocalResources) throws Utils.ApplicationError, DataNotFoundError {
+    public void addSelfStatusMessage(Message message, List<LocalResource> attachmentLocalResources) throws Utils.ApplicationError, DataNotFoundError {
+        Self self = getSelf();
         // Hack: initMessages before committing new message to avoid duplicate adds in addSelfMessageHelper
         initMessages();
-        initLocalResources();
-        List<LocalResource> newLocalResources = null;
-        if (attachmentLocalResources != null) {
-            newLocalResources = new ArrayList<LocalResource>(mLocalResources);
-            newLocalResources.addAll(attachmentLocalResources);
-        }
-
-        Status currentStatus = getSelfStatus();
-        List<Message> messages = new ArrayList<Message>(currentStatus.mMessages);
-        messages.add(0, message);
-        while (messages.size() > Protocol.MAX_MESSAGE_COUNT) {
-            messages.remove(messages.size() - 1);
-        }
-        Status newStatus = new Status(messages, currentStatus.mLocation);
-
-        if (newLocalResources != null) {
-            writeFile(LOCAL_RESOURCES_FILENAME, Json.toJson(newLocalResources));
-        }
-        writeFile(SELF_STATUS_FILENAME, Json.toJson(newStatus));
-        if (newLocalResources != null) {
-            mLocalResources.addAll(attachmentLocalResources);
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mSelfStatusLock) {
+            // The message and its attachments' local resources are committed together. The local
+            // resources of messages which no longer fit in the status are kept, as the self message
+            // history still references them; they're collected when the history is deleted, in updateSelf.
+            Status selfStatus = addSelfStatusMessageHelper(getSelfStatus(), message, mClock.now());
+            KeyValueStore.Batch batch = new KeyValueStore.Batch();
+            batch.put(SELF_STATUS_KEY, StorageCodec.encode(StorageCodec.BINARY_STATUS, selfStatus));
+            MessageHistory.Update historyUpdate = mMessageHistory.newUpdate();
+            mMessageHistory.append(batch, historyUpdate, SELF_HISTORY_AUTHOR_KEY, Collections.singletonList(message));
+            if (attachmentLocalResources != null) {
+                for (LocalResource localResource : attachmentLocalResources) {
+                    batch.put(
+                        LOCAL_RESOURCE_KEY_PREFIX + localResource.mResourceId,
+                        StorageCodec.encode(StorageCodec.BINARY_LOCAL_RESOURCE, localResource));
+                }
+            }
+            synchronized (mTimelineIndexLock) {
+                MessageSearchIndex.Update searchUpdate = mMessageSearchIndex.newUpdate();
+                mMessageSearchIndex.add(batch, searchUpdate, SELF_HISTORY_AUTHOR_KEY, Collections.singletonList(message));
+                TimelineIndex timelineIndex = updateTimelineIndexHelper(batch, SELF_STATUS_KEY, selfStatus);
+                commitFuture = commit(batch);
+                mTimelineIndex = timelineIndex;
+                mMessageSearchIndex.apply(searchUpdate);
+            }
+            mMessageHistory.apply(historyUpdate);
+            if (attachmentLocalResources != null) {
+                for (LocalResource localResource : attachmentLocalResources) {
+                    putLocalResourceHelper(localResource);
+                }
+            }
+            publishSelfStatusHelper(selfStatus);
+            // The timeline is updated while holding mSelfStatusLock so self messages are added in status order
+            addSelfMessageHelper(self, message);
         }
-        mSelfStatus = newStatus;
+        awaitCommit(commitFuture);
         Log.addEntry(LOG_TAG, "added your message");
         Events.post(new Events.UpdatedSelfStatus());
-        addSelfMessageHelper(getSelf(), message);
     }
 
-    public synchronized void updateSelfStatusLocation(Location location, boolean shared) throws Utils.ApplicationError {
+    public void updateSelfStatusLocation(Location location, boolean shared) throws Utils.ApplicationError {
         if (shared) {
-            Status currentStatus = getSelfStatus();
-            Status newStatus = new Status(currentStatus.mMessages, location);
-            writeFile(SELF_STATUS_FILENAME, Json.toJson(newStatus));
-            mSelfStatus = newStatus;
-            mPrivateSelfLocation = location;
+            KeyValueStore.CommitFuture commitFuture;
+            synchronized (mSelfStatusLock) {
+                Status currentSelfStatus = getSelfStatus();
+                Status selfStatus = new Status(currentSelfStatus.mMessages, location, mClock.now());
+                KeyValueStore.Batch batch = new KeyValueStore.Batch()
+                        .put(SELF_STATUS_KEY, StorageCodec.encode(StorageCodec.BINARY_STATUS, selfStatus));
+                // Only shared locations are kept in the history
+                mLocationHistory.append(batch, SELF_HISTORY_AUTHOR_KEY, location);
+                commitFuture = commit(batch);
+                publishSelfStatusHelper(selfStatus);
+                mPrivateSelfLocation = location;
+            }
+            awaitCommit(commitFuture);
         } else {
             mPrivateSelfLocation = location;
         }
@@ -401,392 +931,1094 @@ public class Data {
         Events.post(new Events.UpdatedSelfStatus());
     }
 
-    private void initFriends() throws Utils.ApplicationError {
-        if (mFriends == null) {
-            try {
-                mFriends = new ArrayList<Friend>(Arrays.asList(Json.fromJson(readFile(FRIENDS_FILENAME), Friend[].class)));
-            } catch (DataNotFoundError e) {
-                mFriends = new ArrayList<Friend>();
-            }
-        }
+    public List<Friend> getFriends() throws Utils.ApplicationError {
+        // Returns the published, pre-sorted list; it's unmodifiable and isn't copied
+        initData();
+        return mFriendIndex.mSortedView;
     }
 
-    public synchronized List<Friend> getFriends() throws Utils.ApplicationError {
-        initFriends();
-        List<Friend> friends = new ArrayList<Friend>(mFriends);
-        Collections.sort(friends, new FriendComparator());
-        return friends;
+    public long getFriendsVersion() throws Utils.ApplicationError {
+        // Changes whenever the list returned by getFriends changes
+        initData();
+        return mFriendIndex.mVersion;
     }
 
-    public synchronized Friend getFriendById(String id) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        for (Friend friend : mFriends) {
-            if (friend.mId.equals(id)) {
-                return friend;
-            }
-        }
-        throw new DataNotFoundError();
+    public Friend getFriendById(String id) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        return getIndexedFriendHelper(mFriendIndex.mById, id);
     }
 
-    public synchronized Friend getFriendByNickname(String nickname) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        for (Friend friend : mFriends) {
-            if (friend.mPublicIdentity.mNickname.equals(nickname)) {
-                return friend;
-            }
-        }
-        throw new DataNotFoundError();
+    public Friend getFriendByNickname(String nickname) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        return getIndexedFriendHelper(mFriendIndex.mByNickname, nickname);
     }
 
-    public synchronized Friend getFriendByCertificate(String certificate) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        for (Friend friend : mFriends) {
-            if (friend.mPublicIdentity.mX509Certificate.equals(certificate)) {
-                return friend;
-            }
-        }
-        throw new DataNotFoundError();
+    public Friend getFriendByCertificate(String certificate) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        return getIndexedFriendHelper(mFriendIndex.mByCertificate, certificate);
     }
 
-    public synchronized void addFriend(Friend friend) throws Utils.ApplicationError {
-        initFriends();
-        boolean friendWithIdExists = true;
-        boolean friendWithNicknameExists = true;
-        try {
-            getFriendById(friend.mId);
-        } catch (DataNotFoundError e) {
-            friendWithIdExists = false;
-        }
-        try {
-            getFriendByNickname(friend.mPublicIdentity.mNickname);
-        } catch (DataNotFoundError e) {
-            friendWithNicknameExists = false;
+    private static Friend getIndexedFriendHelper(HashMap<String, Friend> index, String key) throws DataNotFoundError {
+        Friend friend = index.get(key);
+        if (friend == null) {
+            throw new DataNotFoundError();
         }
-        // TODO: report which conflict occurred
-        if (friendWithIdExists || friendWithNicknameExists) {
-            throw new DataAlreadyExistsError();
+        return friend;
+    }
+
+    public void addFriend(Friend friend) throws Utils.ApplicationError {
+        initData();
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mFriendsLock) {
+            FriendIndex friendIndex = mFriendIndex;
+            boolean friendWithIdExists = friendIndex.mById.containsKey(friend.mId);
+            boolean friendWithNicknameExists = friendIndex.mByNickname.containsKey(friend.mPublicIdentity.mNickname);
+            // TODO: report which conflict occurred
+            if (friendWithIdExists || friendWithNicknameExists) {
+                throw new DataAlreadyExistsError();
+            }
+            commitFuture = commit(new KeyValueStore.Batch().put(FRIEND_KEY_PREFIX + friend.mId, StorageCodec.encode(StorageCodec.BINARY_FRIEND, friend)));
+            mFriendSyncTimestamps.remove(friend.mId);
+            putFriendHelper(friend);
         }
-        List<Friend> newFriends = new ArrayList<Friend>(mFriends);
-        newFriends.add(friend);
-        writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
-        mFriends.add(friend);
+        awaitCommit(commitFuture);
         Log.addEntry(LOG_TAG, "added friend: " + friend.mPublicIdentity.mNickname);
         Events.post(new Events.AddedFriend(friend.mId));
     }
 
-    private void updateFriendHelper(List<Friend> list, Friend friend) throws DataNotFoundError {
-        boolean found = false;
-        for (int i = 0; i < list.size(); i++) {
-            if (list.get(i).mId.equals(friend.mId)) {
-                list.set(i, friend);
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            throw new DataNotFoundError();
-        }
+    private void putFriendHelper(Friend friend) {
+        FriendIndex friendIndex = new FriendIndex(mVersionCounter.incrementAndGet(), mFriendIndex);
+        friendIndex.put(friend);
+        mFriendIndex = friendIndex;
     }
 
-    public synchronized void updateFriend(Friend friend) throws Utils.ApplicationError {
-        initFriends();
-        List<Friend> newFriends = new ArrayList<Friend>(mFriends);
-        updateFriendHelper(newFriends, friend);
-        writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
-        updateFriendHelper(mFriends, friend);
+    public void updateFriend(Friend friend) throws Utils.ApplicationError {
+        initData();
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mFriendsLock) {
+            // Throws DataNotFoundError when the friend doesn't exist
+            getFriendById(friend.mId);
+            commitFuture = commit(new KeyValueStore.Batch().put(
+                    FRIEND_KEY_PREFIX + friend.mId, StorageCodec.encode(StorageCodec.BINARY_FRIEND, withSyncTimestampsHelper(friend))));
+            putFriendHelper(friend);
+        }
+        awaitCommit(commitFuture);
         Log.addEntry(LOG_TAG, "updated friend: " + friend.mPublicIdentity.mNickname);
         Events.post(new Events.UpdatedFriend(friend.mId));
     }
 
-    public synchronized Date getFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
+    public Date getFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
         Friend friend = getFriendById(friendId);
-        return friend.mLastSentStatusTimestamp;
+        SyncTimestamps syncTimestamps = mFriendSyncTimestamps.get(friendId);
+        return (syncTimestamps != null) ? syncTimestamps.mLastSentStatusTimestamp : friend.mLastSentStatusTimestamp;
     }
 
-    public synchronized void updateFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
-        // TODO: don't write an entire file for each timestamp update!
-        Friend friend = getFriendById(friendId);
-        updateFriend(
-            new Friend(
-                friend.mPublicIdentity,
-                friend.mAddedTimestamp,
-                new Date(),
-                friend.mLastReceivedStatusTimestamp));
+    public void updateFriendLastSentStatusTimestamp(String friendId) throws Utils.ApplicationError {
+        initData();
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mFriendsLock) {
+            Friend friend = getFriendById(friendId);
+            SyncTimestamps syncTimestamps = getSyncTimestampsHelper(friend);
+            mFriendSyncTimestamps.put(friendId, new SyncTimestamps(new Date(), syncTimestamps.mLastReceivedStatusTimestamp));
+            commitFuture = updateFriendSyncStateHelper(friendId);
+        }
+        awaitCommit(commitFuture);
+        Events.post(new Events.UpdatedFriend(friendId));
     }
 
-    public synchronized Date getFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
+    public Date getFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
         Friend friend = getFriendById(friendId);
-        return friend.mLastReceivedStatusTimestamp;
+        SyncTimestamps syncTimestamps = mFriendSyncTimestamps.get(friendId);
+        return (syncTimestamps != null) ? syncTimestamps.mLastReceivedStatusTimestamp : friend.mLastReceivedStatusTimestamp;
     }
 
-    public synchronized void updateFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
-        // TODO: don't write an entire file for each timestamp update!
-        Friend friend = getFriendById(friendId);
-        updateFriend(
-            new Friend(
+    public void updateFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
+        initData();
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mFriendsLock) {
+            Friend friend = getFriendById(friendId);
+            SyncTimestamps syncTimestamps = getSyncTimestampsHelper(friend);
+            mFriendSyncTimestamps.put(friendId, new SyncTimestamps(syncTimestamps.mLastSentStatusTimestamp, new Date()));
+            commitFuture = updateFriendSyncStateHelper(friendId);
+        }
+        awaitCommit(commitFuture);
+        Events.post(new Events.UpdatedFriend(friendId));
+    }
+
+    private SyncTimestamps getSyncTimestampsHelper(Friend friend) {
+        SyncTimestamps syncTimestamps = mFriendSyncTimestamps.get(friend.mId);
+        if (syncTimestamps == null) {
+            syncTimestamps = new SyncTimestamps(friend.mLastSentStatusTimestamp, friend.mLastReceivedStatusTimestamp);
+        }
+        return syncTimestamps;
+    }
+
+    private Friend withSyncTimestampsHelper(Friend friend) throws Utils.ApplicationError {
+        // Returns the friend as it's stored: with its current sync timestamps
+        SyncTimestamps syncTimestamps = mFriendSyncTimestamps.get(friend.mId);
+        if (syncTimestamps == null) {
+            return friend;
+        }
+        return new Friend(
                 friend.mPublicIdentity,
                 friend.mAddedTimestamp,
-                friend.mLastSentStatusTimestamp,
-                new Date()));
+                syncTimestamps.mLastSentStatusTimestamp,
+                syncTimestamps.mLastReceivedStatusTimestamp,
+                friend.mLastReadMessageTimestamp);
     }
 
-    private void removeFriendHelper(String id, List<Friend> list) throws DataNotFoundError {
-        boolean found = false;
-        for (int i = 0; i < list.size(); i++) {
-            if (list.get(i).mId.equals(id)) {
-                list.remove(i);
-                found = true;
-                break;
-            }
+    private KeyValueStore.CommitFuture updateFriendSyncStateHelper(String friendId) throws Utils.ApplicationError {
+        // Caller must hold mFriendsLock, and have updated the friend's sync state in memory
+        // Not committed immediately; see flushSyncState. Returns the commit of the pending updates, when
+        // this one reaches the threshold, and otherwise null.
+        mDirtySyncStateFriendIds.add(friendId);
+        if (mDirtySyncStateFriendIds.size() >= mSyncStateFlushThreshold) {
+            return flushSyncStateHelper();
+        } else if (mSyncStateFlushFuture == null) {
+            mSyncStateFlushFuture = getBackgroundExecutor().schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flushSyncState();
+                        } catch (Utils.ApplicationError e) {
+                            Log.addEntry(LOG_TAG, "failed to flush friend sync state");
+                        }
+                    }
+                },
+                mSyncStateFlushIntervalInMilliseconds,
+                TimeUnit.MILLISECONDS);
         }
-        if (!found) {
-            throw new DataNotFoundError();
+        return null;
+    }
+
+    public void setSyncStateFlushPolicy(int flushIntervalInMilliseconds, int flushThreshold) {
+        synchronized (mFriendsLock) {
+            mSyncStateFlushIntervalInMilliseconds = flushIntervalInMilliseconds;
+            mSyncStateFlushThreshold = flushThreshold;
         }
     }
 
-    public synchronized void removeFriend(String id) throws Utils.ApplicationError, DataNotFoundError {
-        initFriends();
-        Friend friend = getFriendById(id);
-        deleteFile(String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, id));
-        List<Friend> newFriends = new ArrayList<Friend>(mFriends);
-        removeFriendHelper(id, newFriends);
-        writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
-        removeFriendHelper(id, mFriends);
-        Log.addEntry(LOG_TAG, "removed friend: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.RemovedFriend(id));
-        // Reset all-messages to remove messages from deleted friend
-        // TODO: reset new-messages
-        mAllMessages = null;
-        initMessages();
+    public void setDurability(KeyValueStore.Durability durability) {
+        // With SYNC, mutators return once their changes are durable; with BATCHED, changes are durable
+        // shortly after, and a caller that needs to know when may wait on sync()
+        mDurability = durability;
+        KeyValueStore store = mStore;
+        if (store != null) {
+            store.setDurability(durability);
+        }
     }
 
-    public synchronized Status getFriendStatus(String id) throws Utils.ApplicationError, DataNotFoundError {
-        String filename = String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, id);
-        return Json.fromJson(readFile(filename), Status.class);
+    public Future<Void> sync() throws Utils.ApplicationError {
+        // Returns a future which completes when all changes made so far are durable
+        initData();
+        return mStore.sync();
     }
 
-    public synchronized void updateFriendStatus(String id, Status status) throws Utils.ApplicationError {
-        // Hack: initMessages before committing new status to avoid duplicate adds in addFriendMessagesHelper
-        initMessages();
-        Friend friend = getFriendById(id);
-        Status previousStatus = null;
-        try {
-            previousStatus = getFriendStatus(id);
+    public int getSyncCount() throws Utils.ApplicationError {
+        // Number of store syncs so far; concurrent SYNC commits share syncs
+        initData();
+        return mStore.getSyncCount();
+    }
 
-            // Mitigate push/pull race condition where older status overwrites newer status
-            // Only checks messages, not location
-            // TODO: more robust protocol... don't rely on clocks
-            if (previousStatus.mMessages.size() > status.mMessages.size()) {
-                Log.addEntry(LOG_TAG, "discarded friend status (fewer messages): " + friend.mPublicIdentity.mNickname);
-                return;
-            } else if (previousStatus.mMessages.size() == status.mMessages.size() && previousStatus.mMessages.size() > 0) {
-                if (previousStatus.mMessages.get(0).mTimestamp == null || status.mMessages.get(0).mTimestamp == null) {
-                    Log.addEntry(LOG_TAG, "discarded friend status (timestamp unexpectedly null): " + friend.mPublicIdentity.mNickname);
-                    return;
-                } else if (previousStatus.mMessages.get(0).mTimestamp.after(status.mMessages.get(0).mTimestamp)) {
-                    Log.addEntry(LOG_TAG, "discarded friend status (older timestamp): " + friend.mPublicIdentity.mNickname);
-                    return;
-                }
+    public void flushSyncState() throws Utils.ApplicationError {
+        // Writes all pending friend sync timestamp updates in one commit
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mFriendsLock) {
+            commitFuture = flushSyncStateHelper();
+        }
+        awaitCommit(commitFuture);
+    }
+
+    private KeyValueStore.CommitFuture flushSyncStateHelper() throws Utils.ApplicationError {
+        // Caller must hold mFriendsLock. Returns null when there's nothing to write.
+        if (mSyncStateFlushFuture != null) {
+            mSyncStateFlushFuture.cancel(false);
+            mSyncStateFlushFuture = null;
+        }
+        if (mDirtySyncStateFriendIds.isEmpty()) {
+            return null;
+        }
+        KeyValueStore.Batch batch = new KeyValueStore.Batch();
+        for (String friendId : mDirtySyncStateFriendIds) {
+            Friend friend = mFriendIndex.mById.get(friendId);
+            // Skip friends that were removed
+            if (friend != null) {
+                batch.put(FRIEND_KEY_PREFIX + friend.mId, StorageCodec.encode(StorageCodec.BINARY_FRIEND, withSyncTimestampsHelper(friend)));
             }
-        } catch (DataNotFoundError e) {
         }
-        String filename = String.format(FRIEND_STATUS_FILENAME_FORMAT_STRING, id);
-        writeFile(filename, Json.toJson(status));
-        Log.addEntry(LOG_TAG, "updated friend status: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.UpdatedFriendStatus(friend.mId));
-        addFriendMessagesHelper(friend, status, previousStatus);
+        KeyValueStore.CommitFuture commitFuture = commit(batch);
+        mDirtySyncStateFriendIds.clear();
+        return commitFuture;
     }
 
-    private void initMessages() throws Utils.ApplicationError {
-        // TODO: this implementation is only intended for the prototype, which isn't sending incremental updates
-        // TODO: persistent (on disk) new-message state?
-        // Note: new-messages is not cleared in start() or stop(), so its state is retained when the Engine restarts
-        if (mNewMessages == null) {
-            mNewMessages = new ArrayList<AnnotatedMessage>();
-        }
-        if (mAllMessages == null) {
-            mAllMessages = new ArrayList<AnnotatedMessage>();
-            Self self = getSelf();
-            try {
-                for (Message message : getSelfStatus().mMessages) {
-                    mAllMessages.add(new AnnotatedMessage(self.mPublicIdentity, null, message));
+    private void removeFriendHelper(String id) {
+        FriendIndex friendIndex = new FriendIndex(mVersionCounter.incrementAndGet(), mFriendIndex);
+        friendIndex.remove(id);
+        mFriendIndex = friendIndex;
+    }
+
+    public void removeFriend(String id) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        Friend friend;
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mFriendsLock) {
+            friend = getFriendById(id);
+            synchronized (getStatusLock(id)) {
+                synchronized (mTimelineIndexLock) {
+                    KeyValueStore.Batch batch = new KeyValueStore.Batch()
+                            .delete(FRIEND_KEY_PREFIX + id)
+                            .delete(FRIEND_STATUS_KEY_PREFIX + id);
+                    MessageHistory.Update historyUpdate = mMessageHistory.newUpdate();
+                    mMessageHistory.delete(batch, historyUpdate, id);
+                    mLocationHistory.delete(batch, id);
+                    TimelineIndex timelineIndex = updateTimelineIndexHelper(batch, FRIEND_STATUS_KEY_PREFIX + id, null);
+                    commitFuture = commit(batch);
+                    mTimelineIndex = timelineIndex;
+                    mMessageHistory.apply(historyUpdate);
                 }
-            } catch (DataNotFoundError e) {
-                // Skip
+                mFriendStatusCache.remove(id);
+                mFriendStatusVersions.remove(id);
+                mFriendLocationIndex.remove(id);
+                // Published under the status lock, so a status update waiting on it sees the removal
+                removeFriendHelper(id);
             }
-            for (Friend friend : getFriends()) {
-                // Hack to continue supporting self-as-friend, for now
-                if (!self.mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
-                    try {
-                        for (Message message : getFriendStatus(friend.mId).mMessages) {
-                            mAllMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
-                        }
-                    } catch (DataNotFoundError e) {
-                        // Skip
+            mDirtySyncStateFriendIds.remove(id);
+            mFriendSyncTimestamps.remove(id);
+            // Remove messages from deleted friend
+            synchronized (mMessagesLock) {
+                if (mMessagesInitialized) {
+                    mAllMessages.removeRun(id);
+                    Integer newMessageCount = mNewMessageCounts.remove(id);
+                    if (newMessageCount != null) {
+                        mNewMessageCount -= newMessageCount;
                     }
                 }
             }
-            Collections.sort(mAllMessages, new AnnotatedMessageComparator());
-            Events.post(new Events.UpdatedAllMessages());
         }
+        awaitCommit(commitFuture);
+        Log.addEntry(LOG_TAG, "removed friend: " + friend.mPublicIdentity.mNickname);
+        Events.post(new Events.RemovedFriend(id));
+        Events.post(new Events.UpdatedAllMessages());
     }
 
-    private void addFriendMessagesHelper(Friend friend, Status status, Status previousStatus) throws Utils.ApplicationError {
-        // TODO: this implementation is only intended for the prototype, which isn't sending incremental updates
-        initMessages();
-        Data.Message lastMessage = null;
-        if (previousStatus != null &&
-                previousStatus.mMessages.size() > 0) {
-            lastMessage = previousStatus.mMessages.get(0);
+    public Status getFriendStatus(String id) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        Status status = mFriendStatusCache.get(id);
+        if (status != null) {
+            mFriendStatusCacheHitCount.incrementAndGet();
+            return status;
         }
-        List<AnnotatedMessage> newMessages = new ArrayList<AnnotatedMessage>();
-        for (Data.Message message : status.mMessages) {
-            if (lastMessage == null ||
-                    !message.mTimestamp.equals(lastMessage.mTimestamp) ||
-                    !message.mContent.equals(lastMessage.mContent)) {
-                newMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
-                // Automatically enqueue new message attachments for download
-                for (Resource resource : message.mAttachments) {
-                    try {
-                        addDownload(friend.mId, resource);
-                    } catch (DataAlreadyExistsError e) {
-                        // Ignore
-                    }
-                }
+        // On a miss, the status is read holding its lock so a concurrent updateFriendStatus can't
+        // be overwritten in the cache by the older status read here
+        synchronized (getStatusLock(id)) {
+            status = mFriendStatusCache.get(id);
+            if (status != null) {
+                mFriendStatusCacheHitCount.incrementAndGet();
             } else {
-                break;
-            }
-        }
-
-        if (newMessages.size() > 0) {
-            mNewMessages.addAll(0, newMessages);
-            Events.post(new Events.UpdatedNewMessages());
-            // Hack to continue supporting self-as-friend, for now
-            if (!getSelf().mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
-                mAllMessages.addAll(0, newMessages);
-                Collections.sort(mAllMessages, new AnnotatedMessageComparator());
-                Events.post(new Events.UpdatedAllMessages());
+                mFriendStatusCacheMissCount.incrementAndGet();
+                status = getStoreValue(mStore, FRIEND_STATUS_KEY_PREFIX + id, StorageCodec.BINARY_STATUS);
+                mFriendStatusCache.put(id, status);
+                mFriendStatusVersions.put(id, status.mVersion);
             }
+            return status;
         }
     }
 
-    private void addSelfMessageHelper(Self self, Message message) throws Utils.ApplicationError {
-        initMessages();
-        mAllMessages.add(0, new AnnotatedMessage(self.mPublicIdentity, null, message));
-        Events.post(new Events.UpdatedAllMessages());
+    public int getFriendStatusCacheHitCount() {
+        return mFriendStatusCacheHitCount.get();
     }
 
-    public synchronized List<AnnotatedMessage> getNewMessages() throws Utils.ApplicationError {
-        initMessages();
-        return new ArrayList<AnnotatedMessage>(mNewMessages);
+    public int getFriendStatusCacheMissCount() {
+        return mFriendStatusCacheMissCount.get();
     }
 
-    public synchronized void resetNewMessages() throws Utils.ApplicationError {
+    public void updateFriendStatus(String id, Status status) throws Utils.ApplicationError {
+        // Hack: initMessages, and wait for this friend's messages to load, before committing new status
+        // to avoid duplicate adds in addFriendMessagesHelper
         initMessages();
-        boolean updatedNewMessages = (mNewMessages.size() > 0);
-        mNewMessages.clear();
-        if (updatedNewMessages) {
-            Events.post(new Events.UpdatedNewMessages());
-        }
-    }
+        awaitFriendMessages(id);
+        Friend friend = getFriendById(id);
+        // The per-friend status lock serializes concurrent pushes and pulls for the same friend, so
+        // the compare and write below is atomic; updates for other friends proceed in parallel
+        KeyValueStore.CommitFuture commitFuture;
+        if (friend.mLastReadMessageTimestamp == null) {
+            // The first status initializes the read mark, which is published under mFriendsLock. Only
+            // the updates before that are serialized with other friends'.
+            synchronized (mFriendsLock) {
+                synchronized (getStatusLock(id)) {
+                    commitFuture = updateFriendStatusHelper(friend, status);
+                }
+            }
+        } else {
+            synchronized (getStatusLock(id)) {
+                commitFuture = updateFriendStatusHelper(friend, status);
+            }
+        }
+        awaitCommit(commitFuture);
+    }
 
-    public synchronized List<AnnotatedMessage> getAllMessages() throws Utils.ApplicationError {
-        initMessages();
-        return new ArrayList<AnnotatedMessage>(mAllMessages);
+    private KeyValueStore.CommitFuture updateFriendStatusHelper(Friend friend, Status status) throws Utils.ApplicationError {
+        // Caller must hold the friend's status lock, and also mFriendsLock when friend has no read mark.
+        // Returns null when the status is discarded.
+        String id = friend.mId;
+        // The friend may have been removed while waiting for the lock
+        if (!mFriendIndex.mById.containsKey(id)) {
+            Log.addEntry(LOG_TAG, "discarded friend status (removed friend): " + friend.mPublicIdentity.mNickname);
+            return null;
+        }
+        // Mitigate push/pull race condition where older status overwrites newer status. This
+        // compares versions only, so the stored status isn't read to reject a stale update.
+        if (isStaleFriendStatus(id, status.mVersion)) {
+            Log.addEntry(LOG_TAG, "discarded friend status (stale version): " + friend.mPublicIdentity.mNickname);
+            return null;
+        }
+        Status previousStatus = null;
+        try {
+            previousStatus = getFriendStatus(id);
+        } catch (DataNotFoundError e) {
+        }
+        // Messages in the first status are history, not new
+        Friend readMarkFriend = null;
+        if (previousStatus == null && friend.mLastReadMessageTimestamp == null) {
+            readMarkFriend = initReadMarkHelper(id, status.mMessages);
+        }
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mTimelineIndexLock) {
+            KeyValueStore.Batch batch = new KeyValueStore.Batch()
+                    .put(FRIEND_STATUS_KEY_PREFIX + id, StorageCodec.encode(StorageCodec.BINARY_STATUS, status));
+            if (readMarkFriend != null) {
+                batch.put(FRIEND_KEY_PREFIX + id, StorageCodec.encode(StorageCodec.BINARY_FRIEND, withSyncTimestampsHelper(readMarkFriend)));
+            }
+            List<Message> newMessages = getNewMessagesHelper(status, previousStatus);
+            MessageHistory.Update historyUpdate = mMessageHistory.newUpdate();
+            mMessageHistory.append(batch, historyUpdate, id, newMessages);
+            MessageSearchIndex.Update searchUpdate = mMessageSearchIndex.newUpdate();
+            mMessageSearchIndex.add(batch, searchUpdate, id, newMessages);
+            mLocationHistory.append(batch, id, status.mLocation);
+            TimelineIndex timelineIndex = updateTimelineIndexHelper(batch, FRIEND_STATUS_KEY_PREFIX + id, status);
+            commitFuture = commit(batch);
+            mTimelineIndex = timelineIndex;
+            mMessageHistory.apply(historyUpdate);
+            mMessageSearchIndex.apply(searchUpdate);
+        }
+        if (readMarkFriend != null) {
+            putFriendHelper(readMarkFriend);
+        }
+        mFriendStatusCache.put(id, status);
+        mFriendStatusVersions.put(id, status.mVersion);
+        mClock.update(status.mVersion);
+        mFriendLocationIndex.put(id, status.mLocation);
+        Log.addEntry(LOG_TAG, "updated friend status: " + friend.mPublicIdentity.mNickname);
+        Events.post(new Events.UpdatedFriendStatus(friend.mId));
+        addFriendMessagesHelper(friend, status, previousStatus);
+        return commitFuture;
     }
 
-    private void initLocalResources() throws Utils.ApplicationError {
-        if (mLocalResources == null) {
+    public boolean isStaleFriendStatus(String id, long version) throws Utils.ApplicationError {
+        // True when the stored status is at least as recent as version. Only reads the stored status
+        // when its version isn't yet known; unversioned statuses, from earlier versions, are always replaced.
+        Long storedVersion = mFriendStatusVersions.get(id);
+        if (storedVersion == null) {
             try {
-                mLocalResources = new ArrayList<LocalResource>(Arrays.asList(Json.fromJson(readFile(LOCAL_RESOURCES_FILENAME), LocalResource[].class)));
+                storedVersion = getFriendStatus(id).mVersion;
             } catch (DataNotFoundError e) {
-                mLocalResources = new ArrayList<LocalResource>();
+                return false;
             }
         }
+        return storedVersion != Protocol.NO_STATUS_VERSION && version <= storedVersion;
+    }
+
+    private static Date getInitialReadMark(List<Message> messages) {
+        // A friend's first messages, and those stored before read marks were kept, are history rather
+        // than new: the mark starts at the newest of them, or before all messages when there are none
+        return messages.isEmpty() ? new Date(0) : messages.get(0).mTimestamp;
+    }
+
+    private Friend initReadMarkHelper(String friendId, List<Message> messages) throws Utils.ApplicationError {
+        // Caller must hold mFriendsLock, and publish the returned friend. Returns null when the friend
+        // was removed or already has a read mark.
+        Friend friend = mFriendIndex.mById.get(friendId);
+        if (friend == null || friend.mLastReadMessageTimestamp != null) {
+            return null;
+        }
+        return new Friend(
+                friend.mPublicIdentity,
+                friend.mAddedTimestamp,
+                friend.mLastSentStatusTimestamp,
+                friend.mLastReceivedStatusTimestamp,
+                getInitialReadMark(messages));
     }
 
-    public synchronized LocalResource getLocalResource(String resourceId) throws Utils.ApplicationError, DataNotFoundError {
-        initLocalResources();
-        for (LocalResource localResource : mLocalResources) {
-            if (localResource.mResourceId.equals(resourceId)) {
-                return localResource;
+    public void updateFriendStatus(String id, StatusDelta statusDelta) throws Utils.ApplicationError {
+        // Applies a delta received from the friend. Throws StatusVersionMismatchError when the stored
+        // status isn't the delta's base; the friend must then send the full status.
+        if (statusDelta.isFullStatus()) {
+            updateFriendStatus(id, new Status(statusDelta.mMessages, statusDelta.mLocation, statusDelta.mVersion));
+            return;
+        }
+        // As in updateFriendStatus, wait for this friend's messages to load before taking the status lock
+        initMessages();
+        awaitFriendMessages(id);
+        Friend friend = getFriendById(id);
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (getStatusLock(id)) {
+            if (!mFriendIndex.mById.containsKey(id)) {
+                Log.addEntry(LOG_TAG, "discarded friend status delta (removed friend): " + friend.mPublicIdentity.mNickname);
+                return;
+            }
+            if (isStaleFriendStatus(id, statusDelta.mVersion)) {
+                Log.addEntry(LOG_TAG, "discarded friend status delta (stale version): " + friend.mPublicIdentity.mNickname);
+                return;
             }
+            Status previousStatus;
+            try {
+                previousStatus = getFriendStatus(id);
+            } catch (DataNotFoundError e) {
+                throw new StatusVersionMismatchError();
+            }
+            if (previousStatus.mVersion != statusDelta.mBaseVersion) {
+                throw new StatusVersionMismatchError();
+            }
+            List<Message> messages = new ArrayList<Message>(statusDelta.mMessages);
+            for (Message message : previousStatus.mMessages) {
+                if (messages.size() >= Protocol.MAX_MESSAGE_COUNT) {
+                    break;
+                }
+                messages.add(message);
+            }
+            Location location = (statusDelta.mLocation != null) ? statusDelta.mLocation : previousStatus.mLocation;
+            commitFuture = updateFriendStatusHelper(friend, new Status(messages, location, statusDelta.mVersion));
+        }
+        awaitCommit(commitFuture);
+    }
+
+    public List<FriendLocationIndex.Result> getFriendsWithinRadius(
+            double latitude, double longitude, int radiusInMeters) throws Utils.ApplicationError {
+        // Returns the friends whose latest location is within radiusInMeters, nearest first
+        initFriendLocationIndex();
+        return mFriendLocationIndex.getWithinRadius(latitude, longitude, radiusInMeters);
+    }
+
+    public List<FriendLocationIndex.Result> getNearestFriends(
+            double latitude, double longitude, int count) throws Utils.ApplicationError {
+        // Returns up to count friends with a location, nearest first
+        initFriendLocationIndex();
+        return mFriendLocationIndex.getNearest(latitude, longitude, count);
+    }
+
+    private void initFriendLocationIndex() throws Utils.ApplicationError {
+        // Reads every friend status, once; concurrent status updates are indexed as they're committed.
+        // Each status is read and indexed under its status lock, so an update committed meanwhile
+        // isn't overwritten in the index by the older status.
+        initData();
+        if (mFriendLocationIndexInitialized) {
+            return;
+        }
+        synchronized (mFriendLocationIndexLock) {
+            if (mFriendLocationIndexInitialized) {
+                return;
+            }
+            for (Friend friend : mFriendIndex.mSortedView) {
+                synchronized (getStatusLock(friend.mId)) {
+                    try {
+                        mFriendLocationIndex.put(friend.mId, getFriendStatus(friend.mId).mLocation);
+                    } catch (DataNotFoundError e) {
+                        // No status received yet
+                    }
+                }
+            }
+            mFriendLocationIndexInitialized = true;
         }
-        throw new DataNotFoundError();
     }
 
-    private void initDownloads() throws Utils.ApplicationError {
-        if (mDownloads == null) {
+    private void initMessages() throws Utils.ApplicationError {
+        // The timeline is published as soon as it holds the messages already in memory: self messages
+        // and cached friend statuses. The remaining friend statuses are decoded concurrently on a
+        // bounded pool and each friend's messages are merged in as they arrive, so the first caller,
+        // often the UI thread, doesn't wait on reading every friend status.
+        if (mMessagesInitialized) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        Self self = getSelf();
+        final List<Friend> pendingFriends = new ArrayList<Friend>();
+        final long generation;
+        synchronized (mMessagesLock) {
+            if (mMessagesInitialized) {
+                return;
+            }
+            // Each author's messages are one run in the timeline
+            List<AnnotatedMessage> selfMessages = new ArrayList<AnnotatedMessage>();
             try {
-                mDownloads = new ArrayList<Download>(Arrays.asList(Json.fromJson(readFile(DOWNLOADS_FILENAME), Download[].class)));
+                for (Message message : getSelfStatus().mMessages) {
+                    selfMessages.add(new AnnotatedMessage(self.mPublicIdentity, null, message));
+                }
             } catch (DataNotFoundError e) {
-                mDownloads = new ArrayList<Download>();
+                // Skip
+            }
+            mAllMessages.putRun(SELF_MESSAGES_TIMELINE_KEY, selfMessages);
+            // Friends' messages from the timeline index seed the timeline; the head of the seeded
+            // timeline, down to the index boundary, is exact. When the index holds all messages, no
+            // friend status need be read.
+            TimelineIndex timelineIndex = mTimelineIndex;
+            Map<String, List<Message>> indexedMessages = new HashMap<String, List<Message>>();
+            for (TimelineIndexEntry entry : timelineIndex.mEntries) {
+                if (entry.mFriendId != null && timelineIndex.includes(entry.mMessage)) {
+                    List<Message> messages = indexedMessages.get(entry.mFriendId);
+                    if (messages == null) {
+                        messages = new ArrayList<Message>();
+                        indexedMessages.put(entry.mFriendId, messages);
+                    }
+                    messages.add(entry.mMessage);
+                }
+            }
+            for (Friend friend : getFriends()) {
+                // Hack to continue supporting self-as-friend, for now
+                if (!self.mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
+                    List<Message> messages = indexedMessages.get(friend.mId);
+                    if (messages == null) {
+                        messages = new ArrayList<Message>();
+                    }
+                    // Friends without a read mark are loaded in full, which initializes the mark
+                    boolean hasReadMark = (friend.mLastReadMessageTimestamp != null);
+                    Status status = mFriendStatusCache.get(friend.mId);
+                    if (status != null && hasReadMark) {
+                        putFriendMessagesHelper(friend, status.mMessages);
+                    } else if (timelineIndex.mBoundary == null && hasReadMark) {
+                        putFriendMessagesHelper(friend, messages);
+                    } else {
+                        List<AnnotatedMessage> friendMessages = new ArrayList<AnnotatedMessage>();
+                        for (Message message : messages) {
+                            friendMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
+                        }
+                        // New message counts are added when the full run replaces this one
+                        mAllMessages.putRun(friend.mId, friendMessages);
+                        mPendingFriendMessages.put(friend.mId, new CountDownLatch(1));
+                        pendingFriends.add(friend);
+                    }
+                }
             }
+            generation = mMessagesGeneration;
+            mStartupTiming = null;
+            mMessagesInitialized = true;
+        }
+        final long publishMilliseconds = (System.nanoTime() - startTime)/1000000;
+        Events.post(new Events.UpdatedAllMessages());
+        Events.post(new Events.UpdatedNewMessages());
+        if (pendingFriends.isEmpty()) {
+            mStartupTiming = new StartupTiming(mDataLoadMilliseconds, publishMilliseconds, publishMilliseconds, 0);
+            return;
         }
+        final long loadStartTime = startTime;
+        final AtomicInteger remainingCount = new AtomicInteger(pendingFriends.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MESSAGES_LOAD_THREAD_COUNT, pendingFriends.size()));
+        for (final Friend friend : pendingFriends) {
+            executor.submit(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        loadFriendMessagesHelper(friend, generation);
+                        if (remainingCount.decrementAndGet() == 0) {
+                            long loadMilliseconds = (System.nanoTime() - loadStartTime)/1000000;
+                            mStartupTiming = new StartupTiming(
+                                    mDataLoadMilliseconds, publishMilliseconds, loadMilliseconds, pendingFriends.size());
+                            Log.addEntry(LOG_TAG, "loaded " + Integer.toString(pendingFriends.size()) + " friend statuses in " + Long.toString(loadMilliseconds) + " ms");
+                            Events.post(new Events.UpdatedAllMessages());
+                            Events.post(new Events.UpdatedNewMessages());
+                        }
+                    }
+                });
+        }
+        // Submitted tasks still run; the threads exit when the queue is drained
+        executor.shutdown();
     }
 
-    public synchronized Download getDownload(String friendId, String resourceId) throws Utils.ApplicationError, DataNotFoundError {
-        initDownloads();
-        for (Download download : mDownloads) {
-            if (download.mFriendId.equals(friendId) && download.mResourceId.equals(resourceId)) {
-                return download;
+    private void loadFriendMessagesHelper(Friend friend, long generation) {
+        try {
+            Status status = null;
+            try {
+                status = getFriendStatus(friend.mId);
+            } catch (DataNotFoundError e) {
+                // Skip
+            } catch (Utils.ApplicationError e) {
+                Log.addEntry(LOG_TAG, "failed to load friend status: " + friend.mPublicIdentity.mNickname);
+            }
+            if (status != null && friend.mLastReadMessageTimestamp == null) {
+                synchronized (mFriendsLock) {
+                    try {
+                        Friend readMarkFriend = initReadMarkHelper(friend.mId, status.mMessages);
+                        if (readMarkFriend != null) {
+                            putFriendHelper(readMarkFriend);
+                            mDirtySyncStateFriendIds.add(friend.mId);
+                        }
+                    } catch (Utils.ApplicationError e) {
+                        Log.addEntry(LOG_TAG, "failed to initialize friend read mark: " + friend.mPublicIdentity.mNickname);
+                    }
+                }
+            }
+            synchronized (mMessagesLock) {
+                // Skip friends removed, or data reset, while loading
+                if (status != null &&
+                        generation == mMessagesGeneration &&
+                        mFriendIndex.mById.containsKey(friend.mId)) {
+                    putFriendMessagesHelper(friend, status.mMessages);
+                }
+            }
+        } finally {
+            CountDownLatch latch = mPendingFriendMessages.remove(friend.mId);
+            if (latch != null) {
+                latch.countDown();
             }
         }
-        throw new DataNotFoundError();
     }
 
-    public synchronized Download getNextInProgressDownload(String friendId) throws Utils.ApplicationError, DataNotFoundError {
-        initDownloads();
-        for (Download download : mDownloads) {
-            if (download.mFriendId.equals(friendId) && download.mState == Download.State.IN_PROGRESS) {
-                return download;
+    private void putFriendMessagesHelper(Friend friend, List<Message> messages) {
+        // Caller must hold mMessagesLock
+        // The current read mark is used; friend may be stale
+        Friend currentFriend = mFriendIndex.mById.get(friend.mId);
+        List<AnnotatedMessage> friendMessages = new ArrayList<AnnotatedMessage>();
+        int newMessageCount = 0;
+        for (Message message : messages) {
+            friendMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
+            if (currentFriend != null && currentFriend.isNewMessage(message)) {
+                newMessageCount++;
             }
         }
-        throw new DataNotFoundError();
+        mAllMessages.putRun(friend.mId, friendMessages);
+        addNewMessageCountHelper(friend.mId, newMessageCount);
     }
 
-    public synchronized void addDownload(String friendId, Resource resource) throws Utils.ApplicationError, DataAlreadyExistsError {
-        initDownloads();
+    private void awaitFriendMessages(String friendId) throws Utils.ApplicationError {
+        // Must not be called holding any Data lock, as the loader acquires them
+        CountDownLatch latch = mPendingFriendMessages.get(friendId);
+        if (latch == null) {
+            return;
+        }
         try {
-            getDownload(friendId, resource.mId);
-            throw new DataAlreadyExistsError();
-        } catch (DataNotFoundError e) {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public void awaitMessagesLoaded() throws Utils.ApplicationError {
+        // Waits until all friend messages are in the timeline; getAllMessages returns without waiting
+        initMessages();
+        for (String friendId : new ArrayList<String>(mPendingFriendMessages.keySet())) {
+            awaitFriendMessages(friendId);
+        }
+    }
+
+    public StartupTiming getStartupTiming() {
+        // Null until all friend messages are loaded
+        return mStartupTiming;
+    }
+
+    private void addFriendMessagesHelper(Friend friend, Status status, Status previousStatus) throws Utils.ApplicationError {
+        // Status is the friend's status with any delta applied, so its new messages are found against
+        // the previous status whether a full status or a delta was received
+        initMessages();
+        List<AnnotatedMessage> newMessages = new ArrayList<AnnotatedMessage>();
+        for (Data.Message message : getNewMessagesHelper(status, previousStatus)) {
+            newMessages.add(new AnnotatedMessage(friend.mPublicIdentity, friend.mId, message));
+            // Automatically enqueue new message attachments for download
+            for (Resource resource : message.mAttachments) {
+                try {
+                    addDownload(friend.mId, resource);
+                } catch (DataAlreadyExistsError e) {
+                    // Ignore
+                }
+            }
+        }
+
+        // Hack to continue supporting self-as-friend, for now
+        if (newMessages.size() > 0 &&
+                !getSelf().mPublicIdentity.mX509Certificate.equals(friend.mPublicIdentity.mX509Certificate)) {
+            synchronized (mMessagesLock) {
+                // The current read mark is used; friend may be stale
+                Friend currentFriend = mFriendIndex.mById.get(friend.mId);
+                int newMessageCount = 0;
+                for (AnnotatedMessage newMessage : newMessages) {
+                    mAllMessages.insert(friend.mId, newMessage);
+                    if (currentFriend != null && currentFriend.isNewMessage(newMessage.mMessage)) {
+                        newMessageCount++;
+                    }
+                }
+                addNewMessageCountHelper(friend.mId, newMessageCount);
+            }
+            Events.post(new Events.UpdatedNewMessages());
+            Events.post(new Events.UpdatedAllMessages());
         }
-        Friend friend = getFriendById(friendId);
-        // TODO: double check resource ID is from valid resource in friend message?
-        Download download = new Download(friendId, resource.mId, resource.mMimeType, resource.mSize, Download.State.IN_PROGRESS);
-        List<Download> newDownloads = new ArrayList<Download>(mDownloads);
-        newDownloads.add(download);
-        writeFile(DOWNLOADS_FILENAME, Json.toJson(newDownloads));
-        mDownloads.add(download);
-        Log.addEntry(LOG_TAG, "added download from friend: " + friend.mPublicIdentity.mNickname);
-        Events.post(new Events.AddedDownload(friendId, resource.mId));
     }
 
-    private void updateDownloadHelper(List<Download> list, Download download) throws DataNotFoundError {
-        boolean found = false;
-        for (int i = 0; i < list.size(); i++) {
-            if (list.get(i).mFriendId.equals(download.mFriendId) && list.get(i).mResourceId.equals(download.mResourceId)) {
-                list.set(i, download);
-                found = true;
+    private static List<Message> getNewMessagesHelper(Status status, Status previousStatus) {
+        // Returns the messages in status which precede the previous status's newest message
+        Data.Message lastMessage = null;
+        if (previousStatus != null &&
+                previousStatus.mMessages.size() > 0) {
+            lastMessage = previousStatus.mMessages.get(0);
+        }
+        List<Message> newMessages = new ArrayList<Message>();
+        for (Data.Message message : status.mMessages) {
+            if (lastMessage == null ||
+                    !message.mTimestamp.equals(lastMessage.mTimestamp) ||
+                    !message.mContent.equals(lastMessage.mContent)) {
+                newMessages.add(message);
+            } else {
                 break;
             }
         }
-        if (!found) {
+        return newMessages;
+    }
+
+    public List<Message> getMessageHistory(String friendId, Date start, Date end, int limit) throws Utils.ApplicationError {
+        // Returns up to limit of the author's messages with start <= timestamp < end, newest first, from
+        // the complete history; a null friendId is self, and a null start or end is unbounded
+        initData();
+        return mMessageHistory.getMessages((friendId != null) ? friendId : SELF_HISTORY_AUTHOR_KEY, start, end, limit);
+    }
+
+    public List<Location> getLocationHistory(String friendId, Date start, Date end, long intervalInMilliseconds) throws Utils.ApplicationError {
+        // Returns the author's locations with start <= timestamp < end, in time order, downsampled to
+        // the latest location in each interval when intervalInMilliseconds > 0; a null friendId is self,
+        // and a null start or end is unbounded. History locations have no street address.
+        initData();
+        return mLocationHistory.getLocations((friendId != null) ? friendId : SELF_HISTORY_AUTHOR_KEY, start, end, intervalInMilliseconds);
+    }
+
+    public List<AnnotatedMessage> searchMessages(String query, AnnotatedMessage cursor, int limit) throws Utils.ApplicationError {
+        // Returns up to limit messages, from the complete history, with a word beginning with each word
+        // of the query, newest first; to page, pass the last message returned as the next cursor
+        Self self = getSelf();
+        MessageSearchIndex.Posting postingCursor = null;
+        if (cursor != null) {
+            postingCursor = new MessageSearchIndex.Posting(
+                    (cursor.mFriendId != null) ? cursor.mFriendId : SELF_HISTORY_AUTHOR_KEY, cursor.mMessage.mTimestamp);
+        }
+        List<AnnotatedMessage> messages = new ArrayList<AnnotatedMessage>();
+        while (messages.size() < limit) {
+            List<MessageSearchIndex.Posting> postings = mMessageSearchIndex.search(query, postingCursor, limit - messages.size());
+            if (postings.isEmpty()) {
+                break;
+            }
+            for (MessageSearchIndex.Posting posting : postings) {
+                // Postings of removed friends no longer resolve and are skipped
+                String friendId = null;
+                Identity.PublicIdentity publicIdentity = self.mPublicIdentity;
+                if (!posting.mAuthorKey.equals(SELF_HISTORY_AUTHOR_KEY)) {
+                    Friend friend = mFriendIndex.mById.get(posting.mAuthorKey);
+                    if (friend == null) {
+                        continue;
+                    }
+                    friendId = friend.mId;
+                    publicIdentity = friend.mPublicIdentity;
+                }
+                List<AnnotatedMessage> postingMessages = new ArrayList<AnnotatedMessage>();
+                for (Message message : mMessageHistory.getMessages(
+                        posting.mAuthorKey,
+                        posting.mTimestamp,
+                        new Date(posting.mTimestamp.getTime() + 1),
+                        Integer.MAX_VALUE)) {
+                    if (MessageSearchIndex.matches(query, message.mContent)) {
+                        postingMessages.add(new AnnotatedMessage(publicIdentity, friendId, message));
+                    }
+                }
+                // An author's messages with the same timestamp share a posting, and so a cursor: they're
+                // returned on one page, which ends before them when they don't fit. Only when they alone
+                // exceed limit are the rest dropped.
+                if (messages.size() + postingMessages.size() > limit) {
+                    if (messages.isEmpty()) {
+                        messages.addAll(postingMessages.subList(0, limit));
+                    }
+                    return messages;
+                }
+                messages.addAll(postingMessages);
+            }
+            postingCursor = postings.get(postings.size() - 1);
+        }
+        return messages;
+    }
+
+    private void addSelfMessageHelper(Self self, Message message) throws Utils.ApplicationError {
+        initMessages();
+        synchronized (mMessagesLock) {
+            mAllMessages.insert(SELF_MESSAGES_TIMELINE_KEY, new AnnotatedMessage(self.mPublicIdentity, null, message));
+        }
+        Events.post(new Events.UpdatedAllMessages());
+    }
+
+    private void addNewMessageCountHelper(String friendId, int count) {
+        // Caller must hold mMessagesLock
+        if (count > 0) {
+            Integer previousCount = mNewMessageCounts.get(friendId);
+            mNewMessageCounts.put(friendId, (previousCount != null ? previousCount : 0) + count);
+            mNewMessageCount += count;
+        }
+    }
+
+    public int getNewMessageCount() throws Utils.ApplicationError {
+        initMessages();
+        return mNewMessageCount;
+    }
+
+    public int getNewMessageCount(String friendId) throws Utils.ApplicationError {
+        // Doesn't wait for friend messages to load; UpdatedNewMessages is posted once they have
+        initMessages();
+        Integer count = mNewMessageCounts.get(friendId);
+        return (count != null) ? count : 0;
+    }
+
+    public List<AnnotatedMessage> getNewMessages(int limit) throws Utils.ApplicationError {
+        // Returns up to limit of the most recent new messages, for display in a summary
+        initMessages();
+        final int PAGE_SIZE = 20;
+        List<AnnotatedMessage> newMessages = new ArrayList<AnnotatedMessage>();
+        int count = Math.min(limit, mNewMessageCount);
+        FriendIndex friendIndex = mFriendIndex;
+        AnnotatedMessage cursor = null;
+        while (newMessages.size() < count) {
+            List<AnnotatedMessage> messages = mAllMessages.getMessagesBefore(cursor, PAGE_SIZE);
+            if (messages.isEmpty()) {
+                break;
+            }
+            for (AnnotatedMessage message : messages) {
+                Friend friend = (message.mFriendId != null) ? friendIndex.mById.get(message.mFriendId) : null;
+                if (friend != null && friend.isNewMessage(message.mMessage) && newMessages.size() < count) {
+                    newMessages.add(message);
+                }
+            }
+            cursor = messages.get(messages.size() - 1);
+        }
+        return newMessages;
+    }
+
+    public void resetNewMessages() throws Utils.ApplicationError {
+        // Advances each friend's read mark to their most recent message
+        awaitMessagesLoaded();
+        boolean updatedNewMessages = false;
+        KeyValueStore.CommitFuture commitFuture = null;
+        synchronized (mFriendsLock) {
+            synchronized (mMessagesLock) {
+                // The read marks are in the friend index, which is copied once for all of them
+                FriendIndex friendIndex = new FriendIndex(mVersionCounter.incrementAndGet(), mFriendIndex);
+                for (String friendId : mNewMessageCounts.keySet()) {
+                    Friend friend = friendIndex.mById.get(friendId);
+                    AnnotatedMessage lastMessage = mAllMessages.getLastMessage(friendId);
+                    if (friend != null && lastMessage != null) {
+                        friendIndex.put(
+                            new Friend(
+                                friend.mPublicIdentity,
+                                friend.mAddedTimestamp,
+                                friend.mLastSentStatusTimestamp,
+                                friend.mLastReceivedStatusTimestamp,
+                                lastMessage.mMessage.mTimestamp));
+                        mDirtySyncStateFriendIds.add(friendId);
+                    }
+                }
+                mFriendIndex = friendIndex;
+                updatedNewMessages = (mNewMessageCount > 0);
+                mNewMessageCounts.clear();
+                mNewMessageCount = 0;
+            }
+            if (updatedNewMessages) {
+                // Read marks are written immediately, not group committed like the sync timestamps
+                commitFuture = flushSyncStateHelper();
+            }
+        }
+        awaitCommit(commitFuture);
+        if (updatedNewMessages) {
+            Events.post(new Events.UpdatedNewMessages());
+        }
+    }
+
+    public List<AnnotatedMessage> getAllMessages() throws Utils.ApplicationError {
+        // Returns the merged timeline, which is cached until the next change; it's unmodifiable and isn't copied
+        initMessages();
+        return mAllMessages.getMessages();
+    }
+
+    public long getAllMessagesVersion() throws Utils.ApplicationError {
+        // Changes whenever the list returned by getAllMessages changes
+        initMessages();
+        return mAllMessages.getVersion();
+    }
+
+    // Paged access to the all-messages timeline. A cursor is a message returned by a previous call;
+    // pages are merged directly from the per-author runs, so the cost depends on the page size,
+    // not on the total number of messages.
+
+    public int getMessageCount() throws Utils.ApplicationError {
+        initMessages();
+        return mAllMessages.getCount();
+    }
+
+    public List<AnnotatedMessage> getMessagesBefore(AnnotatedMessage cursor, int limit) throws Utils.ApplicationError {
+        // Older messages, newest first; a null cursor returns the newest messages
+        initMessages();
+        return mAllMessages.getMessagesBefore(cursor, limit);
+    }
+
+    public List<AnnotatedMessage> getMessagesAfter(AnnotatedMessage cursor, int limit) throws Utils.ApplicationError {
+        // Newer messages, newest first; these are the limit messages nearest the cursor
+        initMessages();
+        return mAllMessages.getMessagesAfter(cursor, limit);
+    }
+
+    public int getMessagePosition(AnnotatedMessage cursor) throws Utils.ApplicationError {
+        // The position, in the full timeline, of the first message returned by getMessagesBefore(cursor)
+        initMessages();
+        return mAllMessages.countThrough(cursor);
+    }
+
+    public LocalResource getLocalResource(String resourceId) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        LocalResource localResource = mLocalResources.get(resourceId);
+        if (localResource == null) {
             throw new DataNotFoundError();
         }
+        return localResource;
     }
 
-    public synchronized void updateDownloadState(String friendId, String resourceId, Download.State state) throws Utils.ApplicationError, DataNotFoundError {
-        initDownloads();
+    public Download getDownload(String friendId, String resourceId) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        Download download = mDownloads.get(getDownloadKey(friendId, resourceId));
+        if (download != null) {
+            return download;
+        }
+        // Finished downloads are archived, and read from the store; the message list looks up each
+        // visible attachment, so recently used ones are kept decoded
+        String archivedKey = getArchivedDownloadKey(friendId, resourceId);
+        long generation;
+        synchronized (mArchivedDownloadCache) {
+            download = mArchivedDownloadCache.get(archivedKey);
+            if (download != null) {
+                return download;
+            }
+            generation = mArchivedDownloadCacheGeneration;
+        }
+        download = getStoreValue(mStore, archivedKey, StorageCodec.BINARY_DOWNLOAD);
+        synchronized (mArchivedDownloadCache) {
+            if (generation == mArchivedDownloadCacheGeneration) {
+                mArchivedDownloadCache.put(archivedKey, download);
+            }
+        }
+        return download;
+    }
+
+    public Download getNextInProgressDownload(String friendId) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        ConcurrentLinkedQueue<String> queue = mDownloadQueues.get(friendId);
+        if (queue != null) {
+            // Writers remove a download from its queue before removing it from mDownloads, so
+            // when the head is no longer in mDownloads, it's also no longer the head
+            String resourceId;
+            while ((resourceId = queue.peek()) != null) {
+                Download download = mDownloads.get(getDownloadKey(friendId, resourceId));
+                if (download != null) {
+                    return download;
+                }
+            }
+        }
+        throw new DataNotFoundError();
+    }
+
+    public void addDownload(String friendId, Resource resource) throws Utils.ApplicationError, DataAlreadyExistsError {
+        initData();
         Friend friend = getFriendById(friendId);
-        Download download = getDownload(friendId, resourceId);
-        Download newDownload = new Download(download.mFriendId, download.mResourceId, download.mMimeType, download.mSize, state);
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mDownloadsLock) {
+            try {
+                getDownload(friendId, resource.mId);
+                throw new DataAlreadyExistsError();
+            } catch (DataNotFoundError e) {
+            }
+            // TODO: double check resource ID is from valid resource in friend message?
+            Download download = new Download(friendId, resource.mId, resource.mMimeType, resource.mSize, Download.State.IN_PROGRESS);
+            commitFuture = commit(new KeyValueStore.Batch().put(getDownloadKey(download), StorageCodec.encode(StorageCodec.BINARY_DOWNLOAD, download)));
+            putDownloadHelper(download);
+        }
+        awaitCommit(commitFuture);
+        Log.addEntry(LOG_TAG, "added download from friend: " + friend.mPublicIdentity.mNickname);
+        Events.post(new Events.AddedDownload(friendId, resource.mId));
+    }
+
+    private static String getDownloadKey(String friendId, String resourceId) {
+        return DOWNLOAD_KEY_PREFIX + friendId + "/" + resourceId;
+    }
+
+    private static String getDownloadKey(Download download) {
+        return getDownloadKey(download.mFriendId, download.mResourceId);
+    }
+
+    private static String getArchivedDownloadKey(String friendId, String resourceId) {
+        return ARCHIVED_DOWNLOAD_KEY_PREFIX + friendId + "/" + resourceId;
+    }
+
+    private static String getArchivedDownloadKey(Download download) {
+        return getArchivedDownloadKey(download.mFriendId, download.mResourceId);
+    }
+
+    private static boolean isArchivedDownload(Download download) {
+        return download.mState != Download.State.IN_PROGRESS;
+    }
+
+    private void putDownloadBatchHelper(KeyValueStore.Batch batch, Download download) throws Utils.ApplicationError {
+        // A download is stored under exactly one of its keys, according to its state
+        byte[] value = StorageCodec.encode(StorageCodec.BINARY_DOWNLOAD, download);
+        if (isArchivedDownload(download)) {
+            batch.put(getArchivedDownloadKey(download), value).delete(getDownloadKey(download));
+        } else {
+            batch.put(getDownloadKey(download), value).delete(getArchivedDownloadKey(download));
+        }
+    }
+
+    private void putDownloadHelper(Download download) {
+        // Caller must hold mDownloadsLock, or be initializing
+        String key = getDownloadKey(download);
+        ConcurrentLinkedQueue<String> queue = mDownloadQueues.get(download.mFriendId);
+        synchronized (mArchivedDownloadCache) {
+            if (isArchivedDownload(download)) {
+                mArchivedDownloadCache.put(getArchivedDownloadKey(download), download);
+            } else {
+                mArchivedDownloadCache.remove(getArchivedDownloadKey(download));
+            }
+            mArchivedDownloadCacheGeneration++;
+        }
+        if (isArchivedDownload(download)) {
+            if (queue != null) {
+                queue.remove(download.mResourceId);
+                if (queue.isEmpty()) {
+                    mDownloadQueues.remove(download.mFriendId);
+                }
+            }
+            mDownloads.remove(key);
+        } else {
+            if (mDownloads.put(key, download) == null) {
+                if (queue == null) {
+                    queue = new ConcurrentLinkedQueue<String>();
+                    mDownloadQueues.put(download.mFriendId, queue);
+                }
+                queue.add(download.mResourceId);
+            }
+        }
+    }
 
-        List<Download> newDownloads = new ArrayList<Download>(mDownloads);
-        updateDownloadHelper(newDownloads, newDownload);
-        writeFile(DOWNLOADS_FILENAME, Json.toJson(newDownloads));
-        updateDownloadHelper(mDownloads, newDownload);
+    public void updateDownloadState(String friendId, String resourceId, Download.State state) throws Utils.ApplicationError, DataNotFoundError {
+        initData();
+        Friend friend = getFriendById(friendId);
+        KeyValueStore.CommitFuture commitFuture;
+        synchronized (mDownloadsLock) {
+            Download download = getDownload(friendId, resourceId);
+            Download newDownload = new Download(download.mFriendId, download.mResourceId, download.mMimeType, download.mSize, state);
+            // Finishing a download moves it to the archive, and resuming one moves it back, in one commit
+            KeyValueStore.Batch batch = new KeyValueStore.Batch();
+            putDownloadBatchHelper(batch, newDownload);
+            commitFuture = commit(batch);
+            putDownloadHelper(newDownload);
+        }
+        awaitCommit(commitFuture);
 
         if (state == Download.State.IN_PROGRESS) {
             Log.addEntry(LOG_TAG, "resumed download from friend: " + friend.mPublicIdentity.mNickname);
@@ -800,66 +2032,453 @@ public class Data {
         //Events.post(new Events.UpdatedDownloadState());
     }
 
-    private static String readFile(String filename) throws Utils.ApplicationError, DataNotFoundError {
-        FileInputStream inputStream = null;
-        try {
-            File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-            String commitFilename = filename + COMMIT_FILENAME_SUFFIX;
-            File commitFile = new File(directory, commitFilename);
-            File file = new File(directory, filename);
-            replaceFileIfExists(commitFile, file);
-            inputStream = new FileInputStream(file);
-            return Utils.readInputStreamToString(inputStream);
-        } catch (FileNotFoundException e) {
-            throw new DataNotFoundError();
-        } catch (IOException e) {
-            throw new Utils.ApplicationError(LOG_TAG, e);
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
+    private void putLocalResourceHelper(LocalResource localResource) {
+        mLocalResources.put(localResource.mResourceId, localResource);
+    }
+
+    private List<LocalResource> getUnreferencedLocalResourcesHelper(Status status) {
+        // Returns the local resources not attached to messages in status; a null status references no
+        // resources. Only the self message history, not the status, bounds the self messages, so
+        // callers must also account for the history.
+        Set<String> referencedResourceIds = new HashSet<String>();
+        if (status != null && status.mMessages != null) {
+            for (Message message : status.mMessages) {
+                if (message.mAttachments != null) {
+                    for (Resource resource : message.mAttachments) {
+                        referencedResourceIds.add(resource.mId);
+                    }
                 }
             }
         }
+        List<LocalResource> unreferencedLocalResources = new ArrayList<LocalResource>();
+        for (LocalResource localResource : mLocalResources.values()) {
+            if (!referencedResourceIds.contains(localResource.mResourceId)) {
+                unreferencedLocalResources.add(localResource);
+            }
+        }
+        return unreferencedLocalResources;
+    }
+
+    private void removeLocalResourcesHelper(List<LocalResource> localResources) {
+        // Call after committing the deletes; temporary copies are recreated on demand, so a failed
+        // delete is only wasted space
+        for (LocalResource localResource : localResources) {
+            mLocalResources.remove(localResource.mResourceId);
+            Resources.deleteTemporaryCopy(localResource);
+        }
+    }
+
+    private static Status addSelfStatusMessageHelper(Status currentStatus, Message message, long version) {
+        if (currentStatus == null) {
+            currentStatus = makeBlankStatus();
+        }
+        List<Message> messages = new ArrayList<Message>(currentStatus.mMessages);
+        messages.add(0, message);
+        while (messages.size() > Protocol.MAX_MESSAGE_COUNT) {
+            messages.remove(messages.size() - 1);
+        }
+        return new Status(messages, currentStatus.mLocation, version);
+    }
+
+    public TimelineIndex getTimelineIndex() throws Utils.ApplicationError {
+        initData();
+        return mTimelineIndex;
+    }
+
+    private TimelineIndex updateTimelineIndexHelper(
+            KeyValueStore.Batch batch, String statusKey, Status status) throws Utils.ApplicationError {
+        // Caller must hold mTimelineIndexLock, which serializes all status commits, and the status's
+        // lock. Adds the updated index to the batch, which must also write the status (null when deleted).
+        initData();
+        String friendId = statusKey.equals(SELF_STATUS_KEY) ? null : statusKey.substring(FRIEND_STATUS_KEY_PREFIX.length());
+        TimelineIndex timelineIndex = replaceTimelineIndexMessagesHelper(
+                mTimelineIndex, friendId, (status != null) ? status.mMessages : null);
+        int includedCount = 0;
+        for (TimelineIndexEntry entry : timelineIndex.mEntries) {
+            if (timelineIndex.includes(entry.mMessage)) {
+                includedCount++;
+            }
+        }
+        if (timelineIndex.mBoundary != null && includedCount < TIMELINE_INDEX_MINIMUM_SIZE) {
+            Map<String, Status> pendingStatuses = new HashMap<String, Status>();
+            pendingStatuses.put(statusKey, status);
+            timelineIndex = buildTimelineIndexHelper(mStore, pendingStatuses);
+        }
+        batch.put(TIMELINE_INDEX_KEY, StorageCodec.encode(StorageCodec.BINARY_TIMELINE_INDEX, timelineIndex));
+        return timelineIndex;
     }
 
-    private static void writeFile(String filename, String value) throws Utils.ApplicationError {
-        FileOutputStream outputStream = null;
+    private static TimelineIndex buildTimelineIndexHelper(
+            KeyValueStore store, Map<String, Status> pendingStatuses) throws Utils.ApplicationError {
+        // Builds the index from all statuses in the store, overridden by any pending (uncommitted)
+        // statuses, keyed by store key; a null pending status is deleted
+        TimelineIndex timelineIndex = new TimelineIndex(null, new ArrayList<TimelineIndexEntry>());
+        List<String> statusKeys = new ArrayList<String>(store.getKeys(FRIEND_STATUS_KEY_PREFIX));
+        if (store.get(SELF_STATUS_KEY) != null) {
+            statusKeys.add(SELF_STATUS_KEY);
+        }
+        if (pendingStatuses != null) {
+            for (String statusKey : pendingStatuses.keySet()) {
+                if (!statusKeys.contains(statusKey)) {
+                    statusKeys.add(statusKey);
+                }
+            }
+        }
+        for (String statusKey : statusKeys) {
+            Status status;
+            if (pendingStatuses != null && pendingStatuses.containsKey(statusKey)) {
+                status = pendingStatuses.get(statusKey);
+            } else {
+                status = getStoreValue(store, statusKey, StorageCodec.BINARY_STATUS);
+            }
+            if (status != null) {
+                String friendId = statusKey.equals(SELF_STATUS_KEY) ? null : statusKey.substring(FRIEND_STATUS_KEY_PREFIX.length());
+                timelineIndex = replaceTimelineIndexMessagesHelper(timelineIndex, friendId, status.mMessages);
+            }
+        }
+        return timelineIndex;
+    }
+
+    private static TimelineIndex replaceTimelineIndexMessagesHelper(
+            TimelineIndex timelineIndex, String friendId, List<Message> messages) {
+        // Replaces the author's messages in the index, then trims it to TIMELINE_INDEX_SIZE entries.
+        // Messages older than the boundary aren't added, as newer messages of other authors may be
+        // missing; trimming advances the boundary to the newest message dropped.
+        List<TimelineIndexEntry> entries = new ArrayList<TimelineIndexEntry>();
+        for (TimelineIndexEntry entry : timelineIndex.mEntries) {
+            if (friendId == null ? entry.mFriendId != null : !friendId.equals(entry.mFriendId)) {
+                entries.add(entry);
+            }
+        }
+        if (messages != null) {
+            for (Message message : messages) {
+                if (message.mTimestamp != null && timelineIndex.includes(message)) {
+                    entries.add(new TimelineIndexEntry(friendId, message));
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<TimelineIndexEntry>() {
+            @Override
+            public int compare(TimelineIndexEntry a, TimelineIndexEntry b) {
+                return b.mMessage.mTimestamp.compareTo(a.mMessage.mTimestamp);
+            }
+        });
+        Date boundary = timelineIndex.mBoundary;
+        if (entries.size() > TIMELINE_INDEX_SIZE) {
+            boundary = entries.get(TIMELINE_INDEX_SIZE).mMessage.mTimestamp;
+            entries = new ArrayList<TimelineIndexEntry>(entries.subList(0, TIMELINE_INDEX_SIZE));
+        }
+        return new TimelineIndex(boundary, entries);
+    }
+
+    private void initData() throws Utils.ApplicationError {
+        if (mStore != null) {
+            return;
+        }
+        synchronized (mInitLock) {
+            if (mStore != null) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            KeyValueStore store = KeyValueStore.open(new File(getDataDirectory(), STORE_FILENAME), mDurability);
+            migrateLegacyFiles(store);
+            try {
+                mSelfStatus = getStoreValue(store, SELF_STATUS_KEY, StorageCodec.BINARY_STATUS);
+                // Self status versions must keep increasing across restarts, whatever the wall clock
+                mClock.restore(mSelfStatus.mVersion);
+            } catch (DataNotFoundError e) {
+                mSelfStatus = null;
+            }
+            FriendIndex friendIndex = new FriendIndex(mVersionCounter.incrementAndGet());
+            for (String key : store.getKeys(FRIEND_KEY_PREFIX)) {
+                friendIndex.put(getStoreValue(store, key, StorageCodec.BINARY_FRIEND));
+            }
+            mFriendIndex = friendIndex;
+            mLocalResources.clear();
+            for (String key : store.getKeys(LOCAL_RESOURCE_KEY_PREFIX)) {
+                putLocalResourceHelper(getStoreValue(store, key, StorageCodec.BINARY_LOCAL_RESOURCE));
+            }
+            // The queues are rebuilt in key order, so after a restart each friend's queue is in resource id order
+            mDownloads.clear();
+            mDownloadQueues.clear();
+            KeyValueStore.Batch archiveBatch = new KeyValueStore.Batch();
+            for (String key : store.getKeys(DOWNLOAD_KEY_PREFIX)) {
+                Download download = getStoreValue(store, key, StorageCodec.BINARY_DOWNLOAD);
+                if (isArchivedDownload(download)) {
+                    // Finished downloads stored by earlier versions are archived now
+                    putDownloadBatchHelper(archiveBatch, download);
+                } else {
+                    putDownloadHelper(download);
+                }
+            }
+            if (!archiveBatch.isEmpty()) {
+                store.commit(archiveBatch);
+            }
+            try {
+                mTimelineIndex = getStoreValue(store, TIMELINE_INDEX_KEY, StorageCodec.BINARY_TIMELINE_INDEX);
+            } catch (DataNotFoundError e) {
+                // Not yet built, as when upgrading; this reads every status, once
+                TimelineIndex timelineIndex = buildTimelineIndexHelper(store, null);
+                store.commit(new KeyValueStore.Batch().put(
+                        TIMELINE_INDEX_KEY, StorageCodec.encode(StorageCodec.BINARY_TIMELINE_INDEX, timelineIndex)));
+                mTimelineIndex = timelineIndex;
+            }
+            MessageHistory messageHistory = new MessageHistory(store);
+            if (!MessageHistory.isInitialized(store)) {
+                // Upgrading: the history starts with the messages in the current statuses. Earlier
+                // versions retained every local resource; those the self history won't reference
+                // are collected.
+                KeyValueStore.Batch batch = new KeyValueStore.Batch();
+                MessageHistory.Update update = messageHistory.newUpdate();
+                if (mSelfStatus != null) {
+                    messageHistory.append(batch, update, SELF_HISTORY_AUTHOR_KEY, mSelfStatus.mMessages);
+                }
+                List<LocalResource> unreferencedLocalResources = getUnreferencedLocalResourcesHelper(mSelfStatus);
+                for (LocalResource localResource : unreferencedLocalResources) {
+                    batch.delete(LOCAL_RESOURCE_KEY_PREFIX + localResource.mResourceId);
+                }
+                for (String key : store.getKeys(FRIEND_STATUS_KEY_PREFIX)) {
+                    Status status = getStoreValue(store, key, StorageCodec.BINARY_STATUS);
+                    if (status.mMessages != null) {
+                        messageHistory.append(batch, update, key.substring(FRIEND_STATUS_KEY_PREFIX.length()), status.mMessages);
+                    }
+                }
+                MessageHistory.setInitialized(batch);
+                store.commit(batch);
+                messageHistory.apply(update);
+                removeLocalResourcesHelper(unreferencedLocalResources);
+            }
+            mMessageHistory = messageHistory;
+            MessageSearchIndex messageSearchIndex = new MessageSearchIndex(store);
+            if (!MessageSearchIndex.isInitialized(store)) {
+                // Upgrading: index the history
+                KeyValueStore.Batch batch = new KeyValueStore.Batch();
+                MessageSearchIndex.Update update = messageSearchIndex.newUpdate();
+                messageSearchIndex.add(batch, update, SELF_HISTORY_AUTHOR_KEY,
+                        messageHistory.getMessages(SELF_HISTORY_AUTHOR_KEY, null, null, Integer.MAX_VALUE));
+                for (String friendId : mFriendIndex.mById.keySet()) {
+                    messageSearchIndex.add(batch, update, friendId,
+                            messageHistory.getMessages(friendId, null, null, Integer.MAX_VALUE));
+                }
+                MessageSearchIndex.setInitialized(batch);
+                store.commit(batch);
+                messageSearchIndex.apply(update);
+            }
+            mMessageSearchIndex = messageSearchIndex;
+            mLocationHistory = new LocationHistory(store);
+            mDataLoadMilliseconds = (System.nanoTime() - startTime)/1000000;
+            mStore = store;
+            if (mStore.needsCompaction()) {
+                compactStore();
+            }
+        }
+    }
+
+    private static <T> T getStoreValue(KeyValueStore store, String key, StorageCodec<T> codec) throws Utils.ApplicationError, DataNotFoundError {
+        byte[] value = store.get(key);
+        if (value == null) {
+            throw new DataNotFoundError();
+        }
+        return StorageCodec.decode(codec, value);
+    }
+
+    private KeyValueStore.CommitFuture commit(KeyValueStore.Batch batch) throws Utils.ApplicationError {
+        // Caller must hold the writer locks for the values in the batch. The changes are visible on
+        // return; pass the future to awaitCommit once those locks are released.
+        initData();
+        KeyValueStore.CommitFuture future = mStore.commit(batch);
+        if (mStore.needsCompaction()) {
+            compactStore();
+        }
+        return future;
+    }
+
+    private void awaitCommit(KeyValueStore.CommitFuture future) throws Utils.ApplicationError {
+        // With SYNC durability, waits until the commit is durable; a null future is a skipped commit.
+        // Called without holding writer locks, so concurrent committers wait together and share one sync.
+        if (future == null || mDurability != KeyValueStore.Durability.SYNC) {
+            return;
+        }
         try {
-            File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-            String commitFilename = filename + COMMIT_FILENAME_SUFFIX;
-            File commitFile = new File(directory, commitFilename);
-            File file = new File(directory, filename);
-            outputStream = new FileOutputStream(commitFile);
-            outputStream.write(value.getBytes());
-            outputStream.close();
-            replaceFileIfExists(commitFile, file);
-        } catch (IOException e) {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new Utils.ApplicationError(LOG_TAG, e);
-        } finally {
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
+        } catch (ExecutionException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private void compactStore() {
+        if (!mStoreCompactionInProgress.compareAndSet(false, true)) {
+            return;
+        }
+        // The store blocks commits while compacting, but not reads; callers of compactStore hold
+        // writer locks, so the compaction is run on the background thread
+        final KeyValueStore store = mStore;
+        getBackgroundExecutor().submit(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        store.compact();
+                    } catch (Utils.ApplicationError e) {
+                        Log.addEntry(LOG_TAG, "failed to compact store");
+                    } finally {
+                        mStoreCompactionInProgress.set(false);
+                    }
+                }
+            });
+    }
+
+    private synchronized ScheduledExecutorService getBackgroundExecutor() {
+        if (mBackgroundExecutor == null) {
+            mBackgroundExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+        return mBackgroundExecutor;
+    }
+
+    private File getDataDirectory() {
+        return Utils.getApplicationContext().getDir(mDataDirectory, Context.MODE_PRIVATE);
+    }
+
+    private Object getStatusLock(String friendId) {
+        // Writers of the same friend status are serialized; writers of different statuses usually aren't
+        return mStatusLocks[(friendId.hashCode() & 0x7fffffff) % mStatusLocks.length];
+    }
+
+    private void recoverCommitFiles() {
+        // Called when migrating legacy files, before any is read. Each file was replaced by writing a
+        // commit file, deleting the data file, then renaming; so a commit file alongside its data file
+        // may be an incomplete write and is discarded, while a commit file without a data file was
+        // complete before the data file was deleted.
+        File directory = getDataDirectory();
+        String[] filenames = directory.list();
+        if (filenames == null) {
+            return;
+        }
+        for (String filename : filenames) {
+            if (filename.endsWith(LEGACY_COMMIT_FILENAME_SUFFIX)) {
+                File commitFile = new File(directory, filename);
+                File file = new File(directory, filename.substring(0, filename.length() - LEGACY_COMMIT_FILENAME_SUFFIX.length()));
+                if (file.exists()) {
+                    commitFile.delete();
+                } else {
+                    commitFile.renameTo(file);
                 }
             }
         }
     }
 
-    private static void replaceFileIfExists(File commitFile, File file) throws IOException {
-        if (commitFile.exists()) {
-            file.delete();
-            commitFile.renameTo(file);
+    private void migrateLegacyFiles(KeyValueStore store) throws Utils.ApplicationError {
+        // Called once, in initData, before the state is loaded from the store. The JSON files written
+        // by earlier versions are loaded as those versions did, then committed to the store in a single
+        // batch. The legacy files are deleted only after that commit, so an interrupted migration is
+        // either repeated or just finishes deleting.
+        File directory = getDataDirectory();
+        String[] filenames = directory.list();
+        if (filenames == null) {
+            return;
+        }
+        List<String> legacyFilenames = new ArrayList<String>();
+        for (String filename : filenames) {
+            if (filename.equals(LEGACY_SELF_FILENAME) ||
+                    filename.equals(LEGACY_SELF_STATUS_FILENAME) ||
+                    filename.equals(LEGACY_FRIENDS_FILENAME) ||
+                    filename.equals(LEGACY_LOCAL_RESOURCES_FILENAME) ||
+                    filename.equals(LEGACY_DOWNLOADS_FILENAME) ||
+                    filename.endsWith(LEGACY_FRIEND_STATUS_FILENAME_SUFFIX) ||
+                    filename.endsWith(LEGACY_COMMIT_FILENAME_SUFFIX)) {
+                legacyFilenames.add(filename);
+            }
+        }
+        if (legacyFilenames.isEmpty()) {
+            return;
+        }
+        if (store.getKeys("").isEmpty()) {
+            recoverCommitFiles();
+            KeyValueStore.Batch batch = new KeyValueStore.Batch();
+            Self self = readLegacyFile(LEGACY_SELF_FILENAME, SELF_CODEC);
+            if (self != null) {
+                batch.put(SELF_KEY, StorageCodec.encode(SELF_CODEC, self));
+            }
+            Status selfStatus = makeUnversionedStatus(readLegacyFile(LEGACY_SELF_STATUS_FILENAME, StorageCodec.json(Status.class)));
+            if (selfStatus != null) {
+                batch.put(SELF_STATUS_KEY, StorageCodec.encode(StorageCodec.BINARY_STATUS, selfStatus));
+            }
+            Collection<Friend> friends = readLegacyFile(LEGACY_FRIENDS_FILENAME, StorageCodec.jsonList(Friend[].class));
+            if (friends != null) {
+                for (Friend friend : friends) {
+                    Status status = makeUnversionedStatus(readLegacyFile(
+                            friend.mId + LEGACY_FRIEND_STATUS_FILENAME_SUFFIX, StorageCodec.json(Status.class)));
+                    if (status != null) {
+                        batch.put(FRIEND_STATUS_KEY_PREFIX + friend.mId, StorageCodec.encode(StorageCodec.BINARY_STATUS, status));
+                        // Legacy files have no read marks; their messages were all shown
+                        friend = new Friend(
+                                friend.mPublicIdentity,
+                                friend.mAddedTimestamp,
+                                friend.mLastSentStatusTimestamp,
+                                friend.mLastReceivedStatusTimestamp,
+                                getInitialReadMark(status.mMessages));
+                    }
+                    batch.put(FRIEND_KEY_PREFIX + friend.mId, StorageCodec.encode(StorageCodec.BINARY_FRIEND, friend));
+                }
+            }
+            Collection<LocalResource> localResources =
+                    readLegacyFile(LEGACY_LOCAL_RESOURCES_FILENAME, StorageCodec.jsonList(LocalResource[].class));
+            if (localResources != null) {
+                for (LocalResource localResource : localResources) {
+                    batch.put(
+                        LOCAL_RESOURCE_KEY_PREFIX + localResource.mResourceId,
+                        StorageCodec.encode(StorageCodec.BINARY_LOCAL_RESOURCE, localResource));
+                }
+            }
+            Collection<Download> downloads = readLegacyFile(LEGACY_DOWNLOADS_FILENAME, StorageCodec.jsonList(Download[].class));
+            if (downloads != null) {
+                for (Download download : downloads) {
+                    putDownloadBatchHelper(batch, download);
+                }
+            }
+            store.commit(batch);
+            Log.addEntry(LOG_TAG, "migrated data files: " + Integer.toString(legacyFilenames.size()));
+        }
+        for (String filename : legacyFilenames) {
+            new File(directory, filename).delete();
+        }
+    }
+
+    private static Status makeUnversionedStatus(Status status) {
+        // Legacy statuses predate status versions; JSON decodes a missing version as 0
+        if (status == null) {
+            return null;
+        }
+        return new Status(status.mMessages, status.mLocation, Protocol.NO_STATUS_VERSION);
+    }
+
+    private <T> T readLegacyFile(String filename, StorageCodec<T> codec) throws Utils.ApplicationError {
+        // Returns null when the file doesn't exist
+        try {
+            return readFile(filename, codec);
+        } catch (DataNotFoundError e) {
+            return null;
         }
     }
 
-    private static void deleteFile(String filename) throws Utils.ApplicationError {
-        File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-        File file = new File(directory, filename);
-        if (!file.delete()) {
-            if (file.exists()) {
-                throw new Utils.ApplicationError(LOG_TAG, "failed to delete file");
+    private <T> T readFile(String filename, StorageCodec<T> codec) throws Utils.ApplicationError, DataNotFoundError {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(new File(getDataDirectory(), filename));
+            return codec.decode(inputStream);
+        } catch (FileNotFoundException e) {
+            throw new DataNotFoundError();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                }
             }
         }
     }
@@ -30,6 +30,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -38,6 +40,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Pair;
 import ca.psiphon.ploggy.widgets.TimePickerPreference;
@@ -68,11 +71,19 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
     private final Handler mHandler;
     private Runnable mRestartTask;
     private Runnable mPollFriendsTask;
+    private Runnable mPushToFriendsTask;
+    // Self status changes are coalesced into one push to friends; see PushCoalescer
+    private final PushCoalescer mPushCoalescer;
     private ExecutorService mTaskThreadPool;
     private ExecutorService mPeerRequestThreadPool;
     enum FriendTaskType {PUSH_TO, PULL_FROM, DOWNLOAD_FROM};
     private EnumMap<FriendTaskType, HashMap<String, Runnable>> mFriendTasks;
     private EnumMap<FriendTaskType, HashMap<String, Future<?>>> mFriendTaskFutures;
+    // The self status version last pushed to each friend, from which the next push is a delta.
+    // In memory only: the first push to a friend after starting is a full status.
+    private final ConcurrentHashMap<String, Long> mPushedStatusVersions = new ConcurrentHashMap<String, Long>();
+    // Encoded self status deltas, shared by the push tasks and pull requests
+    private final StatusDeltaPayloadCache mSelfStatusPayloads = new StatusDeltaPayloadCache();
     private LocationMonitor mLocationMonitor;
     private WebServer mWebServer;
     private TorWrapper mTorWrapper;
@@ -94,6 +105,13 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         // TODO: distinct instance of preferences for each persona
         // e.g., getSharedPreferencesName("persona1");
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mPushCoalescer = new PushCoalescer(
+            new PushCoalescer.Clock() {
+                @Override
+                public long getTimeInMilliseconds() {
+                    return SystemClock.uptimeMillis();
+                }
+            });
     }
 
     public synchronized void start() throws Utils.ApplicationError {
@@ -105,6 +123,10 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         mPeerRequestThreadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
         mFriendTasks = new EnumMap<FriendTaskType, HashMap<String, Runnable>>(FriendTaskType.class);
         mFriendTaskFutures = new EnumMap<FriendTaskType, HashMap<String, Future<?>>>(FriendTaskType.class);
+        mPushCoalescer.setPolicy(
+                getIntPreference(R.string.preferencePushDelayInSeconds)*1000L,
+                getIntPreference(R.string.preferencePushMaximumDelayInSeconds)*1000L,
+                getIntPreference(R.string.preferencePushLocationDistanceInMeters));
         mLocationMonitor = new LocationMonitor(this);
         mLocationMonitor.start();
         startHiddenService();
@@ -117,6 +139,7 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
         Events.unregister(this);
         stopFriendPoll();
+        stopPushToFriends();
         stopHiddenService();
         if (mLocationMonitor != null) {
             mLocationMonitor.stop();
@@ -138,6 +161,19 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
             Utils.shutdownExecutorService(mPeerRequestThreadPool);
             mPeerRequestThreadPool = null;
         }
+        try {
+            // Friend sync timestamps are group committed; write any pending updates now, and
+            // wait for all changes, which are otherwise synced in the background, to be durable
+            Data data = Data.getInstance();
+            data.flushSyncState();
+            data.sync().get();
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to flush friend sync state");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.addEntry(LOG_TAG, "failed to sync data");
+        }
         Log.addEntry(LOG_TAG, "stopped");
     }
 
@@ -280,6 +316,40 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         }
     }
 
+    private void schedulePushToFriends(long delayInMilliseconds) {
+        // Replaces any scheduled push
+        if (mPushToFriendsTask == null) {
+            mPushToFriendsTask = new Runnable() {
+                @Override
+                public void run() {
+                    pushPendingToFriends();
+                }
+            };
+        } else {
+            mHandler.removeCallbacks(mPushToFriendsTask);
+        }
+        mHandler.postDelayed(mPushToFriendsTask, delayInMilliseconds);
+    }
+
+    private synchronized void pushPendingToFriends() {
+        // The push tasks send whatever the self status is when they run, so one push covers every
+        // pending change
+        try {
+            mPushCoalescer.onPushed(Data.getInstance().getSelfStatus());
+            pushToFriends();
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed push to friends after self status updated");
+        }
+    }
+
+    private void stopPushToFriends() {
+        // A pending push is dropped; friends get the changes when they next pull
+        if (mPushToFriendsTask != null) {
+            mHandler.removeCallbacks(mPushToFriendsTask);
+        }
+        mPushCoalescer.cancel();
+    }
+
     private synchronized void submitFriendTask(FriendTaskType taskType, String friendId) {
         // Schedules one push/pull/download per friend at a time.
         if (mFriendTasks.get(taskType) == null) {
@@ -337,8 +407,15 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                         return;
                     }
                     Data.Self self = data.getSelf();
-                    Data.Status selfStatus = data.getSelfStatus();
                     Data.Friend friend = data.getFriendById(finalFriendId);
+                    Long pushedVersion = mPushedStatusVersions.get(finalFriendId);
+                    Data.StatusDelta selfStatusDelta = data.getSelfStatusDelta(
+                            (pushedVersion != null) ? pushedVersion : Protocol.NO_STATUS_VERSION);
+                    if (!selfStatusDelta.isFullStatus() && selfStatusDelta.mVersion == selfStatusDelta.mBaseVersion) {
+                        // Friend already has this version
+                        return;
+                    }
+                    StatusDeltaPayloadCache.Payload payload = mSelfStatusPayloads.get(selfStatusDelta);
                     Log.addEntry(LOG_TAG, "push status to: " + friend.mPublicIdentity.mNickname);
                     WebClient.makeJsonPostRequest(
                             new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
@@ -347,11 +424,16 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                             friend.mPublicIdentity.mHiddenServiceHostname,
                             Protocol.WEB_SERVER_VIRTUAL_PORT,
                             Protocol.PUSH_STATUS_REQUEST_PATH,
-                            Json.toJson(selfStatus));
+                            Arrays.asList(new Pair<String, String>(Protocol.PUSH_STATUS_REQUEST_VERSION_PARAMETER, Long.toString(selfStatusDelta.mVersion))),
+                            payload.mBody);
+                    mPushedStatusVersions.put(finalFriendId, selfStatusDelta.mVersion);
                     data.updateFriendLastSentStatusTimestamp(finalFriendId);
                 } catch (Data.DataNotFoundError e) {
                     // Friend was deleted while push was enqueued. Ignore error.
                 } catch (Utils.ApplicationError e) {
+                    // The friend may not have the version the delta was based on (e.g., when it was
+                    // rejected), so the next push is a full status
+                    mPushedStatusVersions.remove(finalFriendId);
                     try {
                         Log.addEntry(LOG_TAG, "failed to push status to: " + data.getFriendById(finalFriendId).mPublicIdentity.mNickname);
                     } catch (Utils.ApplicationError e2) {
@@ -376,16 +458,46 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                     }
                     Data.Self self = data.getSelf();
                     Data.Friend friend = data.getFriendById(finalFriendId);
+                    // Request the changes since the stored status version, or the full status when there's none
+                    long baseVersion = Protocol.NO_STATUS_VERSION;
+                    try {
+                        baseVersion = data.getFriendStatus(finalFriendId).mVersion;
+                    } catch (Data.DataNotFoundError e) {
+                    }
+                    if (baseVersion == Protocol.NO_STATUS_VERSION) {
+                        // Without a stored status, the pull must not be answered with Not Modified
+                        WebClient.clearEntityTag(friend.mPublicIdentity.mX509Certificate, Protocol.PULL_STATUS_REQUEST_PATH);
+                    }
                     Log.addEntry(LOG_TAG, "pull status from: " + friend.mPublicIdentity.mNickname);
-                    String response = WebClient.makeGetRequest(
+                    String response = WebClient.makeConditionalGetRequest(
                             new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
                             friend.mPublicIdentity.mX509Certificate,
                             getTorSocksProxyPort(),
                             friend.mPublicIdentity.mHiddenServiceHostname,
                             Protocol.WEB_SERVER_VIRTUAL_PORT,
-                            Protocol.PULL_STATUS_REQUEST_PATH);
-                    Data.Status friendStatus = Json.fromJson(response, Data.Status.class);
-                    data.updateFriendStatus(finalFriendId, friendStatus);
+                            Protocol.PULL_STATUS_REQUEST_PATH,
+                            Arrays.asList(new Pair<String, String>(Protocol.PULL_STATUS_REQUEST_VERSION_PARAMETER, Long.toString(baseVersion))));
+                    if (response == null) {
+                        // Not modified since the last pulled status, which was applied; nothing to parse or store
+                        Log.addEntry(LOG_TAG, "status not modified: " + friend.mPublicIdentity.mNickname);
+                    } else {
+                        boolean applied = false;
+                        try {
+                            Data.StatusDelta friendStatusDelta = Json.fromJson(response, Data.StatusDelta.class);
+                            Protocol.validateStatusDelta(friendStatusDelta);
+                            data.updateFriendStatus(finalFriendId, friendStatusDelta);
+                            applied = true;
+                        } catch (Data.StatusVersionMismatchError e) {
+                            // The stored status was changed, by a push from the friend, since the request
+                            // was made; the next pull catches up
+                            Log.addEntry(LOG_TAG, "discarded pulled status from: " + friend.mPublicIdentity.mNickname);
+                        } finally {
+                            // The response's entity tag is only valid for the next pull once it's stored
+                            if (!applied) {
+                                WebClient.clearEntityTag(friend.mPublicIdentity.mX509Certificate, Protocol.PULL_STATUS_REQUEST_PATH);
+                            }
+                        }
+                    }
                     data.updateFriendLastReceivedStatusTimestamp(finalFriendId);
                 } catch (Data.DataNotFoundError e) {
                     // Friend was deleted while pull was enqueued. Ignore error.
@@ -480,6 +592,9 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     @Subscribe
     public synchronized void onUpdatedSelf(Events.UpdatedSelf updatedSelf) {
+        // The new identity's status versions start over
+        mPushedStatusVersions.clear();
+        mPushCoalescer.resetLastPushedStatus();
         // Apply new transport and hidden service credentials
         try {
             startHiddenService();
@@ -515,10 +630,16 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     @Subscribe
     public synchronized void onUpdatedSelfStatus(Events.UpdatedSelfStatus updatedSelfStatus) {
+        mSelfStatusPayloads.invalidate();
         try {
-            // Immediately push new status to all friends. If this fails for any reason,
-            // implicitly fall back to friends pulling status.
-            pushToFriends();
+            // Push new status to all friends, once changes are idle. If this fails for any reason,
+            // implicitly fall back to friends pulling status. Minor location changes aren't pushed,
+            // but are still available to pull.
+            long delay = mPushCoalescer.onStatusChanged(Data.getInstance().getSelfStatus());
+            if (delay == PushCoalescer.NO_PUSH) {
+                return;
+            }
+            schedulePushToFriends(delay);
         } catch (Utils.ApplicationError e) {
             Log.addEntry(LOG_TAG, "failed push to friends after self status updated");
         }
@@ -539,6 +660,7 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     @Subscribe
     public synchronized void onRemovedFriend(Events.RemovedFriend removedFriend) {
+        mPushedStatusVersions.remove(removedFriend.mId);
         try {
             startHiddenService();
         } catch (Utils.ApplicationError e) {
@@ -563,17 +685,17 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     // Note: not synchronized
     @Override
-    public Data.Status handlePullStatusRequest(String friendCertificate) throws Utils.ApplicationError {
-        // Friend is requesting (pulling) self status
+    public StatusDeltaPayloadCache.Payload handlePullStatusRequest(String friendCertificate, long baseVersion) throws Utils.ApplicationError {
+        // Friend is requesting (pulling) the changes to self status since the version they have
         // TODO: cancel any pending push to this friend?
         try {
             Data data = Data.getInstance();
             Data.Friend friend = data.getFriendByCertificate(friendCertificate);
-            Data.Status status = data.getSelfStatus();
+            StatusDeltaPayloadCache.Payload payload = mSelfStatusPayloads.get(data.getSelfStatusDelta(baseVersion));
             // TODO: we don't yet know the friend really received the response bytes
             data.updateFriendLastSentStatusTimestamp(friend.mId);
             Log.addEntry(LOG_TAG, "served pull status request for " + friend.mPublicIdentity.mNickname);
-            return status;
+            return payload;
         } catch (Data.DataNotFoundError e) {
             throw new Utils.ApplicationError(LOG_TAG, "failed to handle pull status request: friend not found");
         }
@@ -581,12 +703,31 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     // Note: not synchronized
     @Override
-    public void handlePushStatusRequest(String friendCertificate, Data.Status status) throws Utils.ApplicationError  {
-        // Friend is pushing their own status
+    public boolean isStalePushStatusRequest(String friendCertificate, long version) throws Utils.ApplicationError {
+        // Friend is pushing a status version; when we already have it, or a newer one, the
+        // pushed status is discarded without parsing it
+        try {
+            Data data = Data.getInstance();
+            Data.Friend friend = data.getFriendByCertificate(friendCertificate);
+            if (data.isStaleFriendStatus(friend.mId, version)) {
+                Log.addEntry(LOG_TAG, "discarded stale push status request for " + friend.mPublicIdentity.mNickname);
+                return true;
+            }
+            return false;
+        } catch (Data.DataNotFoundError e) {
+            throw new Utils.ApplicationError(LOG_TAG, "failed to handle push status request: friend not found");
+        }
+    }
+
+    // Note: not synchronized
+    @Override
+    public void handlePushStatusRequest(String friendCertificate, Data.StatusDelta statusDelta) throws Utils.ApplicationError  {
+        // Friend is pushing the changes to their own status. When the delta isn't based on the stored
+        // status, the request fails and the friend falls back to pushing the full status.
         try {
             Data data = Data.getInstance();
             Data.Friend friend = data.getFriendByCertificate(friendCertificate);
-            data.updateFriendStatus(friend.mId, status);
+            data.updateFriendStatus(friend.mId, statusDelta);
             // TODO: we don't yet know the friend really received the response bytes
             data.updateFriendLastReceivedStatusTimestamp(friend.mId);
             // TODO: Reschedule (delay) any outstanding pull from this friend
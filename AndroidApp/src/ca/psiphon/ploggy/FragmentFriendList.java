@@ -19,6 +19,7 @@
 
 package ca.psiphon.ploggy;
 
+import java.util.Date;
 import java.util.List;
 
 import android.app.AlertDialog;
@@ -207,6 +208,7 @@ public class FragmentFriendList extends ListFragment {
                 ImageView avatarImage = (ImageView)view.findViewById(R.id.friend_list_avatar_image);
                 TextView nicknameText = (TextView)view.findViewById(R.id.friend_list_nickname_text);
                 TextView lastTimestampText = (TextView)view.findViewById(R.id.friend_list_last_timestamp_text);
+                TextView newMessageCountText = (TextView)view.findViewById(R.id.friend_list_new_message_count_text);
                 TextView messageTimestampText = (TextView)view.findViewById(R.id.friend_list_message_timestamp_text);
                 TextView messageContentText = (TextView)view.findViewById(R.id.friend_list_message_content_text);
                 TextView locationTimestampText = (TextView)view.findViewById(R.id.friend_list_location_timestamp_text);
@@ -215,6 +217,7 @@ public class FragmentFriendList extends ListFragment {
 
                 // Not hiding missing fields
                 lastTimestampText.setText("");
+                newMessageCountText.setText("");
                 messageTimestampText.setText("");
                 messageContentText.setText("");
                 locationTimestampText.setText("");
@@ -232,16 +235,23 @@ public class FragmentFriendList extends ListFragment {
                         // Won't be able to compute distance
                     }
 
+                    int newMessageCount = data.getNewMessageCount(friend.mId);
+                    if (newMessageCount > 0) {
+                        newMessageCountText.setText(Integer.toString(newMessageCount));
+                    }
+
                     Data.Status friendStatus = data.getFriendStatus(friend.mId);
 
                     // Display most recent successful communication timestamp
                     String lastTimestamp = "";
-                    if (friend.mLastReceivedStatusTimestamp != null &&
-                            (friend.mLastSentStatusTimestamp == null ||
-                             friend.mLastReceivedStatusTimestamp.after(friend.mLastSentStatusTimestamp))) {
-                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, friend.mLastReceivedStatusTimestamp, true);
-                    } else if (friend.mLastSentStatusTimestamp != null) {
-                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, friend.mLastSentStatusTimestamp, true);
+                    Date lastReceivedStatusTimestamp = data.getFriendLastReceivedStatusTimestamp(friend.mId);
+                    Date lastSentStatusTimestamp = data.getFriendLastSentStatusTimestamp(friend.mId);
+                    if (lastReceivedStatusTimestamp != null &&
+                            (lastSentStatusTimestamp == null ||
+                             lastReceivedStatusTimestamp.after(lastSentStatusTimestamp))) {
+                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, lastReceivedStatusTimestamp, true);
+                    } else if (lastSentStatusTimestamp != null) {
+                        lastTimestamp = Utils.DateFormatter.formatRelativeDatetime(mContext, lastSentStatusTimestamp, true);
                     }
                     lastTimestampText.setText(lastTimestamp);
                     if (lastTimestamp.length() > 0) {
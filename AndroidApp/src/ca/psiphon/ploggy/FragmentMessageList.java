@@ -26,6 +26,7 @@ import android.support.v4.app.FragmentTransaction;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 import com.squareup.otto.Subscribe;
@@ -75,6 +76,18 @@ public class FragmentMessageList extends Fragment {
         super.onActivityCreated(savedInstanceState);
         if (mMessageAdapter != null) {
             mMessagesListView.setAdapter(mMessageAdapter);
+            // The adapter holds only the visible rows plus a prefetch margin
+            mMessagesListView.setOnScrollListener(
+                new AbsListView.OnScrollListener() {
+                    @Override
+                    public void onScrollStateChanged(AbsListView view, int scrollState) {
+                    }
+
+                    @Override
+                    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                        mMessageAdapter.setVisibleRowCount(visibleItemCount);
+                    }
+                });
         }
         Events.register(this);
     }
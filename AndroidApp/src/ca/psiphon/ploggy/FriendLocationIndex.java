@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory spatial index over friends' latest locations.
+ *
+ * Locations are bucketed into a grid of CELL_SIZE_IN_DEGREES latitude/longitude cells. A radius query
+ * visits only the cells overlapping the circle's bounding box, or every location when that's fewer.
+ * A nearest query is a sequence of radius queries, doubling the radius until enough friends are found;
+ * once a query would visit every location, the nearest are instead selected in one pass.
+ *
+ * Distances are great-circle (haversine) distances, which differ from the ellipsoidal distances
+ * given by Utils.calculateLocationDistanceInMeters by well under 1%. Candidates are compared by the
+ * haversine term, with each entry's trigonometry precomputed, so a distance is only computed for a
+ * result.
+ *
+ * All methods are synchronized; queries take well under a millisecond for thousands of friends.
+ */
+public class FriendLocationIndex {
+
+    private static final double CELL_SIZE_IN_DEGREES = 0.1;
+    private static final int LATITUDE_CELL_COUNT = (int)Math.ceil(180/CELL_SIZE_IN_DEGREES);
+    private static final int LONGITUDE_CELL_COUNT = (int)Math.ceil(360/CELL_SIZE_IN_DEGREES);
+    private static final double EARTH_RADIUS_IN_METERS = 6371009;
+    private static final double MAXIMUM_DISTANCE_IN_METERS = EARTH_RADIUS_IN_METERS*Math.PI;
+    private static final int INITIAL_NEAREST_RADIUS_IN_METERS = 1000;
+
+    public static class Result {
+        public final String mFriendId;
+        public final Data.Location mLocation;
+        public final int mDistanceInMeters;
+
+        public Result(String friendId, Data.Location location, int distanceInMeters) {
+            mFriendId = friendId;
+            mLocation = location;
+            mDistanceInMeters = distanceInMeters;
+        }
+    }
+
+    private static class Entry {
+        public final String mFriendId;
+        public final Data.Location mLocation;
+        public final int mCell;
+        public final double mLatitudeInRadians;
+        public final double mLongitudeInRadians;
+        public final double mLatitudeCosine;
+
+        public Entry(String friendId, Data.Location location) {
+            mFriendId = friendId;
+            mLocation = location;
+            mCell = getCell(getLatitudeCell(location.mLatitude), getLongitudeCell(location.mLongitude));
+            mLatitudeInRadians = Math.toRadians(location.mLatitude);
+            mLongitudeInRadians = Math.toRadians(location.mLongitude);
+            mLatitudeCosine = Math.cos(mLatitudeInRadians);
+        }
+    }
+
+    private static class Point {
+        // A query point; candidates are compared by haversine term, which increases with distance
+        public final double mLatitude;
+        public final double mLongitude;
+        public final double mLatitudeInRadians;
+        public final double mLongitudeInRadians;
+        public final double mLatitudeCosine;
+
+        public Point(double latitude, double longitude) {
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mLatitudeInRadians = Math.toRadians(latitude);
+            mLongitudeInRadians = Math.toRadians(longitude);
+            mLatitudeCosine = Math.cos(mLatitudeInRadians);
+        }
+
+        public double getHaversine(Entry entry) {
+            double sinHalfLatitude = Math.sin((entry.mLatitudeInRadians - mLatitudeInRadians)/2);
+            double sinHalfLongitude = Math.sin((entry.mLongitudeInRadians - mLongitudeInRadians)/2);
+            return sinHalfLatitude*sinHalfLatitude + mLatitudeCosine*entry.mLatitudeCosine*sinHalfLongitude*sinHalfLongitude;
+        }
+
+        public Result getResult(Entry entry, double haversine) {
+            return new Result(entry.mFriendId, entry.mLocation, getDistanceInMeters(haversine));
+        }
+    }
+
+    private static class Candidate {
+        public final Entry mEntry;
+        public final double mHaversine;
+
+        public Candidate(Entry entry, double haversine) {
+            mEntry = entry;
+            mHaversine = haversine;
+        }
+    }
+
+    private static final Comparator<Result> DISTANCE_COMPARATOR =
+        new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return (a.mDistanceInMeters < b.mDistanceInMeters) ? -1 : ((a.mDistanceInMeters == b.mDistanceInMeters) ? 0 : 1);
+            }
+        };
+
+    private static final Comparator<Candidate> FURTHEST_FIRST_COMPARATOR =
+        new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(b.mHaversine, a.mHaversine);
+            }
+        };
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final HashMap<Integer, List<Entry>> mCells = new HashMap<Integer, List<Entry>>();
+
+    public synchronized void put(String friendId, Data.Location location) {
+        // A location without a timestamp, as in a blank status, is no location
+        remove(friendId);
+        if (location == null || location.mTimestamp == null) {
+            return;
+        }
+        Entry entry = new Entry(friendId, location);
+        mEntries.put(friendId, entry);
+        List<Entry> cell = mCells.get(entry.mCell);
+        if (cell == null) {
+            cell = new ArrayList<Entry>();
+            mCells.put(entry.mCell, cell);
+        }
+        cell.add(entry);
+    }
+
+    public synchronized void remove(String friendId) {
+        Entry entry = mEntries.remove(friendId);
+        if (entry == null) {
+            return;
+        }
+        List<Entry> cell = mCells.get(entry.mCell);
+        cell.remove(entry);
+        if (cell.isEmpty()) {
+            mCells.remove(entry.mCell);
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mCells.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized List<Result> getWithinRadius(double latitude, double longitude, int radiusInMeters) {
+        // Returns the friends within radiusInMeters, nearest first
+        List<Result> results = new ArrayList<Result>();
+        addWithinRadiusHelper(results, new Point(latitude, longitude), radiusInMeters, true);
+        Collections.sort(results, DISTANCE_COMPARATOR);
+        return results;
+    }
+
+    public synchronized List<Result> getNearest(double latitude, double longitude, int count) {
+        // Returns up to count friends, nearest first
+        List<Result> results = new ArrayList<Result>();
+        if (count <= 0 || mEntries.isEmpty()) {
+            return results;
+        }
+        Point point = new Point(latitude, longitude);
+        int target = Math.min(count, mEntries.size());
+        double radiusInMeters = INITIAL_NEAREST_RADIUS_IN_METERS;
+        while (radiusInMeters < MAXIMUM_DISTANCE_IN_METERS) {
+            if (!addWithinRadiusHelper(results, point, (int)radiusInMeters, false)) {
+                // Growing the radius would visit every location
+                break;
+            }
+            if (results.size() >= target) {
+                Collections.sort(results, DISTANCE_COMPARATOR);
+                return new ArrayList<Result>(results.subList(0, target));
+            }
+            results.clear();
+            radiusInMeters *= 2;
+        }
+        // Select the nearest in one pass over every location
+        PriorityQueue<Candidate> nearest = new PriorityQueue<Candidate>(target, FURTHEST_FIRST_COMPARATOR);
+        for (Entry entry : mEntries.values()) {
+            double haversine = point.getHaversine(entry);
+            if (nearest.size() < target) {
+                nearest.add(new Candidate(entry, haversine));
+            } else if (haversine < nearest.peek().mHaversine) {
+                nearest.poll();
+                nearest.add(new Candidate(entry, haversine));
+            }
+        }
+        results.clear();
+        for (Candidate candidate : nearest) {
+            results.add(point.getResult(candidate.mEntry, candidate.mHaversine));
+        }
+        Collections.sort(results, DISTANCE_COMPARATOR);
+        return results;
+    }
+
+    private boolean addWithinRadiusHelper(List<Result> results, Point point, int radiusInMeters, boolean visitAll) {
+        // Adds the friends within radiusInMeters, unordered, visiting only the cells overlapping the
+        // circle's bounding box, or every location when that's cheaper and visitAll is set; returns
+        // false, adding nothing, when it's cheaper but visitAll isn't set
+        // Distances are rounded, so the bounding box and haversine bound are padded by a meter
+        double angularRadius = Math.min(Math.PI, (radiusInMeters + 1)/EARTH_RADIUS_IN_METERS);
+        double sinHalfAngularRadius = Math.sin(angularRadius/2);
+        double maximumHaversine = sinHalfAngularRadius*sinHalfAngularRadius;
+        double latitudeRadius = Math.toDegrees(angularRadius);
+        double minimumLatitude = point.mLatitude - latitudeRadius;
+        double maximumLatitude = point.mLatitude + latitudeRadius;
+        // The circle's longitude extent; all longitudes when it contains a pole
+        double longitudeRadius = 180;
+        if (maximumLatitude < 90 && minimumLatitude > -90) {
+            double sine = Math.sin(angularRadius)/point.mLatitudeCosine;
+            if (sine < 1) {
+                longitudeRadius = Math.toDegrees(Math.asin(sine));
+            }
+        }
+        int minimumLatitudeCell = getLatitudeCell(minimumLatitude);
+        int maximumLatitudeCell = getLatitudeCell(maximumLatitude);
+        int longitudeCellSpan = (longitudeRadius >= 180) ?
+                LONGITUDE_CELL_COUNT : (int)Math.ceil(2*longitudeRadius/CELL_SIZE_IN_DEGREES) + 1;
+        longitudeCellSpan = Math.min(longitudeCellSpan, LONGITUDE_CELL_COUNT);
+        long cellCount = (long)(maximumLatitudeCell - minimumLatitudeCell + 1)*longitudeCellSpan;
+        Collection<List<Entry>> cells;
+        if (cellCount > mCells.size()) {
+            // Fewer occupied cells than cells in the bounding box
+            if (!visitAll) {
+                return false;
+            }
+            cells = mCells.values();
+        } else {
+            cells = new ArrayList<List<Entry>>();
+            int firstLongitudeCell = (longitudeCellSpan == LONGITUDE_CELL_COUNT) ?
+                    0 : getLongitudeCell(point.mLongitude - longitudeRadius);
+            for (int latitudeCell = minimumLatitudeCell; latitudeCell <= maximumLatitudeCell; latitudeCell++) {
+                for (int i = 0; i < longitudeCellSpan; i++) {
+                    List<Entry> cell = mCells.get(getCell(latitudeCell, (firstLongitudeCell + i) % LONGITUDE_CELL_COUNT));
+                    if (cell != null) {
+                        cells.add(cell);
+                    }
+                }
+            }
+        }
+        for (List<Entry> cell : cells) {
+            for (Entry entry : cell) {
+                double haversine = point.getHaversine(entry);
+                if (haversine <= maximumHaversine) {
+                    Result result = point.getResult(entry, haversine);
+                    if (result.mDistanceInMeters <= radiusInMeters) {
+                        results.add(result);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    public static int calculateDistanceInMeters(
+            double latitudeA,
+            double longitudeA,
+            double latitudeB,
+            double longitudeB) {
+        double sinHalfLatitude = Math.sin(Math.toRadians(latitudeB - latitudeA)/2);
+        double sinHalfLongitude = Math.sin(Math.toRadians(longitudeB - longitudeA)/2);
+        return getDistanceInMeters(
+                sinHalfLatitude*sinHalfLatitude +
+                Math.cos(Math.toRadians(latitudeA))*Math.cos(Math.toRadians(latitudeB))*sinHalfLongitude*sinHalfLongitude);
+    }
+
+    private static int getDistanceInMeters(double haversine) {
+        return (int)Math.round(2*EARTH_RADIUS_IN_METERS*Math.asin(Math.min(1, Math.sqrt(haversine))));
+    }
+
+    private static int getLatitudeCell(double latitude) {
+        return Math.max(0, Math.min(LATITUDE_CELL_COUNT - 1, (int)Math.floor((latitude + 90)/CELL_SIZE_IN_DEGREES)));
+    }
+
+    private static int getLongitudeCell(double longitude) {
+        double normalized = ((longitude + 180) % 360 + 360) % 360;
+        return Math.min(LONGITUDE_CELL_COUNT - 1, (int)Math.floor(normalized/CELL_SIZE_IN_DEGREES));
+    }
+
+    private static int getCell(int latitudeCell, int longitudeCell) {
+        return latitudeCell*LONGITUDE_CELL_COUNT + longitudeCell;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+/**
+ * Hybrid logical clock, which issues status versions.
+ *
+ * A timestamp is a wall clock time in milliseconds, in the high 48 bits, and a logical counter, in
+ * the low 16 bits, so timestamps compare as longs and stay close to the wall clock. Timestamps
+ * issued by a clock strictly increase, even when the wall clock is set back or the clock is restarted
+ * (once restored with the last timestamp it issued), and are greater than every timestamp the clock
+ * has been updated with. Updates more than MAXIMUM_DRIFT_IN_MILLISECONDS ahead of the local
+ * wall clock are ignored, so a peer with a bad clock can't push local timestamps far into the future.
+ */
+public class HybridLogicalClock {
+
+    private static final int LOGICAL_BITS = 16;
+    private static final long MAXIMUM_DRIFT_IN_MILLISECONDS = 60*60*1000;
+
+    private long mLastTimestamp;
+
+    public synchronized long now() {
+        return now(System.currentTimeMillis());
+    }
+
+    public synchronized long now(long wallClockMilliseconds) {
+        long timestamp = wallClockMilliseconds << LOGICAL_BITS;
+        mLastTimestamp = (timestamp > mLastTimestamp) ? timestamp : mLastTimestamp + 1;
+        return mLastTimestamp;
+    }
+
+    public synchronized void restore(long lastTimestamp) {
+        // Unlike update, not bounded by the wall clock: the timestamp was issued by this clock
+        if (lastTimestamp > mLastTimestamp) {
+            mLastTimestamp = lastTimestamp;
+        }
+    }
+
+    public synchronized void update(long timestamp) {
+        update(timestamp, System.currentTimeMillis());
+    }
+
+    public synchronized void update(long timestamp, long wallClockMilliseconds) {
+        if (getWallClockMilliseconds(timestamp) > wallClockMilliseconds + MAXIMUM_DRIFT_IN_MILLISECONDS) {
+            return;
+        }
+        if (timestamp > mLastTimestamp) {
+            mLastTimestamp = timestamp;
+        }
+    }
+
+    public static long getWallClockMilliseconds(long timestamp) {
+        return timestamp >> LOGICAL_BITS;
+    }
+}
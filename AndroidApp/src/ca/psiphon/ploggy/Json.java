@@ -19,11 +19,13 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.Reader;
 import java.lang.reflect.Field;
 
 import com.google.gson.FieldNamingStrategy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
 /**
@@ -55,6 +57,24 @@ public class Json {
         }
     }
 
+    public static void toJson(Object object, Appendable writer) throws Utils.ApplicationError {
+        try {
+            mSerializer.toJson(object, writer);
+        } catch (JsonIOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static <T> T fromJson(Reader reader, Class<T> type) throws Utils.ApplicationError {
+        try {
+            return mSerializer.fromJson(reader, type);
+        } catch (JsonIOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (JsonSyntaxException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
     // TODO: remove this function if not used
     /*
     public static <T> ArrayList<T> fromJsonStream(InputStream inputStream, Class<T> type) throws Utils.ApplicationError {
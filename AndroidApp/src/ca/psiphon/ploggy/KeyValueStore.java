@@ -0,0 +1,749 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded key-value store in a single, log-structured file.
+ *
+ * The file is a header followed by a sequence of commits. Each commit is a batch of puts and
+ * deletes, framed by its length and a CRC32 of its contents; a batch is applied all or nothing.
+ * On open, the file is scanned and an in-memory index, ordered by key, maps each live key to the
+ * location of its latest value. A final commit that's incomplete or corrupt, as left by a crash
+ * mid-write, is truncated away.
+ *
+ * Values are read through a read-only memory mapping of the file, which is replaced when a read
+ * refers past its end. The new mapping at least doubles, and the file is extended to its size with
+ * zeros, so a remap is rare; a zero commit length marks the end of the commits, and the padding is
+ * truncated on recovery and on close. Commits are appended through the file channel.
+ *
+ * Overwritten and deleted values are left in place until the file is compacted: the live values
+ * are copied, in key order, to a new file which is then reopened, verifying it, and atomically
+ * replaces the store file. Should the store file be replaced but the new generation not be
+ * published, the store file is reopened; failing that, the store is closed, as committing to the
+ * replaced file would lose the commits. The compaction policy, needsCompaction, is to compact once
+ * the file is at least MINIMUM_COMPACTION_SIZE and more than half of it is dead.
+ *
+ * Writers (commit, compact, close) are serialized. Readers don't lock: a reader uses the
+ * generation (file, mapping and index) that was current when it started, and retries with the
+ * new generation when a compaction closes the file under it.
+ *
+ * Durability is set with setDurability. A commit is written to the file before commit returns, and
+ * is then durable once the file is synced; commit returns a CommitFuture which completes at that
+ * point. Syncs are group commits: a sync covers every commit written before it started, so concurrent
+ * committers waiting on their futures share one sync, and while one sync is in progress the commits
+ * that arrive queue up for the next. Compaction syncs the new file and its directory before
+ * publishing it, which also makes all prior commits durable.
+ */
+public class KeyValueStore {
+
+    private static final String LOG_TAG = "Key Value Store";
+
+    private static final int MAGIC = 0x504c4b56; // "PLKV"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int COMMIT_HEADER_SIZE = 8;
+    private static final byte OPERATION_PUT = 1;
+    private static final byte OPERATION_DELETE = 2;
+    // Approximate per-entry framing overhead, for live size accounting
+    private static final int ENTRY_OVERHEAD = 9;
+    private static final long MINIMUM_COMPACTION_SIZE = 256*1024;
+    private static final int COMPACTION_BATCH_SIZE = 256*1024;
+    private static final String COMPACTION_FILENAME_SUFFIX = ".compact";
+    private static final int BATCHED_SYNC_INTERVAL_IN_MILLISECONDS = 100;
+    private static final long MINIMUM_MAP_SIZE = 64*1024;
+
+    public enum CompactionFailure {BEFORE_RENAME, AFTER_RENAME};
+
+    public enum Durability {
+        // Commits aren't synced; they survive an app crash but a device crash or power loss may lose them
+        NONE,
+        // Commits are synced in the background within BATCHED_SYNC_INTERVAL_IN_MILLISECONDS
+        BATCHED,
+        // As BATCHED, but the committer is expected to wait on the CommitFuture
+        SYNC
+    }
+
+    public class CommitFuture implements Future<Void> {
+        private final long mSequenceNumber;
+        private final boolean mSyncRequired;
+
+        private CommitFuture(long sequenceNumber, boolean syncRequired) {
+            mSequenceNumber = sequenceNumber;
+            mSyncRequired = syncRequired;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            if (!mSyncRequired) {
+                return true;
+            }
+            synchronized (mSyncLock) {
+                return mSyncedSequenceNumber >= mSequenceNumber;
+            }
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            try {
+                return get(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (mSyncRequired) {
+                try {
+                    awaitSync(mSequenceNumber, unit.toNanos(timeout));
+                } catch (IOException e) {
+                    throw new ExecutionException(e);
+                }
+            }
+            return null;
+        }
+    }
+
+    public static class Batch {
+        // A null value is a delete; a later operation on the same key replaces an earlier one
+        private final LinkedHashMap<String, byte[]> mOperations = new LinkedHashMap<String, byte[]>();
+
+        public Batch put(String key, byte[] value) {
+            if (value == null) {
+                throw new IllegalArgumentException("null value");
+            }
+            mOperations.put(key, value);
+            return this;
+        }
+
+        public Batch delete(String key) {
+            mOperations.put(key, null);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return mOperations.isEmpty();
+        }
+    }
+
+    private static class ValueLocation {
+        public final long mOffset;
+        public final int mLength;
+        public final int mSize;
+
+        public ValueLocation(long offset, int length, int keyLength) {
+            mOffset = offset;
+            mLength = length;
+            mSize = keyLength + length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static class Generation {
+        public final RandomAccessFile mFile;
+        public final FileChannel mChannel;
+        public final ConcurrentSkipListMap<String, ValueLocation> mIndex;
+        public volatile MappedByteBuffer mMap;
+        // Modified only by writers
+        public long mEndOffset;
+        public long mLiveSize;
+
+        public Generation(RandomAccessFile file) {
+            mFile = file;
+            mChannel = file.getChannel();
+            mIndex = new ConcurrentSkipListMap<String, ValueLocation>();
+        }
+
+        public MappedByteBuffer getMap(long requiredSize) throws IOException {
+            MappedByteBuffer map = mMap;
+            if (map != null && map.capacity() >= requiredSize) {
+                return map;
+            }
+            synchronized (this) {
+                map = mMap;
+                if (map == null || map.capacity() < requiredSize) {
+                    long size = Math.max(requiredSize, (map == null) ? MINIMUM_MAP_SIZE : 2L*map.capacity());
+                    size = Math.min(size, Integer.MAX_VALUE);
+                    if (mChannel.size() < size) {
+                        // Zero padding, which recover stops at
+                        mFile.setLength(size);
+                    }
+                    map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    mMap = map;
+                }
+                return map;
+            }
+        }
+
+        public synchronized MappedByteBuffer mapExactly(long size) throws IOException {
+            // For recover, which may truncate the file; the mapping is dropped afterwards
+            mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mMap;
+        }
+    }
+
+    private final File mFile;
+    private volatile Generation mGeneration;
+    private volatile Durability mDurability;
+    // Commits are numbered in order; all commits up to mSyncedSequenceNumber are durable
+    private final Object mSyncLock = new Object();
+    private long mCommitSequenceNumber;
+    private long mSyncedSequenceNumber;
+    private boolean mSyncInProgress;
+    private boolean mSyncScheduled;
+    private int mSyncCount;
+    private ScheduledExecutorService mSyncExecutor;
+    private CompactionFailure mCompactionFailureForTesting;
+
+    private KeyValueStore(File file, Durability durability) {
+        mFile = file;
+        mDurability = durability;
+    }
+
+    public static KeyValueStore open(File file, Durability durability) throws Utils.ApplicationError {
+        KeyValueStore store = new KeyValueStore(file, durability);
+        // A compaction file is only complete once it has replaced the store file
+        new File(file.getPath() + COMPACTION_FILENAME_SUFFIX).delete();
+        boolean created = !file.exists();
+        try {
+            store.mGeneration = openGeneration(file);
+            if (created && durability != Durability.NONE) {
+                store.mGeneration.mChannel.force(false);
+                syncDirectory(file.getParentFile());
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        return store;
+    }
+
+    public void setDurability(Durability durability) {
+        mDurability = durability;
+    }
+
+    private static Generation openGeneration(File file) throws IOException, Utils.ApplicationError {
+        Generation generation = new Generation(new RandomAccessFile(file, "rw"));
+        boolean success = false;
+        try {
+            long size = generation.mChannel.size();
+            if (size < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+                generation.mChannel.truncate(0);
+                writeFully(generation.mChannel, header, 0);
+                generation.mEndOffset = HEADER_SIZE;
+            } else {
+                generation.mEndOffset = recover(generation, size);
+            }
+            success = true;
+            return generation;
+        } finally {
+            if (!success) {
+                generation.mFile.close();
+            }
+        }
+    }
+
+    private static long recover(Generation generation, long size) throws IOException, Utils.ApplicationError {
+        // Rebuilds the index from the commits in the file; returns the end of the last valid commit
+        MappedByteBuffer map = generation.mapExactly(size);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT_VERSION) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid store file");
+        }
+        long offset = HEADER_SIZE;
+        boolean padded = false;
+        while (offset + COMMIT_HEADER_SIZE <= size) {
+            int length = map.getInt((int)offset);
+            int checksum = map.getInt((int)offset + 4);
+            if (length == 0) {
+                // Map padding; see getMap
+                padded = true;
+                break;
+            }
+            if (length < 0 || offset + COMMIT_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer body = map.duplicate();
+            body.position((int)offset + COMMIT_HEADER_SIZE);
+            body.limit((int)offset + COMMIT_HEADER_SIZE + length);
+            if (computeChecksum(body.slice()) != checksum) {
+                break;
+            }
+            applyCommit(generation, body.slice(), offset + COMMIT_HEADER_SIZE);
+            offset += COMMIT_HEADER_SIZE + length;
+        }
+        if (offset < size) {
+            if (!padded) {
+                Log.addEntry(LOG_TAG, "discarded incomplete commit");
+            }
+            generation.mChannel.truncate(offset);
+        }
+        // Mapped again, with headroom, by the first read
+        generation.mMap = null;
+        return offset;
+    }
+
+    private static void applyCommit(Generation generation, ByteBuffer body, long bodyOffset) throws IOException {
+        int count = body.getInt();
+        for (int i = 0; i < count; i++) {
+            byte operation = body.get();
+            byte[] keyBytes = new byte[body.getInt()];
+            body.get(keyBytes);
+            String key = new String(keyBytes, "UTF-8");
+            ValueLocation previousLocation;
+            if (operation == OPERATION_PUT) {
+                int length = body.getInt();
+                ValueLocation location = new ValueLocation(bodyOffset + body.position(), length, keyBytes.length);
+                body.position(body.position() + length);
+                previousLocation = generation.mIndex.put(key, location);
+                generation.mLiveSize += location.mSize;
+            } else if (operation == OPERATION_DELETE) {
+                previousLocation = generation.mIndex.remove(key);
+            } else {
+                throw new IOException("invalid operation");
+            }
+            if (previousLocation != null) {
+                generation.mLiveSize -= previousLocation.mSize;
+            }
+        }
+    }
+
+    public byte[] get(String key) throws Utils.ApplicationError {
+        // Returns null when there's no value for the key
+        while (true) {
+            Generation generation = getGeneration();
+            ValueLocation location = generation.mIndex.get(key);
+            if (location == null) {
+                return null;
+            }
+            try {
+                return read(generation, location);
+            } catch (IOException e) {
+                if (generation == mGeneration) {
+                    throw new Utils.ApplicationError(LOG_TAG, e);
+                }
+                // The file was compacted during the read; retry with the current generation
+            }
+        }
+    }
+
+    public List<String> getKeys(String prefix) throws Utils.ApplicationError {
+        // Returns the keys beginning with prefix, in order
+        return new ArrayList<String>(
+                getGeneration().mIndex.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+
+    public synchronized CommitFuture commit(Batch batch) throws Utils.ApplicationError {
+        // The commit is visible to readers on return; the future completes when it's durable
+        Generation generation = getGeneration();
+        Durability durability = mDurability;
+        if (batch.isEmpty()) {
+            return new CommitFuture(0, false);
+        }
+        try {
+            long offset = generation.mEndOffset;
+            ByteBuffer commit = encodeCommit(batch);
+            try {
+                writeFully(generation.mChannel, commit, offset);
+            } catch (IOException e) {
+                // Don't leave a partial commit for the next commit to be appended after
+                generation.mChannel.truncate(offset);
+                throw e;
+            }
+            commit.position(COMMIT_HEADER_SIZE);
+            applyCommit(generation, commit.slice(), offset + COMMIT_HEADER_SIZE);
+            generation.mEndOffset = offset + commit.limit();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        long sequenceNumber;
+        synchronized (mSyncLock) {
+            sequenceNumber = ++mCommitSequenceNumber;
+        }
+        if (durability != Durability.NONE) {
+            scheduleSync();
+        }
+        return new CommitFuture(sequenceNumber, durability != Durability.NONE);
+    }
+
+    public CommitFuture sync() {
+        // Returns a future which completes when all commits made so far are durable, whatever the durability
+        synchronized (mSyncLock) {
+            return new CommitFuture(mCommitSequenceNumber, true);
+        }
+    }
+
+    public int getSyncCount() {
+        synchronized (mSyncLock) {
+            return mSyncCount;
+        }
+    }
+
+    private void scheduleSync() {
+        // In case no committer waits, a sync is run in the background; when committers do wait, it
+        // usually finds their commits already synced
+        synchronized (mSyncLock) {
+            if (mSyncScheduled) {
+                return;
+            }
+            mSyncScheduled = true;
+            if (mSyncExecutor == null) {
+                mSyncExecutor = Executors.newSingleThreadScheduledExecutor();
+            }
+            mSyncExecutor.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        long sequenceNumber;
+                        synchronized (mSyncLock) {
+                            mSyncScheduled = false;
+                            sequenceNumber = mCommitSequenceNumber;
+                        }
+                        try {
+                            awaitSync(sequenceNumber, Long.MAX_VALUE);
+                        } catch (IOException e) {
+                            Log.addEntry(LOG_TAG, "failed to sync store");
+                        } catch (InterruptedException e) {
+                        } catch (TimeoutException e) {
+                        }
+                    }
+                },
+                BATCHED_SYNC_INTERVAL_IN_MILLISECONDS,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void awaitSync(long sequenceNumber, long timeoutInNanoseconds)
+            throws IOException, InterruptedException, TimeoutException {
+        // The first waiter to find no sync in progress runs one, for all commits written so far;
+        // other waiters wait for it and, if their commit came too late for it, for the next one
+        long deadline = System.nanoTime() + Math.min(timeoutInNanoseconds, Long.MAX_VALUE/2);
+        while (true) {
+            long targetSequenceNumber;
+            Generation generation;
+            synchronized (mSyncLock) {
+                if (mSyncedSequenceNumber >= sequenceNumber) {
+                    return;
+                }
+                if (mSyncInProgress) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(mSyncLock, remaining);
+                    continue;
+                }
+                mSyncInProgress = true;
+                targetSequenceNumber = mCommitSequenceNumber;
+                generation = mGeneration;
+            }
+            boolean synced = false;
+            try {
+                if (generation != null) {
+                    generation.mChannel.force(false);
+                }
+                synced = true;
+            } catch (IOException e) {
+                // When the file was replaced by compaction, or closed, during the sync, its
+                // commits are already durable
+                if (generation == mGeneration) {
+                    throw e;
+                }
+                synced = true;
+            } finally {
+                synchronized (mSyncLock) {
+                    mSyncInProgress = false;
+                    if (synced) {
+                        mSyncedSequenceNumber = Math.max(mSyncedSequenceNumber, targetSequenceNumber);
+                        mSyncCount++;
+                    }
+                    mSyncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void markAllSynced() {
+        synchronized (mSyncLock) {
+            mSyncedSequenceNumber = mCommitSequenceNumber;
+            mSyncLock.notifyAll();
+        }
+    }
+
+    public synchronized boolean needsCompaction() {
+        Generation generation = mGeneration;
+        if (generation == null) {
+            return false;
+        }
+        long deadSize = generation.mEndOffset - HEADER_SIZE - generation.mLiveSize;
+        return generation.mEndOffset >= MINIMUM_COMPACTION_SIZE && deadSize > generation.mLiveSize;
+    }
+
+    public synchronized void compact() throws Utils.ApplicationError {
+        Generation generation = getGeneration();
+        File compactionFile = new File(mFile.getPath() + COMPACTION_FILENAME_SUFFIX);
+        compactionFile.delete();
+        Generation compactedGeneration = null;
+        try {
+            Generation writeGeneration = openGeneration(compactionFile);
+            try {
+                Batch batch = new Batch();
+                int batchSize = 0;
+                for (Map.Entry<String, ValueLocation> entry : generation.mIndex.entrySet()) {
+                    batch.put(entry.getKey(), read(generation, entry.getValue()));
+                    batchSize += entry.getValue().mSize;
+                    if (batchSize >= COMPACTION_BATCH_SIZE) {
+                        writeCompactionBatch(writeGeneration, batch);
+                        batch = new Batch();
+                        batchSize = 0;
+                    }
+                }
+                writeCompactionBatch(writeGeneration, batch);
+                if (mDurability != Durability.NONE) {
+                    writeGeneration.mChannel.force(false);
+                }
+            } finally {
+                writeGeneration.mFile.close();
+            }
+            // The index is rebuilt from the new file, which also verifies it, before it replaces the
+            // store file; the open file remains the new generation's after the rename
+            compactedGeneration = openGeneration(compactionFile);
+            if (compactedGeneration.mIndex.size() != generation.mIndex.size()) {
+                throw new IOException("compacted store file is incomplete");
+            }
+            if (mCompactionFailureForTesting == CompactionFailure.BEFORE_RENAME) {
+                throw new IOException("compaction failure for testing");
+            }
+            if (!compactionFile.renameTo(mFile)) {
+                throw new IOException("failed to replace store file");
+            }
+        } catch (IOException e) {
+            mCompactionFailureForTesting = null;
+            closeQuietly(compactedGeneration);
+            compactionFile.delete();
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        // The store file is replaced: from here, the old generation's file is unlinked, and must not
+        // be committed to
+        long previousSize = generation.mEndOffset;
+        try {
+            if (mCompactionFailureForTesting == CompactionFailure.AFTER_RENAME) {
+                throw new IOException("compaction failure for testing");
+            }
+            if (mDurability != Durability.NONE) {
+                syncDirectory(mFile.getParentFile());
+                // Commits are serialized with compaction, so the new file holds every commit
+                markAllSynced();
+            }
+            mGeneration = compactedGeneration;
+        } catch (IOException e) {
+            mCompactionFailureForTesting = null;
+            closeQuietly(compactedGeneration);
+            closeQuietly(generation);
+            recoverStoreFile();
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        closeQuietly(generation);
+        Log.addEntry(LOG_TAG, String.format("compacted store: %d to %d bytes", previousSize, compactedGeneration.mEndOffset));
+    }
+
+    private void recoverStoreFile() {
+        // Caller must be a writer. Reopens the store file after a failed compaction replaced it; when
+        // that fails too, the store is closed.
+        try {
+            mGeneration = openGeneration(mFile);
+            Log.addEntry(LOG_TAG, "reopened store file after failed compaction");
+        } catch (Exception e) {
+            mGeneration = null;
+            Log.addEntry(LOG_TAG, "closed store after failed compaction");
+        }
+    }
+
+    private static void closeQuietly(Generation generation) {
+        if (generation == null) {
+            return;
+        }
+        try {
+            generation.mFile.close();
+        } catch (IOException e) {
+            // Readers retry with the current generation
+        }
+    }
+
+    public synchronized void setCompactionFailureForTesting(CompactionFailure compactionFailure) {
+        // The next compaction fails at the given point
+        mCompactionFailureForTesting = compactionFailure;
+    }
+
+    public synchronized void close() throws Utils.ApplicationError {
+        Generation generation = mGeneration;
+        if (generation == null) {
+            return;
+        }
+        try {
+            // Drops the map padding
+            generation.mChannel.truncate(generation.mEndOffset);
+            if (mDurability != Durability.NONE) {
+                generation.mChannel.force(false);
+            }
+            mGeneration = null;
+            markAllSynced();
+            generation.mFile.close();
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            synchronized (mSyncLock) {
+                if (mSyncExecutor != null) {
+                    mSyncExecutor.shutdown();
+                    mSyncExecutor = null;
+                }
+            }
+        }
+    }
+
+    public long getFileSize() throws Utils.ApplicationError {
+        return getGeneration().mEndOffset;
+    }
+
+    private Generation getGeneration() throws Utils.ApplicationError {
+        Generation generation = mGeneration;
+        if (generation == null) {
+            throw new Utils.ApplicationError(LOG_TAG, "store is closed");
+        }
+        return generation;
+    }
+
+    private static void writeCompactionBatch(Generation generation, Batch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer commit = encodeCommit(batch);
+        writeFully(generation.mChannel, commit, generation.mEndOffset);
+        generation.mEndOffset += commit.limit();
+    }
+
+    private static void syncDirectory(File directory) {
+        // Makes a file creation or rename in the directory durable. java.io can't open a directory, so
+        // android.system.Os (API 21) is used, via reflection, where available; otherwise this is skipped,
+        // and a device crash soon after a compaction may revert to the (complete) pre-compaction file.
+        try {
+            Class<?> osClass = Class.forName("android.system.Os");
+            int readOnlyFlag = Class.forName("android.system.OsConstants").getField("O_RDONLY").getInt(null);
+            Object fileDescriptor =
+                    osClass.getMethod("open", String.class, int.class, int.class).invoke(
+                            null, directory.getPath(), readOnlyFlag, 0);
+            try {
+                osClass.getMethod("fsync", FileDescriptor.class).invoke(null, fileDescriptor);
+            } finally {
+                osClass.getMethod("close", FileDescriptor.class).invoke(null, fileDescriptor);
+            }
+        } catch (Exception e) {
+            // Not available
+        }
+    }
+
+    private static byte[] read(Generation generation, ValueLocation location) throws IOException {
+        ByteBuffer map = generation.getMap(location.mOffset + location.mLength).duplicate();
+        map.position((int)location.mOffset);
+        byte[] value = new byte[location.mLength];
+        map.get(value);
+        return value;
+    }
+
+    private static ByteBuffer encodeCommit(Batch batch) throws UnsupportedEncodingException {
+        List<byte[]> keys = new ArrayList<byte[]>(batch.mOperations.size());
+        int size = COMMIT_HEADER_SIZE + 4;
+        for (Map.Entry<String, byte[]> operation : batch.mOperations.entrySet()) {
+            byte[] key = operation.getKey().getBytes("UTF-8");
+            keys.add(key);
+            size += 1 + 4 + key.length;
+            if (operation.getValue() != null) {
+                size += 4 + operation.getValue().length;
+            }
+        }
+        ByteBuffer commit = ByteBuffer.allocate(size);
+        commit.position(COMMIT_HEADER_SIZE);
+        commit.putInt(batch.mOperations.size());
+        int i = 0;
+        for (byte[] value : batch.mOperations.values()) {
+            byte[] key = keys.get(i++);
+            commit.put(value != null ? OPERATION_PUT : OPERATION_DELETE);
+            commit.putInt(key.length);
+            commit.put(key);
+            if (value != null) {
+                commit.putInt(value.length);
+                commit.put(value);
+            }
+        }
+        commit.position(COMMIT_HEADER_SIZE);
+        int checksum = computeChecksum(commit.slice());
+        commit.putInt(0, size - COMMIT_HEADER_SIZE);
+        commit.putInt(4, checksum);
+        commit.position(0);
+        return commit;
+    }
+
+    private static int computeChecksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int)crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
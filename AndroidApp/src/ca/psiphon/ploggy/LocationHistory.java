@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Location time series, in time-partitioned segments per author.
+ *
+ * A status only carries its author's latest location; each new location is also appended to the
+ * author's location history. As in MessageHistory, a history is a sequence of segments, one per day
+ * (UTC) with locations, stored in the KeyValueStore under "locationHistory/<author>/<day>". Each
+ * segment is a StorageCodec.BINARY_LOCATION_TRACK: delta encoded timestamps and fixed-point
+ * coordinates, a few bytes per location.
+ *
+ * Segments older than RETENTION_IN_MILLISECONDS are deleted as new locations are appended.
+ *
+ * Appends are prepared into a commit batch, so they're committed atomically with the status that
+ * carried the location. Writers must be serialized per author by the caller. Readers don't lock.
+ */
+public class LocationHistory {
+
+    private static final String KEY_PREFIX = "locationHistory/";
+    private static final long SEGMENT_DURATION_IN_MILLISECONDS = 24*60*60*1000L;
+    public static final long RETENTION_IN_MILLISECONDS = 30*SEGMENT_DURATION_IN_MILLISECONDS;
+
+    private final KeyValueStore mStore;
+
+    public LocationHistory(KeyValueStore store) {
+        mStore = store;
+    }
+
+    public void append(KeyValueStore.Batch batch, String authorKey, Data.Location location) throws Utils.ApplicationError {
+        // Statuses are received repeatedly with the same location; a location is only appended once.
+        // Locations without a timestamp, or older than the retention period, are skipped.
+        long retentionStart = System.currentTimeMillis() - RETENTION_IN_MILLISECONDS;
+        if (location == null || location.mTimestamp == null || location.mTimestamp.getTime() < retentionStart) {
+            return;
+        }
+        String retentionStartKey = getSegmentKey(authorKey, new Date(retentionStart));
+        for (String key : mStore.getKeys(getAuthorKeyPrefix(authorKey))) {
+            if (key.compareTo(retentionStartKey) >= 0) {
+                break;
+            }
+            batch.delete(key);
+        }
+        String key = getSegmentKey(authorKey, location.mTimestamp);
+        List<Data.Location> segment = new ArrayList<Data.Location>(getSegment(key));
+        // Usually the newest, so usually appended
+        int index = segment.size();
+        while (index > 0 && segment.get(index - 1).mTimestamp.after(location.mTimestamp)) {
+            index--;
+        }
+        if (index > 0 && segment.get(index - 1).mTimestamp.equals(location.mTimestamp)) {
+            return;
+        }
+        segment.add(index, location);
+        batch.put(key, StorageCodec.encode(StorageCodec.BINARY_LOCATION_TRACK, segment));
+    }
+
+    public void delete(KeyValueStore.Batch batch, String authorKey) throws Utils.ApplicationError {
+        for (String key : mStore.getKeys(getAuthorKeyPrefix(authorKey))) {
+            batch.delete(key);
+        }
+    }
+
+    public List<Data.Location> getLocations(
+            String authorKey,
+            Date start,
+            Date end,
+            long intervalInMilliseconds) throws Utils.ApplicationError {
+        // Returns the author's locations with start <= timestamp < end, in time order; a null start or
+        // end is unbounded. When intervalInMilliseconds > 0, the track is downsampled to the latest
+        // location in each interval.
+        List<Data.Location> locations = new ArrayList<Data.Location>();
+        String startKey = (start != null) ? getSegmentKey(authorKey, start) : null;
+        String endKey = (end != null) ? getSegmentKey(authorKey, end) : null;
+        long lastInterval = Long.MIN_VALUE;
+        for (String key : mStore.getKeys(getAuthorKeyPrefix(authorKey))) {
+            if (startKey != null && key.compareTo(startKey) < 0) {
+                continue;
+            }
+            if (endKey != null && key.compareTo(endKey) > 0) {
+                break;
+            }
+            for (Data.Location location : getSegment(key)) {
+                if ((start != null && location.mTimestamp.before(start)) ||
+                        (end != null && !location.mTimestamp.before(end))) {
+                    continue;
+                }
+                if (intervalInMilliseconds > 0) {
+                    long interval = location.mTimestamp.getTime()/intervalInMilliseconds;
+                    if (interval == lastInterval) {
+                        locations.remove(locations.size() - 1);
+                    }
+                    lastInterval = interval;
+                }
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
+    private List<Data.Location> getSegment(String key) throws Utils.ApplicationError {
+        byte[] value = mStore.get(key);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return StorageCodec.decode(StorageCodec.BINARY_LOCATION_TRACK, value);
+    }
+
+    private static String getAuthorKeyPrefix(String authorKey) {
+        return KEY_PREFIX + authorKey + "/";
+    }
+
+    private static String getSegmentKey(String authorKey, Date timestamp) {
+        long day = Math.max(0, timestamp.getTime()/SEGMENT_DURATION_IN_MILLISECONDS);
+        return getAuthorKeyPrefix(authorKey) + String.format(Locale.US, "%08d", day);
+    }
+}
@@ -20,6 +20,7 @@
 package ca.psiphon.ploggy;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 import android.content.Context;
@@ -42,6 +43,10 @@ import android.widget.TextView;
  * 2. Single friend message list, which just displays message content.
  * 3. Self message list, which just displays message content.
  *
+ * In general message list mode, only a window of messages -- the visible rows plus a prefetch
+ * margin -- is held. The window is paged, using Data's message cursors, as the list is scrolled
+ * and is reloaded only when the timeline version changes.
+ *
  */
 public class MessageAdapter extends BaseAdapter {
 
@@ -51,11 +56,22 @@ public class MessageAdapter extends BaseAdapter {
 
     public enum Mode {ALL_MESSAGES, FRIEND_MESSAGES, SELF_MESSAGES}
 
+    // Messages are fetched a page at a time; this is also the prefetch margin
+    private static final int PAGE_SIZE = 20;
+    private static final int MINIMUM_WINDOW_SIZE = 3*PAGE_SIZE;
+
     private final Context mContext;
     private final Mode mMode;
-    private List<Data.AnnotatedMessage> mAnnotatedMessages;
     private final String mFriendId;
     private List<Data.Message> mMessages;
+    private long mAnnotatedMessagesVersion = -1;
+    private int mAnnotatedMessageCount;
+    // The window holds the messages at positions [mWindowOffset, mWindowOffset + mWindow.size());
+    // mWindowCursor is the message preceding the window, or null when the window is at the top
+    private List<Data.AnnotatedMessage> mWindow = new ArrayList<Data.AnnotatedMessage>();
+    private int mWindowOffset;
+    private Data.AnnotatedMessage mWindowCursor;
+    private int mWindowCapacity = MINIMUM_WINDOW_SIZE;
 
     public MessageAdapter(Context context, Mode mode) throws Utils.ApplicationError {
         this(context, mode, null);
@@ -71,7 +87,16 @@ public class MessageAdapter extends BaseAdapter {
     public void updateMessages() throws Utils.ApplicationError {
         switch (mMode) {
         case ALL_MESSAGES:
-            mAnnotatedMessages = Data.getInstance().getAllMessages();
+            // When the timeline is unchanged, the rows are just redrawn (to update download state and
+            // "time ago" displays). Otherwise, the window is reloaded at the same cursor.
+            long version = Data.getInstance().getAllMessagesVersion();
+            if (version != mAnnotatedMessagesVersion) {
+                mAnnotatedMessageCount = Data.getInstance().getMessageCount();
+                mWindowOffset = Data.getInstance().getMessagePosition(mWindowCursor);
+                mWindow = new ArrayList<Data.AnnotatedMessage>(
+                        Data.getInstance().getMessagesBefore(mWindowCursor, Math.max(mWindow.size(), PAGE_SIZE)));
+                mAnnotatedMessagesVersion = version;
+            }
             break;
         case FRIEND_MESSAGES:
             mMessages = Data.getInstance().getFriendStatus(mFriendId).mMessages;
@@ -83,6 +108,72 @@ public class MessageAdapter extends BaseAdapter {
         notifyDataSetChanged();
     }
 
+    public void setVisibleRowCount(int visibleRowCount) {
+        mWindowCapacity = Math.max(MINIMUM_WINDOW_SIZE, visibleRowCount + 2*PAGE_SIZE);
+    }
+
+    private Data.AnnotatedMessage getAnnotatedMessage(int position) {
+        try {
+            if (position < mWindowOffset) {
+                pageWindowUp(position);
+            } else if (position >= mWindowOffset + mWindow.size()) {
+                pageWindowDown(position);
+            }
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to load messages");
+            return null;
+        }
+        int index = position - mWindowOffset;
+        if (index < 0 || index >= mWindow.size()) {
+            // The timeline changed since the last update; the next update reloads the window
+            return null;
+        }
+        return mWindow.get(index);
+    }
+
+    private void pageWindowDown(int position) throws Utils.ApplicationError {
+        while (position >= mWindowOffset + mWindow.size()) {
+            Data.AnnotatedMessage last = mWindow.isEmpty() ? mWindowCursor : mWindow.get(mWindow.size() - 1);
+            List<Data.AnnotatedMessage> messages = Data.getInstance().getMessagesBefore(last, PAGE_SIZE);
+            if (messages.isEmpty()) {
+                return;
+            }
+            mWindow.addAll(messages);
+            int excess = mWindow.size() - mWindowCapacity;
+            if (excess > 0) {
+                mWindowCursor = mWindow.get(excess - 1);
+                mWindow.subList(0, excess).clear();
+                mWindowOffset += excess;
+            }
+        }
+    }
+
+    private void pageWindowUp(int position) throws Utils.ApplicationError {
+        while (position < mWindowOffset) {
+            if (mWindow.isEmpty()) {
+                // Nothing to page from; restart at the top
+                mWindowCursor = null;
+                mWindowOffset = 0;
+                return;
+            }
+            int count = Math.min(mWindowOffset, PAGE_SIZE);
+            // One more message than needed is fetched, to become the new cursor
+            List<Data.AnnotatedMessage> messages = Data.getInstance().getMessagesAfter(mWindow.get(0), count + 1);
+            if (messages.size() <= count) {
+                mWindow.addAll(0, messages);
+                mWindowCursor = null;
+                mWindowOffset = 0;
+            } else {
+                mWindowCursor = messages.get(0);
+                mWindow.addAll(0, messages.subList(1, messages.size()));
+                mWindowOffset -= count;
+            }
+            if (mWindow.size() > mWindowCapacity) {
+                mWindow.subList(mWindowCapacity, mWindow.size()).clear();
+            }
+        }
+    }
+
     @Override
     public View getView(int position, View view, ViewGroup parent) {
         if (view == null) {
@@ -99,7 +190,7 @@ public class MessageAdapter extends BaseAdapter {
 
         switch (mMode) {
         case ALL_MESSAGES:
-            Data.AnnotatedMessage annotatedMessage = mAnnotatedMessages.get(position);
+            Data.AnnotatedMessage annotatedMessage = getAnnotatedMessage(position);
             if (annotatedMessage == null) {
                 return view;
             }
@@ -188,7 +279,7 @@ public class MessageAdapter extends BaseAdapter {
     @Override
     public int getCount() {
         if (mMode == Mode.ALL_MESSAGES) {
-            return mAnnotatedMessages.size();
+            return mAnnotatedMessageCount;
         } else {
             return mMessages.size();
         }
@@ -197,7 +288,7 @@ public class MessageAdapter extends BaseAdapter {
     @Override
     public Object getItem(int position) {
         if (mMode == Mode.ALL_MESSAGES) {
-            return mAnnotatedMessages.get(position);
+            return getAnnotatedMessage(position);
         } else {
             return mMessages.get(position);
         }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.LruCache;
+
+/**
+ * Complete message history, in time-partitioned segments per author.
+ *
+ * Statuses only carry the most recent Protocol.MAX_MESSAGE_COUNT messages; every message is also
+ * appended to its author's history, which is never truncated. Each author's history is a sequence
+ * of segments, one per day (UTC) with messages, stored in the KeyValueStore under
+ * "history/<author>/<day>", where the zero-padded day number makes key order time order. A segment
+ * holds its messages in ascending time order.
+ *
+ * Appends are prepared into a commit batch, so they're committed atomically with the status that
+ * carried the messages, then applied to the segment cache once committed. Only recently used
+ * segments are kept decoded in memory; range queries read older segments from the store.
+ *
+ * Writers must be serialized per author by the caller, and build on the segments in the store, not
+ * the cache. Readers don't lock while reading the store: cached segments are immutable once published,
+ * and a segment read from the store is only cached when no update was applied meanwhile, so it can't
+ * replace a newer one.
+ */
+public class MessageHistory {
+
+    private static final String KEY_PREFIX = "history/";
+    // Present once the history has been initialized, as it's empty for a new store but not for an upgraded one
+    private static final String INITIALIZED_KEY = "historyInitialized";
+    private static final long SEGMENT_DURATION_IN_MILLISECONDS = 24*60*60*1000L;
+    private static final int SEGMENT_CACHE_SIZE = 64;
+
+    public class Update {
+        // Segments written by a batch, published to the cache once the batch is committed
+        private final Map<String, List<Data.Message>> mSegments = new LinkedHashMap<String, List<Data.Message>>();
+        private final List<String> mDeletedKeys = new ArrayList<String>();
+    }
+
+    private static final Comparator<Data.Message> TIMESTAMP_COMPARATOR =
+        new Comparator<Data.Message>() {
+            @Override
+            public int compare(Data.Message a, Data.Message b) {
+                return a.mTimestamp.compareTo(b.mTimestamp);
+            }
+        };
+
+    private final KeyValueStore mStore;
+    private final LruCache<String, List<Data.Message>> mSegmentCache;
+    private final Object mSegmentCacheLock = new Object();
+    // Incremented by each apply
+    private long mSegmentCacheGeneration;
+
+    public MessageHistory(KeyValueStore store) {
+        mStore = store;
+        mSegmentCache = new LruCache<String, List<Data.Message>>(SEGMENT_CACHE_SIZE);
+    }
+
+    public static boolean isInitialized(KeyValueStore store) throws Utils.ApplicationError {
+        return store.get(INITIALIZED_KEY) != null;
+    }
+
+    public static void setInitialized(KeyValueStore.Batch batch) {
+        batch.put(INITIALIZED_KEY, new byte[0]);
+    }
+
+    public Update newUpdate() {
+        return new Update();
+    }
+
+    public void append(
+            KeyValueStore.Batch batch,
+            Update update,
+            String authorKey,
+            List<Data.Message> messages) throws Utils.ApplicationError {
+        // Adds the messages, in any order, to the author's segments; messages without a timestamp are skipped
+        for (Data.Message message : messages) {
+            if (message.mTimestamp == null) {
+                continue;
+            }
+            String key = getSegmentKey(authorKey, message.mTimestamp);
+            List<Data.Message> segment = update.mSegments.get(key);
+            if (segment == null) {
+                // The cache may not yet have the last commit applied
+                segment = new ArrayList<Data.Message>(readSegment(key));
+                update.mSegments.put(key, segment);
+            }
+            // Usually the newest, so usually appended
+            int index = Collections.binarySearch(segment, message, TIMESTAMP_COMPARATOR);
+            if (index < 0) {
+                index = -(index + 1);
+            } else {
+                while (index < segment.size() && TIMESTAMP_COMPARATOR.compare(segment.get(index), message) == 0) {
+                    index++;
+                }
+            }
+            segment.add(index, message);
+        }
+        for (Map.Entry<String, List<Data.Message>> entry : update.mSegments.entrySet()) {
+            batch.put(entry.getKey(), StorageCodec.encode(StorageCodec.BINARY_MESSAGES, entry.getValue()));
+        }
+    }
+
+    public void delete(KeyValueStore.Batch batch, Update update, String authorKey) throws Utils.ApplicationError {
+        for (String key : mStore.getKeys(getAuthorKeyPrefix(authorKey))) {
+            batch.delete(key);
+            update.mDeletedKeys.add(key);
+        }
+    }
+
+    public void apply(Update update) {
+        // Call after the batch is committed
+        synchronized (mSegmentCacheLock) {
+            mSegmentCacheGeneration++;
+            for (String key : update.mDeletedKeys) {
+                mSegmentCache.remove(key);
+            }
+            for (Map.Entry<String, List<Data.Message>> entry : update.mSegments.entrySet()) {
+                mSegmentCache.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+            }
+        }
+    }
+
+    public List<Data.Message> getMessages(String authorKey, Date start, Date end, int limit) throws Utils.ApplicationError {
+        // Returns up to limit of the author's messages with start <= timestamp < end, newest first;
+        // a null start or end is unbounded. To page back, pass the oldest timestamp returned as the
+        // next end (messages sharing that exact timestamp across a page boundary may be skipped).
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        String startKey = (start != null) ? getSegmentKey(authorKey, start) : null;
+        String endKey = (end != null) ? getSegmentKey(authorKey, end) : null;
+        List<String> keys = mStore.getKeys(getAuthorKeyPrefix(authorKey));
+        for (int i = keys.size() - 1; i >= 0 && messages.size() < limit; i--) {
+            String key = keys.get(i);
+            if (endKey != null && key.compareTo(endKey) > 0) {
+                continue;
+            }
+            if (startKey != null && key.compareTo(startKey) < 0) {
+                break;
+            }
+            List<Data.Message> segment = getSegment(key);
+            for (int j = segment.size() - 1; j >= 0 && messages.size() < limit; j--) {
+                Data.Message message = segment.get(j);
+                if ((end == null || message.mTimestamp.before(end)) &&
+                        (start == null || !message.mTimestamp.before(start))) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    public int getSegmentCount(String authorKey) throws Utils.ApplicationError {
+        return mStore.getKeys(getAuthorKeyPrefix(authorKey)).size();
+    }
+
+    private List<Data.Message> getSegment(String key) throws Utils.ApplicationError {
+        long generation;
+        synchronized (mSegmentCacheLock) {
+            List<Data.Message> segment = mSegmentCache.get(key);
+            if (segment != null) {
+                return segment;
+            }
+            generation = mSegmentCacheGeneration;
+        }
+        List<Data.Message> segment = readSegment(key);
+        synchronized (mSegmentCacheLock) {
+            // An update applied since the read may have cached a newer segment, which must not be replaced
+            if (generation == mSegmentCacheGeneration && mSegmentCache.get(key) == null && !segment.isEmpty()) {
+                mSegmentCache.put(key, segment);
+            }
+        }
+        return segment;
+    }
+
+    private List<Data.Message> readSegment(String key) throws Utils.ApplicationError {
+        byte[] value = mStore.get(key);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                new ArrayList<Data.Message>(StorageCodec.decode(StorageCodec.BINARY_MESSAGES, value)));
+    }
+
+    private static String getAuthorKeyPrefix(String authorKey) {
+        return KEY_PREFIX + authorKey + "/";
+    }
+
+    private static String getSegmentKey(String authorKey, Date timestamp) {
+        long day = Math.max(0, timestamp.getTime()/SEGMENT_DURATION_IN_MILLISECONDS);
+        return getAuthorKeyPrefix(authorKey) + String.format(Locale.US, "%08d", day);
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted full-text index over message content, stored in the KeyValueStore.
+ *
+ * Content is tokenized into lower case runs of letters and digits. Each term has a posting list,
+ * which identifies the messages containing the term by author and timestamp; a message is then
+ * read from MessageHistory. A posting is a varint author ordinal and a varint timestamp, and an
+ * author's ordinal is assigned on first use and stored under "searchAuthor/<author>". Ordinals are
+ * never reused, as postings of removed authors remain, and are bounded by MAXIMUM_AUTHOR_COUNT: the
+ * messages of authors past the bound aren't indexed, and so aren't found by search.
+ *
+ * A posting list is split into blocks of up to BLOCK_SIZE postings, stored under
+ * "search/<term>/<block>". Adding a message appends to the last block of each of its terms, so the
+ * cost of an update doesn't grow with the index. As the store keeps keys in order, the blocks of all
+ * terms beginning with a prefix are one key range: a prefix query reads that range.
+ *
+ * Blocks are in the order postings were added, which isn't recency order, so each block begins with
+ * its greatest posting. A query decodes blocks in order of their greatest posting, and stops once no
+ * undecoded block can hold one of the newest results.
+ *
+ * Results are ranked by recency, newest first. A query with several tokens matches messages
+ * containing a term beginning with each token. Paging is by cursor: pass the last result of the
+ * previous page.
+ *
+ * Writers must be serialized by the caller, from add until apply; an Update is applied once the batch
+ * it was added to is committed. Readers don't lock. Postings of deleted messages aren't removed; they
+ * no longer resolve to a message in the history, and are skipped by the caller.
+ */
+public class MessageSearchIndex {
+
+    private static final String LOG_TAG = "Message Search Index";
+
+    private static final String KEY_PREFIX = "search/";
+    private static final String AUTHOR_KEY_PREFIX = "searchAuthor/";
+    private static final String INITIALIZED_KEY = "searchInitialized";
+    private static final int BLOCK_SIZE = 64;
+    private static final int MAXIMUM_TERM_LENGTH = 32;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    // Postings are compared as (timestamp << AUTHOR_BITS) | author ordinal, which orders by recency
+    private static final int AUTHOR_BITS = 16;
+    public static final int MAXIMUM_AUTHOR_COUNT = 1 << AUTHOR_BITS;
+    private static final int NO_AUTHOR_ORDINAL = -1;
+
+    public static class Posting {
+        public final String mAuthorKey;
+        public final Date mTimestamp;
+
+        public Posting(String authorKey, Date timestamp) {
+            mAuthorKey = authorKey;
+            mTimestamp = timestamp;
+        }
+    }
+
+    public class Update {
+        private final Map<String, Integer> mAuthorOrdinals = new HashMap<String, Integer>();
+        private final Map<String, byte[]> mBlocks = new LinkedHashMap<String, byte[]>();
+        private final Map<String, int[]> mLastBlocks = new HashMap<String, int[]>();
+        private final Map<String, Long> mBlockMaxima = new HashMap<String, Long>();
+    }
+
+    private class TokenPostings {
+        // The blocks of all terms beginning with a token, decoded one at a time, greatest first
+        private final List<String> mKeys = new ArrayList<String>();
+        private final List<Long> mMaxima = new ArrayList<Long>();
+        private final List<long[]> mDecodedBlocks = new ArrayList<long[]>();
+
+        public TokenPostings(String token) throws Utils.ApplicationError {
+            final Map<String, Long> maxima = new HashMap<String, Long>();
+            for (String key : mStore.getKeys(KEY_PREFIX + token)) {
+                Long maximum = getBlockMaximum(key);
+                if (maximum != null) {
+                    mKeys.add(key);
+                    maxima.put(key, maximum);
+                }
+            }
+            Collections.sort(mKeys, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return maxima.get(b).compareTo(maxima.get(a));
+                }
+            });
+            for (String key : mKeys) {
+                mMaxima.add(maxima.get(key));
+            }
+        }
+
+        public boolean isEmpty() {
+            return mKeys.isEmpty();
+        }
+
+        public long getFrontier() {
+            // All postings greater than this are decoded
+            int next = mDecodedBlocks.size();
+            return (next < mKeys.size()) ? mMaxima.get(next) : Long.MIN_VALUE;
+        }
+
+        public void decodeNextBlock() throws Utils.ApplicationError {
+            byte[] block = mStore.get(mKeys.get(mDecodedBlocks.size()));
+            mDecodedBlocks.add((block != null) ? decodePostings(block) : new long[0]);
+        }
+
+        public long[] getPostings() {
+            // Returns the sorted, distinct postings decoded so far
+            int count = 0;
+            for (long[] block : mDecodedBlocks) {
+                count += block.length;
+            }
+            long[] postings = new long[count];
+            int offset = 0;
+            for (long[] block : mDecodedBlocks) {
+                System.arraycopy(block, 0, postings, offset, block.length);
+                offset += block.length;
+            }
+            Arrays.sort(postings);
+            int distinctCount = 0;
+            for (int i = 0; i < postings.length; i++) {
+                if (i == 0 || postings[i] != postings[i - 1]) {
+                    postings[distinctCount++] = postings[i];
+                }
+            }
+            return Arrays.copyOf(postings, distinctCount);
+        }
+    }
+
+    private final KeyValueStore mStore;
+    private final ConcurrentHashMap<String, Integer> mAuthorOrdinals;
+    private final ConcurrentHashMap<Integer, String> mAuthorKeys;
+    // Each term's last block number and posting count; modified only by writers
+    private final Map<String, int[]> mLastBlocks;
+    // Each block's greatest posting, by key, once read or written
+    private final ConcurrentHashMap<String, Long> mBlockMaxima;
+
+    public MessageSearchIndex(KeyValueStore store) throws Utils.ApplicationError {
+        mStore = store;
+        mAuthorOrdinals = new ConcurrentHashMap<String, Integer>();
+        mAuthorKeys = new ConcurrentHashMap<Integer, String>();
+        mLastBlocks = new HashMap<String, int[]>();
+        mBlockMaxima = new ConcurrentHashMap<String, Long>();
+        for (String key : store.getKeys(AUTHOR_KEY_PREFIX)) {
+            String authorKey = key.substring(AUTHOR_KEY_PREFIX.length());
+            int ordinal = ByteBuffer.wrap(store.get(key)).getInt();
+            mAuthorOrdinals.put(authorKey, ordinal);
+            mAuthorKeys.put(ordinal, authorKey);
+        }
+    }
+
+    public static boolean isInitialized(KeyValueStore store) throws Utils.ApplicationError {
+        return store.get(INITIALIZED_KEY) != null;
+    }
+
+    public static void setInitialized(KeyValueStore.Batch batch) {
+        batch.put(INITIALIZED_KEY, new byte[0]);
+    }
+
+    public Update newUpdate() {
+        return new Update();
+    }
+
+    public void add(
+            KeyValueStore.Batch batch,
+            Update update,
+            String authorKey,
+            List<Data.Message> messages) throws Utils.ApplicationError {
+        if (messages.isEmpty()) {
+            return;
+        }
+        int ordinal = getAuthorOrdinal(batch, update, authorKey);
+        if (ordinal == NO_AUTHOR_ORDINAL) {
+            // The status is still stored; only search is affected
+            Log.addEntry(LOG_TAG, "too many authors: messages not indexed");
+            return;
+        }
+        for (Data.Message message : messages) {
+            if (message.mTimestamp == null || message.mContent == null) {
+                continue;
+            }
+            byte[] posting = encodePosting(ordinal, message.mTimestamp.getTime());
+            long postingValue = getPostingValue(ordinal, message.mTimestamp.getTime());
+            for (String term : tokenize(message.mContent)) {
+                int[] lastBlock = getLastBlock(update, term);
+                if (lastBlock[1] >= BLOCK_SIZE) {
+                    lastBlock = new int[] {lastBlock[0] + 1, 0};
+                }
+                String key = getBlockKey(term, lastBlock[0]);
+                byte[] block = update.mBlocks.get(key);
+                if (block == null) {
+                    block = (lastBlock[1] > 0) ? mStore.get(key) : null;
+                }
+                byte[] newBlock;
+                long maximum = postingValue;
+                if (block == null) {
+                    newBlock = new byte[BLOCK_HEADER_SIZE + posting.length];
+                    System.arraycopy(posting, 0, newBlock, BLOCK_HEADER_SIZE, posting.length);
+                } else {
+                    maximum = Math.max(maximum, ByteBuffer.wrap(block).getLong());
+                    newBlock = Arrays.copyOf(block, block.length + posting.length);
+                    System.arraycopy(posting, 0, newBlock, block.length, posting.length);
+                }
+                ByteBuffer.wrap(newBlock).putLong(maximum);
+                update.mBlocks.put(key, newBlock);
+                update.mBlockMaxima.put(key, maximum);
+                update.mLastBlocks.put(term, new int[] {lastBlock[0], lastBlock[1] + 1});
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : update.mBlocks.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void apply(Update update) {
+        // Call after the batch is committed
+        for (Map.Entry<String, Integer> entry : update.mAuthorOrdinals.entrySet()) {
+            mAuthorOrdinals.put(entry.getKey(), entry.getValue());
+            mAuthorKeys.put(entry.getValue(), entry.getKey());
+        }
+        mLastBlocks.putAll(update.mLastBlocks);
+        mBlockMaxima.putAll(update.mBlockMaxima);
+    }
+
+    public List<Posting> search(String query, Posting cursor, int limit) throws Utils.ApplicationError {
+        // Returns up to limit postings matching every token in the query, newest first, which follow
+        // the cursor, when not null
+        Set<String> tokens = tokenize(query);
+        List<TokenPostings> tokenPostingsList = new ArrayList<TokenPostings>();
+        for (String token : tokens) {
+            TokenPostings tokenPostings = new TokenPostings(token);
+            if (tokenPostings.isEmpty()) {
+                return new ArrayList<Posting>();
+            }
+            tokenPostingsList.add(tokenPostings);
+        }
+        if (tokenPostingsList.isEmpty()) {
+            return new ArrayList<Posting>();
+        }
+        long cursorValue = Long.MAX_VALUE;
+        if (cursor != null) {
+            Integer ordinal = mAuthorOrdinals.get(cursor.mAuthorKey);
+            cursorValue = getPostingValue((ordinal != null) ? ordinal : 0, cursor.mTimestamp.getTime());
+        }
+        // Matches greater than the frontier are final. Blocks are decoded, from the token with the
+        // greatest frontier, until limit final matches follow the cursor; the matches are counted
+        // after 1, 2, 4, ... blocks, so each count's cost is covered by the decoding before it.
+        int decodedCount = 0;
+        int nextCountAt = 1;
+        while (true) {
+            long frontier = Long.MIN_VALUE;
+            TokenPostings next = null;
+            for (TokenPostings tokenPostings : tokenPostingsList) {
+                if (tokenPostings.getFrontier() > frontier) {
+                    frontier = tokenPostings.getFrontier();
+                    next = tokenPostings;
+                }
+            }
+            if (next == null || decodedCount >= nextCountAt) {
+                long[] matches = null;
+                for (TokenPostings tokenPostings : tokenPostingsList) {
+                    long[] postings = tokenPostings.getPostings();
+                    matches = (matches == null) ? postings : intersect(matches, postings);
+                }
+                List<Posting> results = new ArrayList<Posting>();
+                for (int i = matches.length - 1; i >= 0 && matches[i] > frontier && results.size() < limit; i--) {
+                    if (matches[i] < cursorValue) {
+                        String authorKey = mAuthorKeys.get((int)(matches[i] & ((1 << AUTHOR_BITS) - 1)));
+                        if (authorKey != null) {
+                            results.add(new Posting(authorKey, new Date(matches[i] >> AUTHOR_BITS)));
+                        }
+                    }
+                }
+                if (next == null || results.size() >= limit) {
+                    return results;
+                }
+                nextCountAt *= 2;
+            }
+            next.decodeNextBlock();
+            decodedCount++;
+        }
+    }
+
+    public static boolean matches(String query, String content) {
+        // Whether content has a term beginning with each token of the query, as a search result does
+        Set<String> terms = tokenize(content);
+        for (String token : tokenize(query)) {
+            boolean found = false;
+            for (String term : terms) {
+                if (term.startsWith(token)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getIndexSize() throws Utils.ApplicationError {
+        // Total size of the posting blocks, in bytes
+        long size = 0;
+        for (String key : mStore.getKeys(KEY_PREFIX)) {
+            size += key.length() + mStore.get(key).length;
+        }
+        return size;
+    }
+
+    private static Set<String> tokenize(String content) {
+        Set<String> terms = new LinkedHashSet<String>();
+        if (content == null) {
+            return terms;
+        }
+        String lowerCaseContent = content.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lowerCaseContent.length(); i++) {
+            boolean isTermCharacter = i < lowerCaseContent.length() && Character.isLetterOrDigit(lowerCaseContent.charAt(i));
+            if (isTermCharacter && start < 0) {
+                start = i;
+            } else if (!isTermCharacter && start >= 0) {
+                terms.add(lowerCaseContent.substring(start, Math.min(i, start + MAXIMUM_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private int getAuthorOrdinal(KeyValueStore.Batch batch, Update update, String authorKey) {
+        // Returns NO_AUTHOR_ORDINAL when a new author would exceed MAXIMUM_AUTHOR_COUNT, as ordinals
+        // must fit in AUTHOR_BITS of a posting value
+        Integer ordinal = mAuthorOrdinals.get(authorKey);
+        if (ordinal == null) {
+            ordinal = update.mAuthorOrdinals.get(authorKey);
+        }
+        if (ordinal == null) {
+            ordinal = mAuthorOrdinals.size() + update.mAuthorOrdinals.size();
+            if (ordinal >= MAXIMUM_AUTHOR_COUNT) {
+                return NO_AUTHOR_ORDINAL;
+            }
+            update.mAuthorOrdinals.put(authorKey, ordinal);
+            batch.put(AUTHOR_KEY_PREFIX + authorKey, ByteBuffer.allocate(4).putInt(ordinal).array());
+        }
+        return ordinal;
+    }
+
+    private int[] getLastBlock(Update update, String term) throws Utils.ApplicationError {
+        int[] lastBlock = update.mLastBlocks.get(term);
+        if (lastBlock == null) {
+            lastBlock = mLastBlocks.get(term);
+        }
+        if (lastBlock == null) {
+            List<String> keys = mStore.getKeys(getTermKeyPrefix(term));
+            if (keys.isEmpty()) {
+                lastBlock = new int[] {0, 0};
+            } else {
+                String key = keys.get(keys.size() - 1);
+                int blockNumber = Integer.parseInt(key.substring(key.lastIndexOf('/') + 1));
+                lastBlock = new int[] {blockNumber, decodePostings(mStore.get(key)).length};
+            }
+        }
+        return lastBlock;
+    }
+
+    private Long getBlockMaximum(String key) throws Utils.ApplicationError {
+        // Returns null when the block doesn't exist
+        Long maximum = mBlockMaxima.get(key);
+        if (maximum == null) {
+            byte[] block = mStore.get(key);
+            if (block == null) {
+                return null;
+            }
+            maximum = ByteBuffer.wrap(block).getLong();
+            // A writer's apply replaces this, should it be stale
+            Long existingMaximum = mBlockMaxima.putIfAbsent(key, maximum);
+            if (existingMaximum != null) {
+                maximum = existingMaximum;
+            }
+        }
+        return maximum;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static String getTermKeyPrefix(String term) {
+        return KEY_PREFIX + term + "/";
+    }
+
+    private static String getBlockKey(String term, int blockNumber) {
+        return getTermKeyPrefix(term) + String.format(Locale.US, "%08d", blockNumber);
+    }
+
+    private static long getPostingValue(int ordinal, long timestamp) {
+        return (Math.max(0, timestamp) << AUTHOR_BITS) | ordinal;
+    }
+
+    private static byte[] encodePosting(int ordinal, long timestamp) {
+        byte[] buffer = new byte[15];
+        int length = writeVarint(buffer, 0, ordinal);
+        length = writeVarint(buffer, length, Math.max(0, timestamp));
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static long[] decodePostings(byte[] block) {
+        long[] postings = new long[BLOCK_SIZE];
+        int count = 0;
+        int offset = BLOCK_HEADER_SIZE;
+        while (offset < block.length) {
+            long ordinal = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = block[offset++];
+                ordinal |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            long timestamp = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = block[offset++];
+                timestamp |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (count == postings.length) {
+                postings = Arrays.copyOf(postings, count*2);
+            }
+            postings[count++] = getPostingValue((int)ordinal, timestamp);
+        }
+        return Arrays.copyOf(postings, count);
+    }
+
+    private static int writeVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[offset++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte)value;
+        return offset;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All-messages timeline, kept as a k-way merge of per-author sorted runs.
+ *
+ * Each author's messages are held in a run, sorted by the timeline order. Inserting a message
+ * locates its position with a binary search; since a new message is almost always its author's
+ * newest, it's usually appended in place. Removing an author removes one run; no other run is
+ * touched. The merged timeline is only materialized when it's requested, and is then cached
+ * until the next change.
+ *
+ * Pages of the timeline are read without materializing it: getMessagesBefore and getMessagesAfter
+ * take a cursor, a message previously returned, and locate it in each run with a binary search, then
+ * merge just the requested number of messages. The comparator must be a total order on messages for
+ * cursors to be exact.
+ *
+ * Writers must be serialized by the caller. Readers don't lock: runs are immutable once published,
+ * and the merged list returned by getMessages is unmodifiable.
+ */
+public class MessageTimeline {
+
+    private static class Buffer {
+        public Data.AnnotatedMessage[] mElements;
+        public int mClaimed;
+
+        public Buffer(int capacity) {
+            mElements = new Data.AnnotatedMessage[capacity];
+            mClaimed = 0;
+        }
+    }
+
+    private static class Run {
+        // A run is a prefix of a buffer, in reverse timeline order so that the newest message is
+        // last. Elements below mCount are never modified once published, so a run may be extended
+        // in place when no other run has claimed the buffer beyond it.
+        public final Buffer mBuffer;
+        public final int mCount;
+
+        public Run(Buffer buffer, int count) {
+            mBuffer = buffer;
+            mCount = count;
+        }
+
+        public Data.AnnotatedMessage get(int index) {
+            return mBuffer.mElements[index];
+        }
+    }
+
+    private static class Cursor {
+        // Iterates over a run in timeline order (from the end of the run) or in reverse
+        public final Run mRun;
+        public final int mStep;
+        public int mIndex;
+
+        public Cursor(Run run, int startIndex, boolean reverse) {
+            mRun = run;
+            mStep = reverse ? 1 : -1;
+            mIndex = startIndex;
+        }
+
+        public boolean hasCurrent() {
+            return mIndex >= 0 && mIndex < mRun.mCount;
+        }
+
+        public Data.AnnotatedMessage current() {
+            return mRun.get(mIndex);
+        }
+
+        public void advance() {
+            mIndex += mStep;
+        }
+    }
+
+    private static class Snapshot {
+        public final long mVersion;
+        public final List<Data.AnnotatedMessage> mMessages;
+
+        public Snapshot(long version, List<Data.AnnotatedMessage> messages) {
+            mVersion = version;
+            mMessages = Collections.unmodifiableList(messages);
+        }
+    }
+
+    private static final int MINIMUM_RUN_CAPACITY = 16;
+
+    private final Comparator<Data.AnnotatedMessage> mComparator;
+    private final ConcurrentHashMap<String, Run> mRuns;
+    private volatile long mVersion;
+    private volatile Snapshot mSnapshot;
+
+    public MessageTimeline(Comparator<Data.AnnotatedMessage> comparator) {
+        mComparator = comparator;
+        mRuns = new ConcurrentHashMap<String, Run>();
+        mVersion = 0;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public void putRun(String authorKey, List<Data.AnnotatedMessage> messages) {
+        // Replaces the author's run; the messages may be in any order
+        List<Data.AnnotatedMessage> sortedMessages = new ArrayList<Data.AnnotatedMessage>(messages);
+        Collections.sort(sortedMessages, Collections.reverseOrder(mComparator));
+        Buffer buffer = new Buffer(Math.max(MINIMUM_RUN_CAPACITY, sortedMessages.size()*2));
+        sortedMessages.toArray(buffer.mElements);
+        buffer.mClaimed = sortedMessages.size();
+        mRuns.put(authorKey, new Run(buffer, sortedMessages.size()));
+        mVersion++;
+    }
+
+    public void insert(String authorKey, Data.AnnotatedMessage message) {
+        Run run = mRuns.get(authorKey);
+        if (run == null) {
+            run = new Run(new Buffer(MINIMUM_RUN_CAPACITY), 0);
+        }
+        int low = searchRun(run, message, false);
+        Run newRun;
+        if (low == run.mCount &&
+                run.mBuffer.mClaimed == run.mCount &&
+                run.mCount < run.mBuffer.mElements.length) {
+            // Append in place
+            run.mBuffer.mElements[run.mCount] = message;
+            run.mBuffer.mClaimed++;
+            newRun = new Run(run.mBuffer, run.mCount + 1);
+        } else {
+            Buffer buffer = new Buffer(Math.max(MINIMUM_RUN_CAPACITY, (run.mCount + 1)*2));
+            System.arraycopy(run.mBuffer.mElements, 0, buffer.mElements, 0, low);
+            buffer.mElements[low] = message;
+            System.arraycopy(run.mBuffer.mElements, low, buffer.mElements, low + 1, run.mCount - low);
+            buffer.mClaimed = run.mCount + 1;
+            newRun = new Run(buffer, run.mCount + 1);
+        }
+        mRuns.put(authorKey, newRun);
+        mVersion++;
+    }
+
+    public void removeRun(String authorKey) {
+        if (mRuns.remove(authorKey) != null) {
+            mVersion++;
+        }
+    }
+
+    public void clear() {
+        mRuns.clear();
+        mVersion++;
+    }
+
+    public List<Data.AnnotatedMessage> getMessages() {
+        // The version is read before merging: if a writer changes the runs during the merge,
+        // the snapshot is older than its content and will simply be merged again next time
+        long version = mVersion;
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.mVersion != version) {
+            snapshot = new Snapshot(version, merge());
+            mSnapshot = snapshot;
+        }
+        return snapshot.mMessages;
+    }
+
+    public Data.AnnotatedMessage getLastMessage(String authorKey) {
+        // Returns the author's message which is first in timeline order, or null
+        Run run = mRuns.get(authorKey);
+        if (run == null || run.mCount == 0) {
+            return null;
+        }
+        return run.get(run.mCount - 1);
+    }
+
+    public int getCount() {
+        int count = 0;
+        for (Run run : mRuns.values()) {
+            count += run.mCount;
+        }
+        return count;
+    }
+
+    public int countThrough(Data.AnnotatedMessage cursor) {
+        // Returns the number of messages up to and including the cursor, in timeline order; this is
+        // the position of the first message returned by getMessagesBefore(cursor, ...)
+        if (cursor == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Run run : mRuns.values()) {
+            count += run.mCount - searchRun(run, cursor, true);
+        }
+        return count;
+    }
+
+    public List<Data.AnnotatedMessage> getMessagesBefore(Data.AnnotatedMessage cursor, int limit) {
+        // Returns up to limit messages which follow the cursor in the timeline (or the first
+        // messages when cursor is null), in timeline order
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (Run run : mRuns.values()) {
+            int end = (cursor == null) ? run.mCount : searchRun(run, cursor, true);
+            if (end > 0) {
+                cursors.add(new Cursor(run, end - 1, false));
+            }
+        }
+        return merge(cursors, limit, false);
+    }
+
+    public List<Data.AnnotatedMessage> getMessagesAfter(Data.AnnotatedMessage cursor, int limit) {
+        // Returns up to limit messages which precede the cursor in the timeline, nearest to the
+        // cursor, in timeline order
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (Run run : mRuns.values()) {
+            int start = searchRun(run, cursor, false);
+            if (start < run.mCount) {
+                cursors.add(new Cursor(run, start, true));
+            }
+        }
+        List<Data.AnnotatedMessage> messages = merge(cursors, limit, true);
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    private int searchRun(Run run, Data.AnnotatedMessage message, boolean inclusive) {
+        // Binary search for the first element in the run which precedes the message in the
+        // timeline (or is equal to it, when inclusive)
+        int low = 0;
+        int high = run.mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int result = mComparator.compare(run.get(middle), message);
+            if (result < 0 || (inclusive && result == 0)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private List<Data.AnnotatedMessage> merge() {
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (Run run : mRuns.values()) {
+            if (run.mCount > 0) {
+                cursors.add(new Cursor(run, run.mCount - 1, false));
+            }
+        }
+        return merge(cursors, Integer.MAX_VALUE, false);
+    }
+
+    private List<Data.AnnotatedMessage> merge(List<Cursor> cursors, int limit, final boolean reverse) {
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            count += reverse ? cursor.mRun.mCount - cursor.mIndex : cursor.mIndex + 1;
+        }
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(
+                Math.max(1, cursors.size()),
+                new Comparator<Cursor>() {
+                    @Override
+                    public int compare(Cursor a, Cursor b) {
+                        int result = mComparator.compare(a.current(), b.current());
+                        return reverse ? -result : result;
+                    }
+                });
+        queue.addAll(cursors);
+        List<Data.AnnotatedMessage> messages = new ArrayList<Data.AnnotatedMessage>(Math.min(count, limit));
+        while (!queue.isEmpty() && messages.size() < limit) {
+            Cursor cursor = queue.poll();
+            messages.add(cursor.current());
+            cursor.advance();
+            if (cursor.hasCurrent()) {
+                queue.add(cursor);
+            }
+        }
+        return messages;
+    }
+}
@@ -74,13 +74,15 @@ public class PloggyService extends Service {
     }
 
     private void doForeground() {
-        updateNotification(null);
+        updateNotification(0, null);
         startForeground(R.string.foregroundServiceNotificationId, mNotification);
     }
 
-    private void updateNotification(List<Data.AnnotatedMessage> newMessages) {
-        // Max, as per documentation: http://developer.android.com/reference/android/app/Notification.InboxStyle.html
-        final int MAX_LINES = 5;
+    // Max, as per documentation: http://developer.android.com/reference/android/app/Notification.InboxStyle.html
+    private static final int MAX_NOTIFICATION_LINES = 5;
+
+    private void updateNotification(int newMessageCount, List<Data.AnnotatedMessage> recentNewMessages) {
+        // recentNewMessages holds up to MAX_NOTIFICATION_LINES of the newMessageCount new messages
 
         // Invoke main Activity when notification is clicked
         Intent intent = new Intent(this, ActivityMain.class);
@@ -88,14 +90,14 @@ public class PloggyService extends Service {
 
         int iconResourceId;
         String contentTitle;
-        if (newMessages != null && newMessages.size() > 0) {
+        if (newMessageCount > 0) {
             intent.setAction(ActivityMain.ACTION_DISPLAY_MESSAGES);
             iconResourceId = R.drawable.ic_notification_with_new_messages;
             contentTitle =
                     getResources().getQuantityString(
                         R.plurals.foreground_service_notification_content_title_with_new_messages,
-                        newMessages.size(),
-                        newMessages.size());
+                        newMessageCount,
+                        newMessageCount);
         } else {
             intent.setAction("android.intent.action.MAIN");
             iconResourceId = R.drawable.ic_notification_without_new_messages;
@@ -112,26 +114,26 @@ public class PloggyService extends Service {
                 .setSmallIcon(iconResourceId);
 
         Notification notification;
-        if (newMessages != null && newMessages.size() > 0) {
+        if (newMessageCount > 0 && recentNewMessages != null) {
             // Use default (system) sound, lights, and vibrate
             notificationBuilder.setDefaults(Notification.DEFAULT_ALL);
 
             // Build email-style big view with summary of new messages
             Notification.InboxStyle inboxStyleBuilder =
                 new Notification.InboxStyle(notificationBuilder);
-            for (int i = 0; i < MAX_LINES && i < newMessages.size(); i++) {
+            for (int i = 0; i < MAX_NOTIFICATION_LINES && i < recentNewMessages.size(); i++) {
                 inboxStyleBuilder.addLine(
                     Html.fromHtml(
                         getString(
                             R.string.foreground_service_notification_inbox_line,
-                            newMessages.get(i).mPublicIdentity.mNickname,
-                            newMessages.get(i).mMessage.mContent)));
+                            recentNewMessages.get(i).mPublicIdentity.mNickname,
+                            recentNewMessages.get(i).mMessage.mContent)));
             }
-            if (newMessages.size() > MAX_LINES) {
+            if (newMessageCount > recentNewMessages.size()) {
                 inboxStyleBuilder.setSummaryText(
                     getString(
                         R.string.foreground_service_notification_inbox_summary,
-                        newMessages.size() - MAX_LINES));
+                        newMessageCount - recentNewMessages.size()));
             }
             notification = inboxStyleBuilder.build();
         } else {
@@ -156,7 +158,8 @@ public class PloggyService extends Service {
     public synchronized void onUpdatedNewMessages(Events.UpdatedNewMessages updatedNewMessages) {
         try {
             // Update the service notification with new messages
-            updateNotification(Data.getInstance().getNewMessages());
+            Data data = Data.getInstance();
+            updateNotification(data.getNewMessageCount(), data.getNewMessages(MAX_NOTIFICATION_LINES));
 
             NotificationManager notificationManager =
                     (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
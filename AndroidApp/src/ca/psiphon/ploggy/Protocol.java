@@ -24,26 +24,43 @@ package ca.psiphon.ploggy;
  */
 public class Protocol {
 
+    private static final String LOG_TAG = "Protocol";
+
     public static final String WEB_SERVER_PROTOCOL = "https";
 
     public static final int WEB_SERVER_VIRTUAL_PORT = 443;
 
     public static final String PUSH_STATUS_REQUEST_PATH = "/pushStatus";
+    // The version of the pushed status, so a stale push is rejected without parsing its body
+    public static final String PUSH_STATUS_REQUEST_VERSION_PARAMETER = "version";
 
     public static final String PULL_STATUS_REQUEST_PATH = "/pullStatus";
+    // The version of the status the puller already has; when absent, the full status is returned
+    public static final String PULL_STATUS_REQUEST_VERSION_PARAMETER = "version";
     public static final String PULL_STATUS_RESPONSE_MIME_TYPE = "application/json";
 
+    // Statuses are exchanged as Data.StatusDeltas from a version the peer has. A delta based on
+    // NO_STATUS_VERSION is a full status, sent on first contact or when the peer's version is unknown.
+    public static final long NO_STATUS_VERSION = -1;
+
     public static final String DOWNLOAD_REQUEST_PATH = "/download";
     public static final String DOWNLOAD_REQUEST_RESOURCE_ID_PARAMETER = "resourceId";
 
     public static int MAX_POST_REQUEST_BODY_SIZE = 1000000;
 
-    // TODO: limits in place for prototype, which is currently sending all messages in one blob
+    // Limits on received statuses, enforced by validateStatusDelta
     public static int MAX_MESSAGE_LENGTH = 200;
+    // Statuses carry this recent window; the complete history is kept locally, in MessageHistory
     public static int MAX_MESSAGE_COUNT = 50;
 
     public static int RESOURCE_ID_LENGTH = 32;
 
+    public static String makeStatusEntityTag(long version) {
+        // Pull responses are tagged with the status version. A pull whose If-None-Match is the current
+        // tag gets 304 Not Modified, with no body.
+        return "\"" + Long.toString(version) + "\"";
+    }
+
     public static boolean isValidNickname(String nickname) {
         // TODO: valid characters?
         return nickname.length() > 0;
@@ -57,4 +74,54 @@ public class Protocol {
     public static void validateStatus(Data.Status status) throws Utils.ApplicationError {
         // TODO: timestamp, long, lat, street address
     }
+
+    public static void validateStatusDelta(Data.StatusDelta statusDelta) throws Utils.ApplicationError {
+        if (statusDelta.mMessages == null || statusDelta.mMessages.size() > MAX_MESSAGE_COUNT) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid status delta messages");
+        }
+        for (Data.Message message : statusDelta.mMessages) {
+            validateMessage(message);
+        }
+        if (statusDelta.isFullStatus()) {
+            if (statusDelta.mLocation == null) {
+                throw new Utils.ApplicationError(LOG_TAG, "full status missing location");
+            }
+        } else if (statusDelta.mVersion <= statusDelta.mBaseVersion) {
+            // A delta is sent only when the status changed since the base version
+            throw new Utils.ApplicationError(LOG_TAG, "invalid status delta version");
+        }
+        if (statusDelta.mLocation != null) {
+            validateLocation(statusDelta.mLocation);
+        }
+    }
+
+    private static void validateMessage(Data.Message message) throws Utils.ApplicationError {
+        if (message == null
+                || message.mTimestamp == null
+                || message.mTimestamp.getTime() < 0
+                || message.mContent == null
+                || message.mContent.length() > MAX_MESSAGE_LENGTH) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid message");
+        }
+        if (message.mAttachments != null) {
+            for (Data.Resource resource : message.mAttachments) {
+                if (resource == null || resource.mId == null || resource.mMimeType == null || resource.mSize < 0) {
+                    throw new Utils.ApplicationError(LOG_TAG, "invalid message attachment");
+                }
+            }
+        }
+    }
+
+    private static void validateLocation(Data.Location location) throws Utils.ApplicationError {
+        // A location with no timestamp isn't shared, and its other fields are unused
+        if (location.mTimestamp == null) {
+            return;
+        }
+        if (location.mTimestamp.getTime() < 0
+                || !(location.mLatitude >= -90 && location.mLatitude <= 90)
+                || !(location.mLongitude >= -180 && location.mLongitude <= 180)
+                || location.mPrecision < 0) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid location");
+        }
+    }
 }
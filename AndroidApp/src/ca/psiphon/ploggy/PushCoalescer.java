@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.List;
+
+/**
+ * Coalesces self status changes into pushes to friends.
+ *
+ * Each change restarts the push delay, but the push is due no more than the maximum delay after the
+ * first pending change. The push sends whatever the self status is by then, so one push covers every
+ * pending change. A minor change isn't pushed, and friends get it when they next pull: the status is
+ * unchanged since the last push, or only its location changed, by less than the push distance.
+ *
+ * Data builds a new status, with new lists, for every change, so statuses are compared by content.
+ * Messages are only added, newest first, so the newest message and the count identify the messages.
+ *
+ * Times are from the clock, which for Engine is SystemClock.uptimeMillis, as used by its Handler.
+ */
+public class PushCoalescer {
+
+    public interface Clock {
+        public long getTimeInMilliseconds();
+    }
+
+    public static final long NO_PUSH = -1;
+
+    private final Clock mClock;
+    private long mDelayInMilliseconds;
+    private long mMaximumDelayInMilliseconds;
+    private int mDistanceInMeters;
+    // The time of the first change since the last push, or NO_PUSH when no push is pending
+    private long mFirstPendingChangeTime = NO_PUSH;
+    // The self status as of the last push, to which changes are compared
+    private Data.Status mLastPushedStatus;
+
+    public PushCoalescer(Clock clock) {
+        mClock = clock;
+    }
+
+    public synchronized void setPolicy(long delayInMilliseconds, long maximumDelayInMilliseconds, int distanceInMeters) {
+        mDelayInMilliseconds = delayInMilliseconds;
+        mMaximumDelayInMilliseconds = maximumDelayInMilliseconds;
+        mDistanceInMeters = distanceInMeters;
+    }
+
+    public synchronized long onStatusChanged(Data.Status status) {
+        // Returns the delay until the push, which replaces any push scheduled before, or NO_PUSH when
+        // the change is minor, in which case any scheduled push stands
+        if (isMinorChange(status)) {
+            return NO_PUSH;
+        }
+        long now = mClock.getTimeInMilliseconds();
+        if (mFirstPendingChangeTime == NO_PUSH) {
+            mFirstPendingChangeTime = now;
+        }
+        return Math.max(0, Math.min(mDelayInMilliseconds, mFirstPendingChangeTime + mMaximumDelayInMilliseconds - now));
+    }
+
+    public synchronized void onPushed(Data.Status status) {
+        // Call when the push runs, with the status it sends
+        mFirstPendingChangeTime = NO_PUSH;
+        mLastPushedStatus = status;
+    }
+
+    public synchronized void cancel() {
+        // Drops the pending push
+        mFirstPendingChangeTime = NO_PUSH;
+    }
+
+    public synchronized void resetLastPushedStatus() {
+        // The next change is pushed, whatever it is
+        mLastPushedStatus = null;
+    }
+
+    private boolean isMinorChange(Data.Status status) {
+        if (mLastPushedStatus == null) {
+            return false;
+        }
+        if (!isSameMessages(status.mMessages, mLastPushedStatus.mMessages)) {
+            return false;
+        }
+        Data.Location pushedLocation = mLastPushedStatus.mLocation;
+        Data.Location location = status.mLocation;
+        boolean wasShared = (pushedLocation != null && pushedLocation.mTimestamp != null);
+        boolean isShared = (location != null && location.mTimestamp != null);
+        if (!wasShared || !isShared) {
+            // Minor only when still not shared; sharing starting or stopping is pushed
+            return !wasShared && !isShared;
+        }
+        int distance = Utils.calculateLocationDistanceInMeters(
+                pushedLocation.mLatitude, pushedLocation.mLongitude, location.mLatitude, location.mLongitude);
+        return distance < mDistanceInMeters;
+    }
+
+    private static boolean isSameMessages(List<Data.Message> a, List<Data.Message> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        if (a.isEmpty()) {
+            return true;
+        }
+        Data.Message newestA = a.get(0);
+        Data.Message newestB = b.get(0);
+        return newestA.mTimestamp.equals(newestB.mTimestamp) && newestA.mContent.equals(newestB.mContent);
+    }
+}
@@ -105,6 +105,11 @@ public class Resources {
         }
     }
 
+    public static void deleteTemporaryCopy(Data.LocalResource localResource) {
+        // The scaled down copy of a picture is only needed while the resource is published
+        getTemporaryCopyFile(localResource.mResourceId).delete();
+    }
+
     private static File getTemporaryCopyFile(String resourceId) {
         File directory = Utils.getApplicationContext().getCacheDir();
         directory.mkdirs();
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+/**
+ * Cache of encoded self status deltas, shared by status pushes and pull responses.
+ *
+ * After a self status change, the delta is pushed to, and pulled by, every friend, and friends mostly
+ * have the same base version. So each distinct delta is encoded, as UTF-8 JSON, once per self status
+ * version instead of once per friend request, and the bytes are sent as is. Payloads are keyed by
+ * base version and version; only those for the newest version requested are kept, which is at most
+ * one per recent self status retained by Data, plus the full and the empty delta.
+ */
+public class StatusDeltaPayloadCache {
+
+    private static final String LOG_TAG = "Status Delta Payload Cache";
+
+    public static class Payload {
+        public final long mBaseVersion;
+        public final long mVersion;
+        public final byte[] mBody;
+
+        public Payload(long baseVersion, long version, byte[] body) {
+            mBaseVersion = baseVersion;
+            mVersion = version;
+            mBody = body;
+        }
+    }
+
+    private long mVersion = Protocol.NO_STATUS_VERSION;
+    // Payloads for mVersion, by base version
+    private final HashMap<Long, Payload> mPayloads = new HashMap<Long, Payload>();
+    private int mHitCount;
+    private int mMissCount;
+
+    public Payload get(Data.StatusDelta statusDelta) throws Utils.ApplicationError {
+        synchronized (this) {
+            if (statusDelta.mVersion == mVersion) {
+                Payload payload = mPayloads.get(statusDelta.mBaseVersion);
+                if (payload != null) {
+                    mHitCount++;
+                    return payload;
+                }
+            }
+            mMissCount++;
+        }
+        // Encoded without holding the lock, so a large full status doesn't block other requests;
+        // concurrent misses for the same delta may each encode it
+        Payload payload;
+        try {
+            payload = new Payload(
+                    statusDelta.mBaseVersion,
+                    statusDelta.mVersion,
+                    Json.toJson(statusDelta).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        synchronized (this) {
+            // A delta for an older version, from a request that raced a self status change, isn't cached
+            if (statusDelta.mVersion > mVersion) {
+                mPayloads.clear();
+                mVersion = statusDelta.mVersion;
+            }
+            if (statusDelta.mVersion == mVersion) {
+                mPayloads.put(statusDelta.mBaseVersion, payload);
+            }
+        }
+        return payload;
+    }
+
+    public synchronized void invalidate() {
+        // Call when the self status changes. Entries are keyed by version, so this only releases memory.
+        mPayloads.clear();
+        mVersion = Protocol.NO_STATUS_VERSION;
+    }
+
+    public synchronized int size() {
+        return mPayloads.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encoding of persisted Data values to and from streams: legacy JSON files, and KeyValueStore values.
+ *
+ * Two codecs are provided: JSON, the original on-disk format, which is still used for self and to
+ * read the files written by earlier versions; and a compact binary encoding for the friend, status,
+ * download and local resource values, which are the bulk of what's loaded at startup.
+ *
+ * The binary encoding is a header (magic number and format version) followed by the value. Integers
+ * are unsigned LEB128 varints (signed values are zigzag encoded), strings are length-prefixed UTF-8,
+ * doubles are 8 bytes, and dates are millisecond varints. Nullable strings, dates, lists and records
+ * are encoded with 0 for null and length + 1 otherwise. Each record (friend, message, location,
+ * download, local resource) is length-prefixed, so a reader skips fields appended to a record by a
+ * later format version; fields appended to a value, such as the status version, are read only from
+ * values written in a format version that has them. Location history tracks are delta encoded instead.
+ */
+public abstract class StorageCodec<T> {
+
+    private static final String LOG_TAG = "Storage Codec";
+    // Location track coordinates are fixed-point, in units of 1e-7 degrees (about 1cm)
+    private static final double LOCATION_TRACK_SCALE = 1e7;
+
+    public abstract void encode(T value, OutputStream outputStream) throws IOException, Utils.ApplicationError;
+
+    public abstract T decode(InputStream inputStream) throws IOException, Utils.ApplicationError;
+
+    public static <T> StorageCodec<T> json(final Class<T> type) {
+        return new StorageCodec<T>() {
+            @Override
+            public void encode(T value, OutputStream outputStream) throws IOException, Utils.ApplicationError {
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+                Json.toJson(value, writer);
+                writer.flush();
+            }
+
+            @Override
+            public T decode(InputStream inputStream) throws IOException, Utils.ApplicationError {
+                return Json.fromJson(new BufferedReader(new InputStreamReader(inputStream, "UTF-8")), type);
+            }
+        };
+    }
+
+    public static <T> StorageCodec<Collection<T>> jsonList(final Class<T[]> arrayType) {
+        // JSON arrays are decoded via the array type, as GSON can't be given a generic list type here
+        final StorageCodec<T[]> arrayCodec = json(arrayType);
+        return new StorageCodec<Collection<T>>() {
+            @Override
+            public void encode(Collection<T> value, OutputStream outputStream) throws IOException, Utils.ApplicationError {
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+                Json.toJson(value, writer);
+                writer.flush();
+            }
+
+            @Override
+            public Collection<T> decode(InputStream inputStream) throws IOException, Utils.ApplicationError {
+                return Arrays.asList(arrayCodec.decode(inputStream));
+            }
+        };
+    }
+
+    public static final StorageCodec<Data.Friend> BINARY_FRIEND =
+        new BinaryCodec<Data.Friend>() {
+            @Override
+            protected void writeValue(BinaryWriter writer, Data.Friend friend) throws IOException {
+                writeFriend(writer, friend);
+            }
+
+            @Override
+            protected Data.Friend readValue(BinaryReader reader) throws IOException, Utils.ApplicationError {
+                return readFriend(reader);
+            }
+        };
+
+    public static final StorageCodec<Data.Status> BINARY_STATUS =
+        new BinaryCodec<Data.Status>() {
+            @Override
+            protected void writeValue(BinaryWriter writer, Data.Status status) throws IOException {
+                writeLocation(writer, status.mLocation);
+                if (status.mMessages == null) {
+                    writer.writeNullableCount(-1);
+                } else {
+                    writer.writeNullableCount(status.mMessages.size());
+                    for (Data.Message message : status.mMessages) {
+                        writeMessage(writer, message);
+                    }
+                }
+                writer.writeSignedVarint(status.mVersion);
+            }
+
+            @Override
+            protected Data.Status readValue(BinaryReader reader) throws IOException {
+                Data.Location location = readLocation(reader);
+                List<Data.Message> messages = null;
+                int count = reader.readNullableCount();
+                if (count >= 0) {
+                    messages = new ArrayList<Data.Message>(count);
+                    for (int i = 0; i < count; i++) {
+                        messages.add(readMessage(reader));
+                    }
+                }
+                // Statuses written before format version 2 aren't versioned
+                long version = Protocol.NO_STATUS_VERSION;
+                if (reader.getFormatVersion() >= 2) {
+                    version = reader.readSignedVarint();
+                }
+                return new Data.Status(messages, location, version);
+            }
+        };
+
+    public static final StorageCodec<Collection<Data.Message>> BINARY_MESSAGES =
+        new BinaryListCodec<Data.Message>() {
+            @Override
+            protected void writeElement(BinaryWriter writer, Data.Message message) throws IOException {
+                writeMessage(writer, message);
+            }
+
+            @Override
+            protected Data.Message readElement(BinaryReader reader) throws IOException {
+                return readMessage(reader);
+            }
+        };
+
+    public static final StorageCodec<List<Data.Location>> BINARY_LOCATION_TRACK =
+        new BinaryCodec<List<Data.Location>>() {
+            // A time-ordered sequence of locations. To keep long tracks small, points aren't records:
+            // each is the signed varint delta from the previous point of its timestamp and of its
+            // fixed-point latitude and longitude, followed by its precision. Street addresses aren't kept.
+            @Override
+            protected void writeValue(BinaryWriter writer, List<Data.Location> locations) throws IOException {
+                writer.writeVarint(locations.size());
+                long previousTimestamp = 0;
+                long previousLatitude = 0;
+                long previousLongitude = 0;
+                for (Data.Location location : locations) {
+                    long timestamp = location.mTimestamp.getTime();
+                    long latitude = Math.round(location.mLatitude*LOCATION_TRACK_SCALE);
+                    long longitude = Math.round(location.mLongitude*LOCATION_TRACK_SCALE);
+                    writer.writeSignedVarint(timestamp - previousTimestamp);
+                    writer.writeSignedVarint(latitude - previousLatitude);
+                    writer.writeSignedVarint(longitude - previousLongitude);
+                    writer.writeSignedVarint(location.mPrecision);
+                    previousTimestamp = timestamp;
+                    previousLatitude = latitude;
+                    previousLongitude = longitude;
+                }
+            }
+
+            @Override
+            protected List<Data.Location> readValue(BinaryReader reader) throws IOException {
+                int count = (int)reader.readVarint();
+                List<Data.Location> locations = new ArrayList<Data.Location>(count);
+                long timestamp = 0;
+                long latitude = 0;
+                long longitude = 0;
+                for (int i = 0; i < count; i++) {
+                    timestamp += reader.readSignedVarint();
+                    latitude += reader.readSignedVarint();
+                    longitude += reader.readSignedVarint();
+                    locations.add(
+                        new Data.Location(
+                            new Date(timestamp),
+                            latitude/LOCATION_TRACK_SCALE,
+                            longitude/LOCATION_TRACK_SCALE,
+                            (int)reader.readSignedVarint(),
+                            null));
+                }
+                return locations;
+            }
+        };
+
+    public static final StorageCodec<Data.Download> BINARY_DOWNLOAD =
+        new BinaryCodec<Data.Download>() {
+            @Override
+            protected void writeValue(BinaryWriter writer, Data.Download download) throws IOException {
+                writeDownload(writer, download);
+            }
+
+            @Override
+            protected Data.Download readValue(BinaryReader reader) throws IOException {
+                return readDownload(reader);
+            }
+        };
+
+    public static final StorageCodec<Data.LocalResource> BINARY_LOCAL_RESOURCE =
+        new BinaryCodec<Data.LocalResource>() {
+            @Override
+            protected void writeValue(BinaryWriter writer, Data.LocalResource localResource) throws IOException {
+                writeLocalResource(writer, localResource);
+            }
+
+            @Override
+            protected Data.LocalResource readValue(BinaryReader reader) throws IOException {
+                return readLocalResource(reader);
+            }
+        };
+
+    public static final StorageCodec<Data.TimelineIndex> BINARY_TIMELINE_INDEX =
+        new BinaryCodec<Data.TimelineIndex>() {
+            @Override
+            protected void writeValue(BinaryWriter writer, Data.TimelineIndex timelineIndex) throws IOException {
+                writer.writeDate(timelineIndex.mBoundary);
+                writer.writeVarint(timelineIndex.mEntries.size());
+                for (Data.TimelineIndexEntry entry : timelineIndex.mEntries) {
+                    // Records don't nest, so the friend id precedes the message record
+                    writer.writeString(entry.mFriendId);
+                    writeMessage(writer, entry.mMessage);
+                }
+            }
+
+            @Override
+            protected Data.TimelineIndex readValue(BinaryReader reader) throws IOException {
+                Date boundary = reader.readDate();
+                int count = (int)reader.readVarint();
+                List<Data.TimelineIndexEntry> entries = new ArrayList<Data.TimelineIndexEntry>(count);
+                for (int i = 0; i < count; i++) {
+                    String friendId = reader.readString();
+                    entries.add(new Data.TimelineIndexEntry(friendId, readMessage(reader)));
+                }
+                return new Data.TimelineIndex(boundary, entries);
+            }
+        };
+
+    public static <T> byte[] encode(StorageCodec<T> codec, T value) throws Utils.ApplicationError {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            codec.encode(value, outputStream);
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static <T> T decode(StorageCodec<T> codec, byte[] value) throws Utils.ApplicationError {
+        try {
+            return codec.decode(new ByteArrayInputStream(value));
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private static void writeFriend(BinaryWriter writer, Data.Friend friend) throws IOException {
+        writer.beginRecord();
+        Identity.PublicIdentity publicIdentity = friend.mPublicIdentity;
+        writer.writeString(publicIdentity.mNickname);
+        writer.writeString(publicIdentity.mX509Certificate);
+        writer.writeString(publicIdentity.mHiddenServiceHostname);
+        writer.writeString(publicIdentity.mHiddenServiceAuthCookie);
+        writer.writeString(publicIdentity.mSignature);
+        writer.writeDate(friend.mAddedTimestamp);
+        writer.writeDate(friend.mLastSentStatusTimestamp);
+        writer.writeDate(friend.mLastReceivedStatusTimestamp);
+        writer.writeDate(friend.mLastReadMessageTimestamp);
+        writer.endRecord();
+    }
+
+    private static Data.Friend readFriend(BinaryReader reader) throws IOException, Utils.ApplicationError {
+        reader.beginRecord();
+        Identity.PublicIdentity publicIdentity =
+                new Identity.PublicIdentity(
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readString());
+        Data.Friend friend =
+                new Data.Friend(
+                        publicIdentity,
+                        reader.readDate(),
+                        reader.readDate(),
+                        reader.readDate(),
+                        reader.readDate());
+        reader.endRecord();
+        return friend;
+    }
+
+    private static void writeDownload(BinaryWriter writer, Data.Download download) throws IOException {
+        writer.beginRecord();
+        writer.writeString(download.mFriendId);
+        writer.writeString(download.mResourceId);
+        writer.writeString(download.mMimeType);
+        writer.writeVarint(download.mSize);
+        writer.writeEnum(download.mState);
+        writer.endRecord();
+    }
+
+    private static Data.Download readDownload(BinaryReader reader) throws IOException {
+        reader.beginRecord();
+        Data.Download download =
+                new Data.Download(
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readVarint(),
+                        reader.readEnum(Data.Download.State.values()));
+        reader.endRecord();
+        return download;
+    }
+
+    private static void writeLocalResource(BinaryWriter writer, Data.LocalResource localResource) throws IOException {
+        writer.beginRecord();
+        writer.writeEnum(localResource.mType);
+        writer.writeString(localResource.mResourceId);
+        writer.writeString(localResource.mMimeType);
+        writer.writeString(localResource.mFilePath);
+        writer.writeString(localResource.mTempFilePath);
+        writer.endRecord();
+    }
+
+    private static Data.LocalResource readLocalResource(BinaryReader reader) throws IOException {
+        reader.beginRecord();
+        Data.LocalResource localResource =
+                new Data.LocalResource(
+                        reader.readEnum(Data.LocalResource.Type.values()),
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readString(),
+                        reader.readString());
+        reader.endRecord();
+        return localResource;
+    }
+
+    private static void writeLocation(BinaryWriter writer, Data.Location location) throws IOException {
+        if (location == null) {
+            writer.writeNullRecord();
+            return;
+        }
+        writer.beginRecord();
+        writer.writeDate(location.mTimestamp);
+        writer.writeDouble(location.mLatitude);
+        writer.writeDouble(location.mLongitude);
+        writer.writeSignedVarint(location.mPrecision);
+        writer.writeString(location.mStreetAddress);
+        writer.endRecord();
+    }
+
+    private static Data.Location readLocation(BinaryReader reader) throws IOException {
+        if (!reader.beginRecord()) {
+            return null;
+        }
+        Data.Location location =
+                new Data.Location(
+                        reader.readDate(),
+                        reader.readDouble(),
+                        reader.readDouble(),
+                        (int)reader.readSignedVarint(),
+                        reader.readString());
+        reader.endRecord();
+        return location;
+    }
+
+    private static void writeMessage(BinaryWriter writer, Data.Message message) throws IOException {
+        writer.beginRecord();
+        writer.writeDate(message.mTimestamp);
+        writer.writeString(message.mContent);
+        if (message.mAttachments == null) {
+            writer.writeNullableCount(-1);
+        } else {
+            writer.writeNullableCount(message.mAttachments.size());
+            for (Data.Resource resource : message.mAttachments) {
+                writer.writeString(resource.mId);
+                writer.writeString(resource.mMimeType);
+                writer.writeVarint(resource.mSize);
+            }
+        }
+        writer.endRecord();
+    }
+
+    private static Data.Message readMessage(BinaryReader reader) throws IOException {
+        reader.beginRecord();
+        Date timestamp = reader.readDate();
+        String content = reader.readString();
+        List<Data.Resource> attachments = null;
+        int count = reader.readNullableCount();
+        if (count >= 0) {
+            attachments = new ArrayList<Data.Resource>(count);
+            for (int i = 0; i < count; i++) {
+                attachments.add(new Data.Resource(reader.readString(), reader.readString(), reader.readVarint()));
+            }
+        }
+        reader.endRecord();
+        return new Data.Message(timestamp, content, attachments);
+    }
+
+    private static abstract class BinaryCodec<T> extends StorageCodec<T> {
+        private static final int MAGIC = 0x504c4f47; // "PLOG"
+        // Version 2 appends the status version
+        private static final int FORMAT_VERSION = 2;
+
+        protected abstract void writeValue(BinaryWriter writer, T value) throws IOException;
+
+        protected abstract T readValue(BinaryReader reader) throws IOException, Utils.ApplicationError;
+
+        @Override
+        public void encode(T value, OutputStream outputStream) throws IOException {
+            BinaryWriter writer = new BinaryWriter(new BufferedOutputStream(outputStream));
+            writer.writeFixedInt(MAGIC);
+            writer.writeVarint(FORMAT_VERSION);
+            writeValue(writer, value);
+            writer.flush();
+        }
+
+        @Override
+        public T decode(InputStream inputStream) throws IOException, Utils.ApplicationError {
+            BinaryReader reader = new BinaryReader(new BufferedInputStream(inputStream));
+            if (reader.readFixedInt() != MAGIC) {
+                throw new Utils.ApplicationError(LOG_TAG, "invalid binary file");
+            }
+            // Later format versions only append fields, to records, which are skipped, or to values, which
+            // are read according to the format version
+            long formatVersion = reader.readVarint();
+            if (formatVersion < 1) {
+                throw new Utils.ApplicationError(LOG_TAG, "unsupported binary format version");
+            }
+            reader.setFormatVersion(formatVersion);
+            return readValue(reader);
+        }
+    }
+
+    private static abstract class BinaryListCodec<T> extends BinaryCodec<Collection<T>> {
+        protected abstract void writeElement(BinaryWriter writer, T element) throws IOException;
+
+        protected abstract T readElement(BinaryReader reader) throws IOException, Utils.ApplicationError;
+
+        @Override
+        protected void writeValue(BinaryWriter writer, Collection<T> elements) throws IOException {
+            writer.writeVarint(elements.size());
+            for (T element : elements) {
+                writeElement(writer, element);
+            }
+        }
+
+        @Override
+        protected Collection<T> readValue(BinaryReader reader) throws IOException, Utils.ApplicationError {
+            int count = (int)reader.readVarint();
+            List<T> elements = new ArrayList<T>(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(readElement(reader));
+            }
+            return elements;
+        }
+    }
+
+    private static class BinaryWriter {
+        // Record contents are staged in mRecordBuffer so their length can be written first;
+        // records don't nest, so one buffer suffices
+        private final OutputStream mOutputStream;
+        private final ByteArrayOutputStream mRecordBuffer;
+        private OutputStream mTarget;
+
+        public BinaryWriter(OutputStream outputStream) {
+            mOutputStream = outputStream;
+            mRecordBuffer = new ByteArrayOutputStream();
+            mTarget = mOutputStream;
+        }
+
+        public void beginRecord() {
+            mRecordBuffer.reset();
+            mTarget = mRecordBuffer;
+        }
+
+        public void endRecord() throws IOException {
+            mTarget = mOutputStream;
+            writeVarint(mRecordBuffer.size() + 1);
+            mRecordBuffer.writeTo(mOutputStream);
+        }
+
+        public void writeNullRecord() throws IOException {
+            writeVarint(0);
+        }
+
+        public void writeVarint(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mTarget.write((int)((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            mTarget.write((int)value);
+        }
+
+        public void writeSignedVarint(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        public void writeNullableCount(int count) throws IOException {
+            writeVarint(count + 1);
+        }
+
+        public void writeFixedInt(int value) throws IOException {
+            mTarget.write(value >>> 24);
+            mTarget.write(value >>> 16);
+            mTarget.write(value >>> 8);
+            mTarget.write(value);
+        }
+
+        public void writeDouble(double value) throws IOException {
+            long bits = Double.doubleToLongBits(value);
+            writeFixedInt((int)(bits >>> 32));
+            writeFixedInt((int)bits);
+        }
+
+        public void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarint(bytes.length + 1);
+            mTarget.write(bytes);
+        }
+
+        public void writeDate(Date value) throws IOException {
+            writeVarint((value == null) ? 0 : value.getTime() + 1);
+        }
+
+        public void writeEnum(Enum<?> value) throws IOException {
+            // Enum values must only be appended, as the ordinal is stored
+            writeVarint((value == null) ? 0 : value.ordinal() + 1);
+        }
+
+        public void flush() throws IOException {
+            mOutputStream.flush();
+        }
+    }
+
+    private static class BinaryReader {
+        private final InputStream mInputStream;
+        private long mFormatVersion;
+        private long mPosition;
+        private long mRecordEnd;
+
+        public BinaryReader(InputStream inputStream) {
+            mInputStream = inputStream;
+            mPosition = 0;
+            mRecordEnd = -1;
+        }
+
+        public void setFormatVersion(long formatVersion) {
+            mFormatVersion = formatVersion;
+        }
+
+        public long getFormatVersion() {
+            return mFormatVersion;
+        }
+
+        public boolean beginRecord() throws IOException {
+            // Returns false for a null record
+            long length = readVarint();
+            if (length == 0) {
+                return false;
+            }
+            mRecordEnd = mPosition + length - 1;
+            return true;
+        }
+
+        public void endRecord() throws IOException {
+            while (mPosition < mRecordEnd) {
+                readByte();
+            }
+            mRecordEnd = -1;
+        }
+
+        private int readByte() throws IOException {
+            int value = mInputStream.read();
+            if (value == -1) {
+                throw new EOFException();
+            }
+            mPosition++;
+            return value;
+        }
+
+        public long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("invalid varint");
+        }
+
+        public long readSignedVarint() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public int readNullableCount() throws IOException {
+            return (int)readVarint() - 1;
+        }
+
+        public int readFixedInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        public double readDouble() throws IOException {
+            long high = readFixedInt() & 0xffffffffL;
+            long low = readFixedInt() & 0xffffffffL;
+            return Double.longBitsToDouble((high << 32) | low);
+        }
+
+        public String readString() throws IOException, UnsupportedEncodingException {
+            long length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[(int)length - 1];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int readCount = mInputStream.read(bytes, offset, bytes.length - offset);
+                if (readCount == -1) {
+                    throw new EOFException();
+                }
+                offset += readCount;
+            }
+            mPosition += bytes.length;
+            return new String(bytes, "UTF-8");
+        }
+
+        public Date readDate() throws IOException {
+            long value = readVarint();
+            return (value == 0) ? null : new Date(value - 1);
+        }
+
+        public <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+            long value = readVarint();
+            if (value == 0) {
+                return null;
+            }
+            if (value > values.length) {
+                throw new IOException("invalid enum value");
+            }
+            return values[(int)value - 1];
+        }
+    }
+}
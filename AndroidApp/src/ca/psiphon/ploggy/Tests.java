@@ -67,6 +67,7 @@ public class Tests {
         private final double mMockLatitude;
         private final double mMockLongitude;
         private final String mMockAddress;
+        private final StatusDeltaPayloadCache mMockStatusPayloads = new StatusDeltaPayloadCache();
 
         MockRequestHandler() {
             mMockTimestamp = new Date();
@@ -84,8 +85,10 @@ public class Tests {
             mThreadPool.execute(task);
         }
 
-        public Data.Status getMockStatus() {
-            return new Data.Status(
+        public Data.StatusDelta getMockStatus() {
+            return new Data.StatusDelta(
+                    Protocol.NO_STATUS_VERSION,
+                    1,
                     Arrays.asList(new Data.Message(mMockTimestamp, "", null)),
                     new Data.Location(
                         mMockTimestamp,
@@ -96,13 +99,18 @@ public class Tests {
         }
 
         @Override
-        public Data.Status handlePullStatusRequest(String friendId) throws Utils.ApplicationError {
+        public StatusDeltaPayloadCache.Payload handlePullStatusRequest(String friendId, long baseVersion) throws Utils.ApplicationError {
             Log.addEntry(LOG_TAG, "handle pull status request...");
-            return getMockStatus();
+            return mMockStatusPayloads.get(getMockStatus());
         }
 
         @Override
-        public void handlePushStatusRequest(String friendId, Data.Status status) throws Utils.ApplicationError {
+        public boolean isStalePushStatusRequest(String friendId, long version) throws Utils.ApplicationError {
+            return false;
+        }
+
+        @Override
+        public void handlePushStatusRequest(String friendId, Data.StatusDelta statusDelta) throws Utils.ApplicationError {
             Log.addEntry(LOG_TAG, "handle push status request...");
         }
 
@@ -198,7 +206,7 @@ public class Tests {
                         "127.0.0.1",
                         selfWebServer.getListeningPort(),
                         Protocol.PULL_STATUS_REQUEST_PATH);
-                Protocol.validateStatus(Json.fromJson(response, Data.Status.class));
+                Protocol.validateStatusDelta(Json.fromJson(response, Data.StatusDelta.class));
                 if (!response.equals(expectedResponse)) {
                     throw new Utils.ApplicationError(LOG_TAG, "unexpected status response value");
                 }
@@ -213,6 +221,30 @@ public class Tests {
                         expectedResponse);
             }
 
+            Log.addEntry(LOG_TAG, "Direct conditional GET requests from valid friend...");
+            response = WebClient.makeConditionalGetRequest(
+                    friendX509KeyMaterial,
+                    self.mPublicIdentity.mX509Certificate,
+                    WebClient.UNTUNNELED_REQUEST,
+                    "127.0.0.1",
+                    selfWebServer.getListeningPort(),
+                    Protocol.PULL_STATUS_REQUEST_PATH,
+                    null);
+            if (response == null || !response.equals(expectedResponse)) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected status response value");
+            }
+            response = WebClient.makeConditionalGetRequest(
+                    friendX509KeyMaterial,
+                    self.mPublicIdentity.mX509Certificate,
+                    WebClient.UNTUNNELED_REQUEST,
+                    "127.0.0.1",
+                    selfWebServer.getListeningPort(),
+                    Protocol.PULL_STATUS_REQUEST_PATH,
+                    null);
+            if (response != null) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected modified status response");
+            }
+
             Log.addEntry(LOG_TAG, "Run self Tor...");
             List<TorWrapper.HiddenServiceAuth> selfHiddenServiceAuths = new ArrayList<TorWrapper.HiddenServiceAuth>();
             selfHiddenServiceAuths.add(
@@ -261,7 +293,7 @@ public class Tests {
                         self.mPublicIdentity.mHiddenServiceHostname,
                         Protocol.WEB_SERVER_VIRTUAL_PORT,
                         Protocol.PULL_STATUS_REQUEST_PATH);
-                Protocol.validateStatus(Json.fromJson(response, Data.Status.class));
+                Protocol.validateStatusDelta(Json.fromJson(response, Data.StatusDelta.class));
                 if (!response.equals(expectedResponse)) {
                     throw new Utils.ApplicationError(LOG_TAG, "unexpected status response value");
                 }
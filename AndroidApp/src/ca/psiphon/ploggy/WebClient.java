@@ -35,10 +35,12 @@ import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLContext;
 
 import android.util.Pair;
+import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
@@ -78,6 +80,9 @@ public class WebClient {
     private static final int CONNECT_TIMEOUT_MILLISECONDS = 60000;
     private static final int READ_TIMEOUT_MILLISECONDS = 60000;
 
+    // Entity tag of the last response to each conditional request, by peer certificate and request path
+    private static final ConcurrentHashMap<String, String> mEntityTags = new ConcurrentHashMap<String, String>();
+
     // TODO: fluent interface for makeRequest
 
     public static String makeGetRequest(
@@ -162,6 +167,70 @@ public class WebClient {
                 responseBodyStream);
     }
 
+    public static String makeConditionalGetRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            List<Pair<String,String>> requestParameters) throws Utils.ApplicationError {
+        // Sends the entity tag of the last response from the peer for requestPath. Returns null when
+        // the peer responds that it's not modified; the body isn't sent, and there's nothing to parse.
+        String entityTagKey = getEntityTagKey(peerCertificate, requestPath);
+        ByteArrayOutputStream responseBodyStream = new ByteArrayOutputStream();
+        boolean modified = makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                requestParameters,
+                null,  // requestBodyMimeType
+                -1,    // requestBodyLength
+                null,  // requestBodyStream
+                null,  // rangeHeader
+                entityTagKey,
+                responseBodyStream);
+        if (!modified) {
+            return null;
+        }
+        try {
+            return new String(responseBodyStream.toByteArray(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static void clearEntityTag(String peerCertificate, String requestPath) {
+        // Call when the last response wasn't applied, so the next conditional request gets the full response
+        mEntityTags.remove(getEntityTagKey(peerCertificate, requestPath));
+    }
+
+    private static String getEntityTagKey(String peerCertificate, String requestPath) {
+        return peerCertificate + requestPath;
+    }
+
+    public static void makeJsonPostRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            String requestBody) throws Utils.ApplicationError {
+        makeJsonPostRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                null,  // requestParameters
+                requestBody);
+    }
+
     public static void makeJsonPostRequest(
             X509.KeyMaterial x509KeyMaterial,
             String peerCertificate,
@@ -169,13 +238,33 @@ public class WebClient {
             String hostname,
             int port,
             String requestPath,
+            List<Pair<String,String>> requestParameters,
             String requestBody) throws Utils.ApplicationError {
-        byte[] body;
         try {
-            body = requestBody.getBytes("UTF-8");
+            makeJsonPostRequest(
+                    x509KeyMaterial,
+                    peerCertificate,
+                    localSocksProxyPort,
+                    hostname,
+                    port,
+                    requestPath,
+                    requestParameters,
+                    requestBody.getBytes("UTF-8"));
         } catch (UnsupportedEncodingException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         }
+    }
+
+    public static void makeJsonPostRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            List<Pair<String,String>> requestParameters,
+            byte[] body) throws Utils.ApplicationError {
+        // The body is already UTF-8 encoded JSON, and is sent as is
         makeRequest(
             x509KeyMaterial,
             peerCertificate,
@@ -183,7 +272,7 @@ public class WebClient {
             hostname,
             port,
             requestPath,
-            null,  // requestParameters
+            requestParameters,
             "application/json",
             body.length,
             new ByteArrayInputStream(body),
@@ -204,6 +293,37 @@ public class WebClient {
             InputStream requestBodyStream,
             Pair<Long, Long> rangeHeader,
             OutputStream responseBodyStream) throws Utils.ApplicationError {
+        makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                requestParameters,
+                requestBodyMimeType,
+                requestBodyLength,
+                requestBodyStream,
+                rangeHeader,
+                null,  // entityTagKey
+                responseBodyStream);
+    }
+
+    private static boolean makeRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            List<Pair<String,String>> requestParameters,
+            String requestBodyMimeType,
+            long requestBodyLength,
+            InputStream requestBodyStream,
+            Pair<Long, Long> rangeHeader,
+            String entityTagKey,
+            OutputStream responseBodyStream) throws Utils.ApplicationError {
+        // With an entityTagKey, the request is conditional; returns false when the response is 304 Not Modified
         HttpRequestBase request = null;
         ClientConnectionManager connectionManager = null;
         try {
@@ -251,8 +371,18 @@ public class WebClient {
                 }
                 request.addHeader("Range", value);
             }
+            if (entityTagKey != null) {
+                String entityTag = mEntityTags.get(entityTagKey);
+                if (entityTag != null) {
+                    request.addHeader("If-None-Match", entityTag);
+                }
+            }
             HttpResponse response = client.execute(request);
             int statusCode = response.getStatusLine().getStatusCode();
+            if (entityTagKey != null && statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                // No response body
+                return false;
+            }
             if (statusCode != HttpStatus.SC_OK) {
                 throw new Utils.ApplicationError(LOG_TAG, String.format("HTTP request failed with %d", statusCode));
             }
@@ -264,6 +394,16 @@ public class WebClient {
                 // (particularly if leaving the socket up in a keep-alive state).
                 Utils.discardStream(responseEntity.getContent());
             }
+            // Recorded once the body is received
+            if (entityTagKey != null) {
+                Header entityTagHeader = response.getFirstHeader("ETag");
+                if (entityTagHeader != null) {
+                    mEntityTags.put(entityTagKey, entityTagHeader.getValue());
+                } else {
+                    mEntityTags.remove(entityTagKey);
+                }
+            }
+            return true;
         } catch (URISyntaxException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         } catch (UnsupportedOperationException e) {
@@ -19,6 +19,7 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
@@ -63,8 +64,9 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         }
 
         public void submitWebRequestTask(Runnable task);
-        public Data.Status handlePullStatusRequest(String friendId) throws Utils.ApplicationError;
-        public void handlePushStatusRequest(String friendId, Data.Status status) throws Utils.ApplicationError;
+        public StatusDeltaPayloadCache.Payload handlePullStatusRequest(String friendId, long baseVersion) throws Utils.ApplicationError;
+        public boolean isStalePushStatusRequest(String friendId, long version) throws Utils.ApplicationError;
+        public void handlePushStatusRequest(String friendId, Data.StatusDelta statusDelta) throws Utils.ApplicationError;
         public DownloadResponse handleDownloadRequest(String friendCertificate, String resourceId, Pair<Long, Long> range) throws Utils.ApplicationError;
     }
 
@@ -139,12 +141,27 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
             Method method = session.getMethod();
 
             if (Method.GET.equals(method) && uri.equals(Protocol.PULL_STATUS_REQUEST_PATH)) {
-                Data.Status status = mRequestHandler.handlePullStatusRequest(certificate);
-                if (status == null) {
+                long baseVersion = readStatusVersionParameterHelper(session, Protocol.PULL_STATUS_REQUEST_VERSION_PARAMETER);
+                StatusDeltaPayloadCache.Payload payload = mRequestHandler.handlePullStatusRequest(certificate, baseVersion);
+                if (payload == null) {
                     // TODO: not currently sharing; serve old status?
                     return new Response(NanoHTTPD.Response.Status.FORBIDDEN, null, "");
                 }
-                return new Response(NanoHTTPD.Response.Status.OK, Protocol.PULL_STATUS_RESPONSE_MIME_TYPE, Json.toJson(status));
+                // When the friend already has this version, skip sending it: as tagged, or as the base
+                // version requested, which would be an empty delta
+                String entityTag = Protocol.makeStatusEntityTag(payload.mVersion);
+                Response response;
+                if (entityTag.equals(session.getHeaders().get("if-none-match")) || payload.mBaseVersion == payload.mVersion) {
+                    response = new Response(NanoHTTPD.Response.Status.NOT_MODIFIED, null, "");
+                } else {
+                    // The payload is already encoded, and is shared with other requests, so it's sent without copying
+                    response = new Response(
+                            NanoHTTPD.Response.Status.OK,
+                            Protocol.PULL_STATUS_RESPONSE_MIME_TYPE,
+                            new ByteArrayInputStream(payload.mBody));
+                }
+                response.addHeader("ETag", entityTag);
+                return response;
 
             } else if (Method.GET.equals(method) && uri.equals(Protocol.DOWNLOAD_REQUEST_PATH)) {
                 String resourceId = session.getParms().get(Protocol.DOWNLOAD_REQUEST_RESOURCE_ID_PARAMETER);
@@ -164,8 +181,15 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
 
             } else if (Method.POST.equals(method) && uri.equals(Protocol.PUSH_STATUS_REQUEST_PATH)) {
                 // TODO: PUT more RESTful?
-                Data.Status status = Json.fromJson(new String(readRequestBodyHelper(session)), Data.Status.class);
-                mRequestHandler.handlePushStatusRequest(certificate, status);
+                long version = readStatusVersionParameterHelper(session, Protocol.PUSH_STATUS_REQUEST_VERSION_PARAMETER);
+                // The body is always read, so the connection may be reused, but a stale status isn't parsed
+                byte[] requestBody = readRequestBodyHelper(session);
+                if (version != Protocol.NO_STATUS_VERSION && mRequestHandler.isStalePushStatusRequest(certificate, version)) {
+                    return new Response(NanoHTTPD.Response.Status.OK, null, "");
+                }
+                Data.StatusDelta statusDelta = Json.fromJson(new String(requestBody), Data.StatusDelta.class);
+                Protocol.validateStatusDelta(statusDelta);
+                mRequestHandler.handlePushStatusRequest(certificate, statusDelta);
                 return new Response(NanoHTTPD.Response.Status.OK, null, "");
             }
         } catch (IOException e) {
@@ -181,6 +205,18 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         return new Response(NanoHTTPD.Response.Status.FORBIDDEN, null, "");
     }
 
+    private long readStatusVersionParameterHelper(IHTTPSession session, String parameterName) throws Utils.ApplicationError {
+        String version = session.getParms().get(parameterName);
+        if (version == null) {
+            return Protocol.NO_STATUS_VERSION;
+        }
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid status version parameter");
+        }
+    }
+
     private Pair<Long, Long> readRangeHeaderHelper(IHTTPSession session) throws Utils.ApplicationError {
         // From NanoHTTP: https://github.com/NanoHttpd/nanohttpd/blob/master/webserver/src/main/java/fi/iki/elonen/SimpleWebServer.java
         long startFrom = 0;
@@ -0,0 +1,648 @@
+package ca.psiphon.ploggy.test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.Identity;
+import ca.psiphon.ploggy.KeyValueStore;
+import ca.psiphon.ploggy.Protocol;
+
+public class DataTest extends AndroidTestCase {
+
+    private static final String DATA_DIRECTORY = "ploggyDataTest";
+    private static final int FRIEND_COUNT = 50;
+    private static final int PUSHES_PER_FRIEND = 20;
+    private static final int BENCHMARK_THREAD_COUNT = 8;
+    private static final int BENCHMARK_UPDATES_PER_THREAD = 50;
+
+    private Data mData;
+    // Instances opened by reopenData, each closed before the next is opened
+    private List<Data> mReopenedData;
+
+    public DataTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mData = Data.newInstanceForTesting(DATA_DIRECTORY);
+        mData.reset();
+        mReopenedData = new ArrayList<Data>();
+        mData.updateSelf(
+                new Data.Self(
+                        makePublicIdentity("self"),
+                        new Identity.PrivateIdentity("", ""),
+                        new Date()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Data data : mReopenedData) {
+            data.closeForTesting();
+        }
+        mData.reset();
+
+        super.tearDown();
+    }
+
+    private Data reopenData() throws Exception {
+        // Opens the data directory in a new instance, as after a restart. The store may only be open in
+        // one instance, so the current instance is closed first and must not be used afterwards.
+        Data current = mReopenedData.isEmpty() ? mData : mReopenedData.get(mReopenedData.size() - 1);
+        current.closeForTesting();
+        Data data = Data.newInstanceForTesting(DATA_DIRECTORY);
+        mReopenedData.add(data);
+        return data;
+    }
+
+    private static Identity.PublicIdentity makePublicIdentity(String nickname) {
+        // Only the fingerprint is computed from these values; no keys are required
+        return new Identity.PublicIdentity(nickname, "certificate-" + nickname, nickname + ".onion", "", "");
+    }
+
+    private static List<Data.Message> makeMessages(int messageCount) {
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (int i = messageCount; i > 0; i--) {
+            messages.add(new Data.Message(new Date(i*1000L), "message " + Integer.toString(i), new ArrayList<Data.Resource>()));
+        }
+        return messages;
+    }
+
+    private static Data.Status makeStatus(int messageCount) {
+        return new Data.Status(makeMessages(messageCount), new Data.Location(new Date(), 0, 0, 0, null));
+    }
+
+    public void testFriendStatusCache() throws Exception {
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        mData.updateFriendStatus(friend.mId, makeStatus(1));
+
+        // Written through on update, so this read is a hit
+        int hitCount = mData.getFriendStatusCacheHitCount();
+        int missCount = mData.getFriendStatusCacheMissCount();
+        mData.getFriendStatus(friend.mId);
+        assertEquals(hitCount + 1, mData.getFriendStatusCacheHitCount());
+        assertEquals(missCount, mData.getFriendStatusCacheMissCount());
+
+        // A fresh instance has nothing cached, so its first read is exactly one miss, and the next a hit
+        Data data = reopenData();
+        data.getFriendStatus(friend.mId);
+        assertEquals(0, data.getFriendStatusCacheHitCount());
+        assertEquals(1, data.getFriendStatusCacheMissCount());
+        data.getFriendStatus(friend.mId);
+        assertEquals(1, data.getFriendStatusCacheHitCount());
+        assertEquals(1, data.getFriendStatusCacheMissCount());
+
+        data.removeFriend(friend.mId);
+        try {
+            data.getFriendStatus(friend.mId);
+            fail("status of removed friend still cached");
+        } catch (Data.DataNotFoundError e) {
+        }
+    }
+
+    public void testFriendOrder() throws Exception {
+        // Friends are kept in nickname order, ignoring case; nicknames differing only in case compare
+        // equal, and each is still found when updated or removed
+        String[] nicknames = new String[] {"carol", "Bob", "alice", "bob", "BOB"};
+        for (String nickname : nicknames) {
+            mData.addFriend(new Data.Friend(makePublicIdentity(nickname), new Date()));
+        }
+        assertEquals("alice", mData.getFriends().get(0).mPublicIdentity.mNickname);
+        assertEquals("carol", mData.getFriends().get(4).mPublicIdentity.mNickname);
+        Data.Friend friend = mData.getFriendByNickname("bob");
+        mData.updateFriend(new Data.Friend(friend.mPublicIdentity, new Date(1000)));
+        assertEquals(5, mData.getFriends().size());
+        int updatedCount = 0;
+        for (Data.Friend sortedFriend : mData.getFriends()) {
+            if (sortedFriend.mAddedTimestamp.equals(new Date(1000))) {
+                assertEquals("bob", sortedFriend.mPublicIdentity.mNickname);
+                updatedCount++;
+            }
+        }
+        assertEquals(1, updatedCount);
+        for (String nickname : new String[] {"Bob", "bob", "alice"}) {
+            mData.removeFriend(mData.getFriendByNickname(nickname).mId);
+        }
+        List<Data.Friend> friends = mData.getFriends();
+        assertEquals(2, friends.size());
+        assertEquals("BOB", friends.get(0).mPublicIdentity.mNickname);
+        assertEquals("carol", friends.get(1).mPublicIdentity.mNickname);
+    }
+
+    public void testSyncTimestamps() throws Exception {
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        assertNull(mData.getFriendLastSentStatusTimestamp(friend.mId));
+
+        // Sync timestamps aren't part of the friend list, so updating them doesn't change its version
+        long friendsVersion = mData.getFriendsVersion();
+        mData.updateFriendLastSentStatusTimestamp(friend.mId);
+        mData.updateFriendLastReceivedStatusTimestamp(friend.mId);
+        assertEquals(friendsVersion, mData.getFriendsVersion());
+        Date lastSentStatusTimestamp = mData.getFriendLastSentStatusTimestamp(friend.mId);
+        Date lastReceivedStatusTimestamp = mData.getFriendLastReceivedStatusTimestamp(friend.mId);
+        assertNotNull(lastSentStatusTimestamp);
+        assertNotNull(lastReceivedStatusTimestamp);
+
+        // Persisted once flushed
+        mData.flushSyncState();
+        Data data = reopenData();
+        assertEquals(lastSentStatusTimestamp, data.getFriendLastSentStatusTimestamp(friend.mId));
+        assertEquals(lastReceivedStatusTimestamp, data.getFriendLastReceivedStatusTimestamp(friend.mId));
+    }
+
+    public void testNewMessageCounts() throws Exception {
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        // The first status is history, so none of its messages are new
+        mData.updateFriendStatus(friend.mId, makeStatus(1));
+        assertEquals(0, mData.getNewMessageCount(friend.mId));
+        mData.updateFriendStatus(friend.mId, makeStatus(4));
+        assertEquals(3, mData.getNewMessageCount());
+        assertEquals(3, mData.getNewMessageCount(friend.mId));
+        assertEquals(2, mData.getNewMessages(2).size());
+
+        mData.resetNewMessages();
+        assertEquals(0, mData.getNewMessageCount(friend.mId));
+        mData.updateFriendStatus(friend.mId, makeStatus(6));
+        assertEquals(2, mData.getNewMessageCount(friend.mId));
+
+        // The read mark is persisted, so a fresh instance derives the same count
+        Data data = reopenData();
+        data.awaitMessagesLoaded();
+        assertEquals(2, data.getNewMessageCount(friend.mId));
+    }
+
+    public void testParallelMessagesLoad() throws Exception {
+        for (int i = 0; i < FRIEND_COUNT; i++) {
+            Data.Friend friend = new Data.Friend(makePublicIdentity("friend" + Integer.toString(i)), new Date());
+            mData.addFriend(friend);
+            // After an empty first status, all messages are new
+            mData.updateFriendStatus(friend.mId, makeStatus(0));
+            mData.updateFriendStatus(friend.mId, makeStatus(PUSHES_PER_FRIEND));
+        }
+
+        // A fresh instance has no cached statuses, so all are loaded in the background
+        Data data = reopenData();
+        data.getAllMessages();
+        data.awaitMessagesLoaded();
+        assertEquals(FRIEND_COUNT*PUSHES_PER_FRIEND, data.getAllMessages().size());
+        assertEquals(FRIEND_COUNT*PUSHES_PER_FRIEND, data.getNewMessageCount());
+
+        // Timing is published after the last friend's messages are merged
+        Data.StartupTiming timing = null;
+        for (int i = 0; i < 100 && timing == null; i++) {
+            Thread.sleep(10);
+            timing = data.getStartupTiming();
+        }
+        assertNotNull(timing);
+        assertEquals(FRIEND_COUNT, timing.mFriendStatusLoadCount);
+        Log.i(this.getName(), String.format(
+                "%d friends: data %d ms, messages published %d ms, loaded %d ms",
+                FRIEND_COUNT,
+                timing.mDataLoadMilliseconds,
+                timing.mMessagesPublishMilliseconds,
+                timing.mMessagesLoadMilliseconds));
+    }
+
+    private static void assertSameMessages(List<Data.AnnotatedMessage> expected, List<Data.AnnotatedMessage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).mFriendId, actual.get(i).mFriendId);
+            assertEquals(expected.get(i).mMessage.mTimestamp, actual.get(i).mMessage.mTimestamp);
+            assertEquals(expected.get(i).mMessage.mContent, actual.get(i).mMessage.mContent);
+        }
+    }
+
+    public void testTimelineIndex() throws Exception {
+        final int PAGE_SIZE = 20;
+        List<Data.Friend> friends = new ArrayList<Data.Friend>();
+        for (int i = 0; i < FRIEND_COUNT; i++) {
+            Data.Friend friend = new Data.Friend(makePublicIdentity("friend" + Integer.toString(i)), new Date());
+            mData.addFriend(friend);
+            mData.updateFriendStatus(friend.mId, makeStatus(PUSHES_PER_FRIEND));
+            friends.add(friend);
+        }
+        assertNotNull(mData.getTimelineIndex().mBoundary);
+
+        // The first page of a fresh instance, seeded from the index, matches the fully loaded timeline
+        Data data = reopenData();
+        List<Data.AnnotatedMessage> firstPage = data.getMessagesBefore(null, PAGE_SIZE);
+        data.awaitMessagesLoaded();
+        assertSameMessages(data.getMessagesBefore(null, PAGE_SIZE), firstPage);
+
+        // Removals shrink the index until it's rebuilt from the remaining statuses
+        for (int i = 0; i < FRIEND_COUNT - 2; i++) {
+            data.removeFriend(friends.get(i).mId);
+        }
+        assertTrue(data.getTimelineIndex().mEntries.size() >= PAGE_SIZE);
+        data = reopenData();
+        firstPage = data.getMessagesBefore(null, PAGE_SIZE);
+        data.awaitMessagesLoaded();
+        assertSameMessages(data.getMessagesBefore(null, PAGE_SIZE), firstPage);
+    }
+
+    public void testDownloadQueues() throws Exception {
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        for (int i = 0; i < 3; i++) {
+            mData.addDownload(friend.mId, new Data.Resource("resource" + Integer.toString(i), "image/jpeg", 1000));
+        }
+        try {
+            mData.addDownload(friend.mId, new Data.Resource("resource0", "image/jpeg", 1000));
+            fail("duplicate download added");
+        } catch (Data.DataAlreadyExistsError e) {
+        }
+
+        // In progress downloads are dequeued in the order added
+        assertEquals("resource0", mData.getNextInProgressDownload(friend.mId).mResourceId);
+        mData.updateDownloadState(friend.mId, "resource0", Data.Download.State.COMPLETE);
+        assertEquals("resource1", mData.getNextInProgressDownload(friend.mId).mResourceId);
+        mData.updateDownloadState(friend.mId, "resource1", Data.Download.State.CANCELLED);
+        assertEquals("resource2", mData.getNextInProgressDownload(friend.mId).mResourceId);
+
+        // Finished downloads are archived, and still found by id
+        assertEquals(Data.Download.State.COMPLETE, mData.getDownload(friend.mId, "resource0").mState);
+        Data data = reopenData();
+        assertEquals(Data.Download.State.CANCELLED, data.getDownload(friend.mId, "resource1").mState);
+        // Archived downloads are kept decoded once looked up
+        assertSame(data.getDownload(friend.mId, "resource1"), data.getDownload(friend.mId, "resource1"));
+
+        // A resumed download returns to the back of the queue
+        data.updateDownloadState(friend.mId, "resource1", Data.Download.State.IN_PROGRESS);
+        assertEquals(Data.Download.State.IN_PROGRESS, data.getDownload(friend.mId, "resource1").mState);
+        data.updateDownloadState(friend.mId, "resource2", Data.Download.State.COMPLETE);
+        assertEquals("resource1", data.getNextInProgressDownload(friend.mId).mResourceId);
+        data.updateDownloadState(friend.mId, "resource1", Data.Download.State.COMPLETE);
+        try {
+            data.getNextInProgressDownload(friend.mId);
+            fail("unexpected in progress download");
+        } catch (Data.DataNotFoundError e) {
+        }
+    }
+
+    public void testLocalResourceCollection() throws Exception {
+        List<Data.Resource> attachments = new ArrayList<Data.Resource>();
+        attachments.add(new Data.Resource("resource", "image/jpeg", 1000));
+        List<Data.LocalResource> localResources = new ArrayList<Data.LocalResource>();
+        localResources.add(new Data.LocalResource(Data.LocalResource.Type.RAW, "resource", "image/jpeg", "/dev/null", null));
+        mData.addSelfStatusMessage(new Data.Message(new Date(0), "attachment", attachments), localResources);
+        assertEquals("/dev/null", mData.getLocalResource("resource").mFilePath);
+
+        // The resource is kept once its message no longer fits in the self status, as the message
+        // history still references it
+        for (int i = 1; i <= Protocol.MAX_MESSAGE_COUNT; i++) {
+            mData.addSelfStatusMessage(new Data.Message(new Date(i*1000L), "message", new ArrayList<Data.Resource>()), null);
+        }
+        List<Data.Message> history = mData.getMessageHistory(null, new Date(0), new Date(1), 1);
+        assertEquals("resource", history.get(0).mAttachments.get(0).mId);
+        assertEquals("/dev/null", mData.getLocalResource("resource").mFilePath);
+        Data data = reopenData();
+        assertEquals("/dev/null", data.getLocalResource("resource").mFilePath);
+
+        // The resource is collected along with the history
+        data.updateSelf(
+                new Data.Self(
+                        makePublicIdentity("new self"),
+                        new Identity.PrivateIdentity("", ""),
+                        new Date()));
+        try {
+            data.getLocalResource("resource");
+            fail("unreferenced local resource not collected");
+        } catch (Data.DataNotFoundError e) {
+        }
+        try {
+            reopenData().getLocalResource("resource");
+            fail("unreferenced local resource not collected");
+        } catch (Data.DataNotFoundError e) {
+        }
+    }
+
+    public void testMessageHistory() throws Exception {
+        final long DAY = 24*60*60*1000L;
+        final int MESSAGE_COUNT = 2*Protocol.MAX_MESSAGE_COUNT;
+        // Four messages per day, so the history spans several segments
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            mData.addSelfStatusMessage(new Data.Message(new Date(i*DAY/4), "message " + Integer.toString(i), new ArrayList<Data.Resource>()), null);
+        }
+
+        // Messages which have left the status are still in the history
+        List<Data.Message> messages = mData.getMessageHistory(null, null, null, Integer.MAX_VALUE);
+        assertEquals(MESSAGE_COUNT, messages.size());
+        assertEquals("message " + Integer.toString(MESSAGE_COUNT - 1), messages.get(0).mContent);
+        assertEquals("message 0", messages.get(MESSAGE_COUNT - 1).mContent);
+
+        // Range queries span segments, with an inclusive start and exclusive end
+        messages = mData.getMessageHistory(null, new Date(DAY/2), new Date(3*DAY), Integer.MAX_VALUE);
+        assertEquals(10, messages.size());
+        assertEquals("message 11", messages.get(0).mContent);
+        assertEquals("message 2", messages.get(9).mContent);
+        messages = mData.getMessageHistory(null, null, new Date(3*DAY), 3);
+        assertEquals(3, messages.size());
+        assertEquals("message 9", messages.get(2).mContent);
+
+        // Friends' new messages are appended as their statuses arrive
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        mData.updateFriendStatus(friend.mId, makeStatus(3));
+        mData.updateFriendStatus(friend.mId, makeStatus(5));
+        Data data = reopenData();
+        assertEquals(5, data.getMessageHistory(friend.mId, null, null, Integer.MAX_VALUE).size());
+        data.removeFriend(friend.mId);
+        assertEquals(0, data.getMessageHistory(friend.mId, null, null, Integer.MAX_VALUE).size());
+    }
+
+    public void testSearchMessagesLimit() throws Exception {
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(new Data.Message(new Date(2000), "hello " + Integer.toString(i), new ArrayList<Data.Resource>()));
+        }
+        messages.add(new Data.Message(new Date(1000), "hello 3", new ArrayList<Data.Resource>()));
+        mData.updateFriendStatus(friend.mId, new Data.Status(messages, new Data.Location(new Date(), 0, 0, 0, null)));
+
+        // Messages with the same timestamp are never more than limit, and are kept on one page when
+        // they fit
+        assertEquals(2, mData.searchMessages("hello", null, 2).size());
+        List<Data.AnnotatedMessage> page = mData.searchMessages("hello", null, 3);
+        assertEquals(3, page.size());
+        page = mData.searchMessages("hello", page.get(page.size() - 1), 3);
+        assertEquals(1, page.size());
+        assertEquals("hello 3", page.get(0).mMessage.mContent);
+        page = mData.searchMessages("hello", null, 1);
+        assertEquals(1, page.size());
+        assertEquals(4, mData.searchMessages("hello", null, 10).size());
+    }
+
+    public void testLocationHistory() throws Exception {
+        final long MINUTE = 60*1000L;
+        final int LOCATION_COUNT = 120;
+        long start = System.currentTimeMillis() - LOCATION_COUNT*MINUTE;
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        messages.add(new Data.Message(new Date(1000), "message", new ArrayList<Data.Resource>()));
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            Data.Location location = new Data.Location(new Date(start + i*MINUTE), 43.6532 + i*0.0001, -79.3832, 10, "street");
+            mData.updateFriendStatus(friend.mId, new Data.Status(messages, location));
+            // A repeated location is only recorded once
+            mData.updateFriendStatus(friend.mId, new Data.Status(messages, location));
+            mData.updateSelfStatusLocation(location, (i % 2) == 0);
+        }
+
+        List<Data.Location> locations = mData.getLocationHistory(friend.mId, null, null, 0);
+        assertEquals(LOCATION_COUNT, locations.size());
+        assertEquals(start, locations.get(0).mTimestamp.getTime());
+        assertEquals(43.6532 + 0.0119, locations.get(LOCATION_COUNT - 1).mLatitude, 1e-7);
+        assertEquals(-79.3832, locations.get(LOCATION_COUNT - 1).mLongitude, 1e-7);
+        // Only shared self locations are recorded
+        assertEquals(LOCATION_COUNT/2, mData.getLocationHistory(null, null, null, 0).size());
+
+        // Downsampled to the latest location in each 10 minute interval of the range. Intervals are
+        // aligned to the epoch, so the range's locations, at minutes 10 to 39, span 3 intervals when
+        // start is aligned and otherwise 4.
+        final long INTERVAL = 10*MINUTE;
+        locations = mData.getLocationHistory(friend.mId, new Date(start + 10*MINUTE), new Date(start + 40*MINUTE), INTERVAL);
+        long firstInterval = (start + 10*MINUTE)/INTERVAL;
+        long lastInterval = (start + 39*MINUTE)/INTERVAL;
+        assertEquals(lastInterval - firstInterval + 1, locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            long timestamp = locations.get(i).mTimestamp.getTime();
+            assertEquals(firstInterval + i, timestamp/INTERVAL);
+            // The latest location in the interval: the next minute's is in the next interval, or past the range
+            assertTrue((timestamp + MINUTE)/INTERVAL > timestamp/INTERVAL || timestamp == start + 39*MINUTE);
+        }
+
+        // Locations older than the retention period aren't recorded
+        mData.updateFriendStatus(friend.mId, new Data.Status(messages, new Data.Location(new Date(0), 0, 0, 0, null)));
+        assertEquals(LOCATION_COUNT, mData.getLocationHistory(friend.mId, null, null, 0).size());
+
+        mData.removeFriend(friend.mId);
+        assertEquals(0, mData.getLocationHistory(friend.mId, null, null, 0).size());
+    }
+
+    public void testStatusDeltas() throws Exception {
+        Data.Location location = new Data.Location(new Date(), 43.6532, -79.3832, 10, "street");
+        mData.addSelfStatusMessage(new Data.Message(new Date(1000), "message 1", new ArrayList<Data.Resource>()), null);
+        Data.StatusDelta fullDelta = mData.getSelfStatusDelta(Protocol.NO_STATUS_VERSION);
+        assertTrue(fullDelta.isFullStatus());
+        assertEquals(1, fullDelta.mMessages.size());
+        long baseVersion = fullDelta.mVersion;
+
+        // Deltas carry only the messages added since the base version, and the location when it changed
+        mData.updateSelfStatusLocation(location, true);
+        Data.StatusDelta delta = mData.getSelfStatusDelta(baseVersion);
+        assertEquals(baseVersion, delta.mBaseVersion);
+        assertEquals(0, delta.mMessages.size());
+        assertSame(location, delta.mLocation);
+        mData.addSelfStatusMessage(new Data.Message(new Date(2000), "message 2", new ArrayList<Data.Resource>()), null);
+        delta = mData.getSelfStatusDelta(baseVersion);
+        assertEquals(1, delta.mMessages.size());
+        assertEquals("message 2", delta.mMessages.get(0).mContent);
+        assertSame(location, delta.mLocation);
+        delta = mData.getSelfStatusDelta(delta.mVersion);
+        assertEquals(0, delta.mMessages.size());
+        assertNull(delta.mLocation);
+        assertTrue(mData.getSelfStatusDelta(delta.mVersion + 100).isFullStatus());
+
+        // A friend applies a delta only to the status it's based on
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        try {
+            mData.updateFriendStatus(friend.mId, mData.getSelfStatusDelta(baseVersion));
+            fail("applied delta without base status");
+        } catch (Data.StatusVersionMismatchError e) {
+        }
+        mData.updateFriendStatus(friend.mId, fullDelta);
+        mData.updateFriendStatus(friend.mId, mData.getSelfStatusDelta(baseVersion));
+        Data.Status friendStatus = mData.getFriendStatus(friend.mId);
+        assertEquals(mData.getSelfStatus().mVersion, friendStatus.mVersion);
+        List<Data.Message> friendMessages = mData.getMessageHistory(friend.mId, null, null, 10);
+        assertEquals(2, friendMessages.size());
+        assertEquals("message 2", friendMessages.get(0).mContent);
+        assertEquals("street", friendStatus.mLocation.mStreetAddress);
+        // A delta the friend already has is stale, and discarded; a newer one must match the base
+        mData.updateFriendStatus(friend.mId, mData.getSelfStatusDelta(baseVersion));
+        assertEquals(friendStatus.mVersion, mData.getFriendStatus(friend.mId).mVersion);
+        assertEquals(2, mData.getMessageHistory(friend.mId, null, null, 10).size());
+        mData.addSelfStatusMessage(new Data.Message(new Date(3000), "message 3", new ArrayList<Data.Resource>()), null);
+        try {
+            mData.updateFriendStatus(friend.mId, mData.getSelfStatusDelta(baseVersion));
+            fail("applied delta to a different base status");
+        } catch (Data.StatusVersionMismatchError e) {
+        }
+
+        // Versions are persisted, but recent statuses aren't, so deltas are from the current version only
+        long selfStatusVersion = mData.getSelfStatus().mVersion;
+        Data data = reopenData();
+        assertEquals(friendStatus.mVersion, data.getFriendStatus(friend.mId).mVersion);
+        assertEquals(selfStatusVersion, data.getSelfStatus().mVersion);
+        assertTrue(data.getSelfStatusDelta(baseVersion).isFullStatus());
+    }
+
+    public void testStaleFriendStatus() throws Exception {
+        Data.Friend friend = new Data.Friend(makePublicIdentity("friend"), new Date());
+        mData.addFriend(friend);
+        Data.Status status = makeStatus(2);
+        assertFalse(mData.isStaleFriendStatus(friend.mId, 1000));
+        mData.updateFriendStatus(friend.mId, new Data.Status(makeMessages(2), status.mLocation, 1000));
+
+        // An older version, or the same one, is discarded even when it has more messages
+        assertTrue(mData.isStaleFriendStatus(friend.mId, 999));
+        assertTrue(mData.isStaleFriendStatus(friend.mId, 1000));
+        mData.updateFriendStatus(friend.mId, new Data.Status(makeMessages(3), status.mLocation, 999));
+        assertEquals(1000, mData.getFriendStatus(friend.mId).mVersion);
+        assertEquals(2, mData.getMessageHistory(friend.mId, null, null, 10).size());
+
+        // A location-only change is a newer version, and replaces the status
+        Data.Location location = new Data.Location(new Date(), 43.6532, -79.3832, 10, "street");
+        mData.updateFriendStatus(friend.mId, new Data.Status(makeMessages(2), location, 1001));
+        assertEquals(1001, mData.getFriendStatus(friend.mId).mVersion);
+        assertEquals("street", mData.getFriendStatus(friend.mId).mLocation.mStreetAddress);
+
+        // The version is read from storage by a fresh instance
+        Data data = reopenData();
+        assertTrue(data.isStaleFriendStatus(friend.mId, 1001));
+        assertFalse(data.isStaleFriendStatus(friend.mId, 1002));
+    }
+
+    public void testConcurrentReadLatency() throws Exception {
+        final List<Data.Friend> friends = new ArrayList<Data.Friend>();
+        for (int i = 0; i < FRIEND_COUNT; i++) {
+            Data.Friend friend = new Data.Friend(makePublicIdentity("friend" + Integer.toString(i)), new Date());
+            mData.addFriend(friend);
+            friends.add(friend);
+        }
+
+        // Each writer thread simulates a stream of pushes from one friend
+        final List<Throwable> writerErrors = new ArrayList<Throwable>();
+        List<Thread> writers = new ArrayList<Thread>();
+        for (final Data.Friend friend : friends) {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; i <= PUSHES_PER_FRIEND; i++) {
+                            mData.updateFriendStatus(friend.mId, makeStatus(i));
+                            mData.updateFriendLastReceivedStatusTimestamp(friend.mId);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (writerErrors) {
+                            writerErrors.add(e);
+                        }
+                    }
+                }
+            };
+            writers.add(writer);
+        }
+
+        Date start = new Date();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+
+        // Measure reads, as made by the UI and the pull handler, while the writers run
+        int readCount = 0;
+        long totalReadNanoseconds = 0;
+        long maxReadNanoseconds = 0;
+        boolean writersRunning = true;
+        while (writersRunning) {
+            long readStart = System.nanoTime();
+            mData.getSelfStatus();
+            mData.getFriends();
+            mData.getFriendById(friends.get(readCount % FRIEND_COUNT).mId);
+            long readNanoseconds = System.nanoTime() - readStart;
+            readCount++;
+            totalReadNanoseconds += readNanoseconds;
+            maxReadNanoseconds = Math.max(maxReadNanoseconds, readNanoseconds);
+            writersRunning = false;
+            for (Thread writer : writers) {
+                if (writer.isAlive()) {
+                    writersRunning = true;
+                    break;
+                }
+            }
+        }
+        Date end = new Date();
+
+        Log.i(this.getName(), String.format(
+                "%d writers, %d pushes: %d ms; %d reads: average %d us, max %d us",
+                FRIEND_COUNT,
+                FRIEND_COUNT*PUSHES_PER_FRIEND,
+                end.getTime() - start.getTime(),
+                readCount,
+                totalReadNanoseconds/readCount/1000,
+                maxReadNanoseconds/1000));
+
+        assertTrue(writerErrors.isEmpty());
+        // Each push adds one new message; none may be lost or duplicated
+        assertEquals(FRIEND_COUNT*PUSHES_PER_FRIEND, mData.getAllMessages().size());
+        for (Data.Friend friend : friends) {
+            assertNotNull(mData.getFriendLastReceivedStatusTimestamp(friend.mId));
+        }
+    }
+
+    public void testDurabilityBenchmark() throws Exception {
+        // Measures friend status updates/second for each durability level, with concurrent writers.
+        // With SYNC, each update returns once durable, and concurrent updates share syncs; with
+        // BATCHED, updates don't wait.
+        List<Data.Friend> friends = new ArrayList<Data.Friend>();
+        for (int i = 0; i < BENCHMARK_THREAD_COUNT; i++) {
+            Data.Friend friend = new Data.Friend(makePublicIdentity("friend" + Integer.toString(i)), new Date());
+            mData.addFriend(friend);
+            friends.add(friend);
+        }
+        for (KeyValueStore.Durability durability : KeyValueStore.Durability.values()) {
+            mData.setDurability(durability);
+            mData.sync().get();
+            int initialSyncCount = mData.getSyncCount();
+            List<Thread> threads = new ArrayList<Thread>();
+            final List<Exception> errors = new ArrayList<Exception>();
+            for (final Data.Friend friend : friends) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < BENCHMARK_UPDATES_PER_THREAD; j++) {
+                                mData.updateFriendStatus(friend.mId, makeStatus(1));
+                            }
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long nanoseconds = System.nanoTime() - start;
+            assertTrue(errors.isEmpty());
+            int updateCount = BENCHMARK_THREAD_COUNT*BENCHMARK_UPDATES_PER_THREAD;
+            int syncCount = mData.getSyncCount() - initialSyncCount;
+            Log.i(this.getName(), String.format(
+                    "%s: %d updates, %d syncs, %d updates/s",
+                    durability.name(),
+                    updateCount,
+                    syncCount,
+                    updateCount*1000000000L/Math.max(1, nanoseconds)));
+            // NONE needs no syncs, though one scheduled by earlier commits may run; with SYNC, waiting
+            // updates share syncs
+            assertTrue(syncCount < updateCount);
+        }
+        mData.setDurability(KeyValueStore.Durability.BATCHED);
+    }
+}
@@ -0,0 +1,96 @@
+package ca.psiphon.ploggy.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.FriendLocationIndex;
+
+public class FriendLocationIndexTest extends AndroidTestCase {
+
+    private static final int FRIEND_COUNT = 5000;
+    private static final int QUERY_COUNT = 1000;
+    private static final int[] RADII_IN_METERS = {2000, 20000, 500000};
+
+    public FriendLocationIndexTest() {
+        super();
+    }
+
+    public void testQueries() throws Exception {
+        // Half the friends are clustered in one city and half are spread over the globe;
+        // results are checked against a scan of every location
+        Random random = new Random(0);
+        FriendLocationIndex index = new FriendLocationIndex();
+        List<double[]> locations = new ArrayList<double[]>();
+        for (int i = 0; i < FRIEND_COUNT; i++) {
+            double latitude;
+            double longitude;
+            if (i % 2 == 0) {
+                latitude = 43.6532 + random.nextGaussian()*0.2;
+                longitude = -79.3832 + random.nextGaussian()*0.2;
+            } else {
+                latitude = Math.toDegrees(Math.asin(2*random.nextDouble() - 1));
+                longitude = random.nextDouble()*360 - 180;
+            }
+            locations.add(new double[] {latitude, longitude});
+            index.put("friend" + Integer.toString(i), new Data.Location(new Date(), latitude, longitude, 0, null));
+        }
+        // A blank location isn't indexed
+        index.put("friend0", new Data.Location(null, 0, 0, 0, null));
+        locations.set(0, null);
+        assertEquals(FRIEND_COUNT - 1, index.size());
+
+        long radiusNanoseconds = 0;
+        long nearestNanoseconds = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            double latitude = (i % 2 == 0) ? 43.6532 + random.nextGaussian()*0.2 : random.nextDouble()*180 - 90;
+            double longitude = (i % 2 == 0) ? -79.3832 + random.nextGaussian()*0.2 : random.nextDouble()*360 - 180;
+            int radius = RADII_IN_METERS[i % RADII_IN_METERS.length];
+            int count = 1 + i % 20;
+
+            long start = System.nanoTime();
+            List<FriendLocationIndex.Result> withinRadius = index.getWithinRadius(latitude, longitude, radius);
+            radiusNanoseconds += System.nanoTime() - start;
+            start = System.nanoTime();
+            List<FriendLocationIndex.Result> nearest = index.getNearest(latitude, longitude, count);
+            nearestNanoseconds += System.nanoTime() - start;
+
+            List<Integer> distances = new ArrayList<Integer>();
+            int withinRadiusCount = 0;
+            for (double[] location : locations) {
+                if (location == null) {
+                    continue;
+                }
+                int distance = FriendLocationIndex.calculateDistanceInMeters(latitude, longitude, location[0], location[1]);
+                distances.add(distance);
+                if (distance <= radius) {
+                    withinRadiusCount++;
+                }
+            }
+            Collections.sort(distances);
+            assertEquals(withinRadiusCount, withinRadius.size());
+            for (int j = 1; j < withinRadius.size(); j++) {
+                assertTrue(withinRadius.get(j - 1).mDistanceInMeters <= withinRadius.get(j).mDistanceInMeters);
+            }
+            assertEquals(count, nearest.size());
+            for (int j = 0; j < count; j++) {
+                assertEquals(distances.get(j).intValue(), nearest.get(j).mDistanceInMeters);
+            }
+        }
+
+        Log.i(this.getName(), String.format(
+                "%d friends: radius query %d us, nearest query %d us",
+                FRIEND_COUNT,
+                radiusNanoseconds/QUERY_COUNT/1000,
+                nearestNanoseconds/QUERY_COUNT/1000));
+
+        index.remove("friend2");
+        assertEquals(FRIEND_COUNT - 2, index.size());
+        assertFalse("friend2".equals(index.getNearest(locations.get(2)[0], locations.get(2)[1], 1).get(0).mFriendId));
+    }
+}
@@ -0,0 +1,68 @@
+package ca.psiphon.ploggy.test;
+
+import android.test.AndroidTestCase;
+import ca.psiphon.ploggy.HybridLogicalClock;
+
+public class HybridLogicalClockTest extends AndroidTestCase {
+
+    private static final long WALL_CLOCK = 1400000000000L;
+    private static final long HOUR_IN_MILLISECONDS = 60*60*1000;
+
+    public HybridLogicalClockTest() {
+        super();
+    }
+
+    public void testMonotonic() throws Exception {
+        HybridLogicalClock clock = new HybridLogicalClock();
+        long first = clock.now(WALL_CLOCK);
+        assertEquals(WALL_CLOCK, HybridLogicalClock.getWallClockMilliseconds(first));
+
+        // The same, or an earlier, wall clock time still issues a greater timestamp
+        long second = clock.now(WALL_CLOCK);
+        assertTrue(second > first);
+        long third = clock.now(WALL_CLOCK - 1000);
+        assertTrue(third > second);
+        assertEquals(WALL_CLOCK, HybridLogicalClock.getWallClockMilliseconds(third));
+
+        // Once the wall clock passes the last timestamp, timestamps follow it again
+        long fourth = clock.now(WALL_CLOCK + 1);
+        assertTrue(fourth > third);
+        assertEquals(WALL_CLOCK + 1, HybridLogicalClock.getWallClockMilliseconds(fourth));
+    }
+
+    public void testUpdate() throws Exception {
+        HybridLogicalClock clock = new HybridLogicalClock();
+        HybridLogicalClock peerClock = new HybridLogicalClock();
+
+        // A timestamp issued after receiving a peer's timestamp is greater, even with a slower wall clock
+        long peerTimestamp = peerClock.now(WALL_CLOCK + 1000);
+        clock.update(peerTimestamp, WALL_CLOCK);
+        assertTrue(clock.now(WALL_CLOCK) > peerTimestamp);
+
+        // An older timestamp doesn't move the clock back
+        long timestamp = clock.now(WALL_CLOCK);
+        clock.update(peerTimestamp, WALL_CLOCK);
+        assertTrue(clock.now(WALL_CLOCK) > timestamp);
+
+        // A timestamp too far ahead of the wall clock is ignored
+        long farTimestamp = peerClock.now(WALL_CLOCK + 2*HOUR_IN_MILLISECONDS);
+        clock.update(farTimestamp, WALL_CLOCK);
+        assertTrue(clock.now(WALL_CLOCK) < farTimestamp);
+    }
+
+    public void testRestore() throws Exception {
+        HybridLogicalClock clock = new HybridLogicalClock();
+        long timestamp = clock.now(WALL_CLOCK);
+        timestamp = clock.now(WALL_CLOCK);
+
+        // A restarted clock, restored with the last timestamp, continues after it
+        HybridLogicalClock restartedClock = new HybridLogicalClock();
+        restartedClock.restore(timestamp);
+        assertTrue(restartedClock.now(WALL_CLOCK - 1000) > timestamp);
+
+        // Restoring an older timestamp doesn't move the clock back
+        long restartedTimestamp = restartedClock.now(WALL_CLOCK);
+        restartedClock.restore(timestamp);
+        assertTrue(restartedClock.now(WALL_CLOCK) > restartedTimestamp);
+    }
+}
@@ -0,0 +1,204 @@
+package ca.psiphon.ploggy.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import android.test.AndroidTestCase;
+import ca.psiphon.ploggy.KeyValueStore;
+import ca.psiphon.ploggy.Utils;
+
+public class KeyValueStoreTest extends AndroidTestCase {
+
+    private static final int GROUP_COMMIT_THREAD_COUNT = 8;
+    private static final int GROUP_COMMITS_PER_THREAD = 100;
+
+    private File mFile;
+
+    public KeyValueStoreTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mFile = new File(getContext().getCacheDir(), "keyValueStoreTest.db");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+
+        super.tearDown();
+    }
+
+    private static byte[] bytes(String value) throws Exception {
+        return value.getBytes("UTF-8");
+    }
+
+    public void testCommitAndRecover() throws Exception {
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        store.commit(new KeyValueStore.Batch().put("b/2", bytes("two")).put("a", bytes("a")).put("b/1", bytes("one")));
+        store.commit(new KeyValueStore.Batch().put("b/2", bytes("TWO")).delete("a").put("c", bytes("c")));
+        store.close();
+
+        store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        assertNull(store.get("a"));
+        assertTrue(Arrays.equals(bytes("TWO"), store.get("b/2")));
+        List<String> keys = store.getKeys("b/");
+        assertEquals(Arrays.asList("b/1", "b/2"), keys);
+        assertEquals(3, store.getKeys("").size());
+        store.close();
+    }
+
+    public void testIncompleteCommitDiscarded() throws Exception {
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        store.commit(new KeyValueStore.Batch().put("a", bytes("a")));
+        store.commit(new KeyValueStore.Batch().put("b", bytes("b")).put("c", bytes("c")));
+        long size = store.getFileSize();
+        store.close();
+
+        // Simulate a crash partway through writing the second commit
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(size - 3);
+        file.close();
+
+        store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        assertTrue(Arrays.equals(bytes("a"), store.get("a")));
+        // The whole batch is discarded, not just the truncated value
+        assertNull(store.get("b"));
+        assertNull(store.get("c"));
+        store.commit(new KeyValueStore.Batch().put("d", bytes("d")));
+        store.close();
+
+        store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        assertTrue(Arrays.equals(bytes("d"), store.get("d")));
+        store.close();
+    }
+
+    public void testCompaction() throws Exception {
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        byte[] value = new byte[1024];
+        for (int i = 0; i < 1000 && !store.needsCompaction(); i++) {
+            value[0] = (byte)i;
+            store.commit(new KeyValueStore.Batch().put("key" + Integer.toString(i % 10), value));
+        }
+        assertTrue(store.needsCompaction());
+        long size = store.getFileSize();
+        store.compact();
+        assertFalse(store.needsCompaction());
+        assertTrue(store.getFileSize() < size);
+        assertEquals(10, store.getKeys("key").size());
+        store.commit(new KeyValueStore.Batch().put("after", bytes("after")));
+        store.close();
+
+        store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        assertEquals(11, store.getKeys("").size());
+        assertTrue(Arrays.equals(bytes("after"), store.get("after")));
+        store.close();
+    }
+
+    public void testMapPaddingRecovered() throws Exception {
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        store.commit(new KeyValueStore.Batch().put("a", bytes("a")));
+        // The read maps, and pads, the file past its commits
+        assertTrue(Arrays.equals(bytes("a"), store.get("a")));
+        assertTrue(mFile.length() > store.getFileSize());
+        store.commit(new KeyValueStore.Batch().put("b", bytes("b")));
+
+        // Simulate a crash, leaving the padding after the commits
+        KeyValueStore recoveredStore = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+        assertEquals(mFile.length(), recoveredStore.getFileSize());
+        assertTrue(Arrays.equals(bytes("a"), recoveredStore.get("a")));
+        assertTrue(Arrays.equals(bytes("b"), recoveredStore.get("b")));
+        recoveredStore.close();
+        store.close();
+    }
+
+    public void testCompactionFailure() throws Exception {
+        // Whether the store file was replaced or not, a failed compaction leaves the store usable
+        // with every commit
+        for (KeyValueStore.CompactionFailure compactionFailure : KeyValueStore.CompactionFailure.values()) {
+            mFile.delete();
+            KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+            store.commit(new KeyValueStore.Batch().put("a", bytes("a")).put("b", bytes("b")));
+            store.commit(new KeyValueStore.Batch().put("a", bytes("A")));
+            store.setCompactionFailureForTesting(compactionFailure);
+            try {
+                store.compact();
+                fail("compaction should fail");
+            } catch (Utils.ApplicationError e) {
+            }
+            assertFalse(new File(mFile.getPath() + ".compact").exists());
+            assertTrue(Arrays.equals(bytes("A"), store.get("a")));
+            store.commit(new KeyValueStore.Batch().put("c", bytes("c")));
+            store.close();
+
+            store = KeyValueStore.open(mFile, KeyValueStore.Durability.BATCHED);
+            assertEquals(Arrays.asList("a", "b", "c"), store.getKeys(""));
+            assertTrue(Arrays.equals(bytes("A"), store.get("a")));
+            // The next compaction succeeds
+            store.compact();
+            assertEquals(3, store.getKeys("").size());
+            store.close();
+        }
+    }
+
+    public void testGroupCommit() throws Exception {
+        // Concurrent committers waiting on SYNC commits share syncs; BATCHED committers don't wait,
+        // and sync makes their commits durable. The Data level benchmark is DataTest.testDurabilityBenchmark.
+        for (final KeyValueStore.Durability durability : KeyValueStore.Durability.values()) {
+            mFile.delete();
+            final KeyValueStore store = KeyValueStore.open(mFile, durability);
+            final byte[] value = new byte[256];
+            List<Thread> threads = new ArrayList<Thread>();
+            final List<Exception> errors = new ArrayList<Exception>();
+            for (int i = 0; i < GROUP_COMMIT_THREAD_COUNT; i++) {
+                final String prefix = "thread" + Integer.toString(i) + "/";
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < GROUP_COMMITS_PER_THREAD; j++) {
+                                Future<Void> future = store.commit(new KeyValueStore.Batch().put(prefix + Integer.toString(j), value));
+                                if (durability == KeyValueStore.Durability.SYNC) {
+                                    future.get();
+                                }
+                            }
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(errors.isEmpty());
+            int commitCount = GROUP_COMMIT_THREAD_COUNT*GROUP_COMMITS_PER_THREAD;
+            int syncCount = store.getSyncCount();
+            if (durability == KeyValueStore.Durability.NONE) {
+                assertEquals(0, syncCount);
+            } else {
+                assertTrue(syncCount < commitCount);
+            }
+
+            // Whatever the durability, sync makes all commits durable
+            Future<Void> future = store.sync();
+            future.get();
+            assertTrue(future.isDone());
+            assertEquals(commitCount, store.getKeys("thread").size());
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ca.psiphon.ploggy.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.KeyValueStore;
+import ca.psiphon.ploggy.MessageHistory;
+
+public class MessageHistoryTest extends AndroidTestCase {
+
+    private static final int MESSAGE_COUNT = 2000;
+    // More days than the segment cache holds, so readers keep missing the cache
+    private static final int DAY_COUNT = 100;
+    private static final int READER_COUNT = 4;
+    private static final long DAY_IN_MILLISECONDS = 24*60*60*1000L;
+
+    private File mFile;
+
+    public MessageHistoryTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mFile = new File(getContext().getCacheDir(), "messageHistoryTest.db");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+
+        super.tearDown();
+    }
+
+    private static void append(KeyValueStore store, MessageHistory history, String authorKey, Data.Message message) throws Exception {
+        KeyValueStore.Batch batch = new KeyValueStore.Batch();
+        MessageHistory.Update update = history.newUpdate();
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        messages.add(message);
+        history.append(batch, update, authorKey, messages);
+        store.commit(batch);
+        history.apply(update);
+    }
+
+    public void testConcurrentReadsAndAppends() throws Exception {
+        final KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.NONE);
+        final MessageHistory history = new MessageHistory(store);
+
+        // Readers page through random days while the writer appends, round robin across the days
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final boolean[] writerDone = new boolean[1];
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < READER_COUNT; i++) {
+            final Random random = new Random(i);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            synchronized (writerDone) {
+                                if (writerDone[0]) {
+                                    break;
+                                }
+                            }
+                            long day = random.nextInt(DAY_COUNT);
+                            history.getMessages(
+                                    "author",
+                                    new Date(day*DAY_IN_MILLISECONDS),
+                                    new Date((day + 1)*DAY_IN_MILLISECONDS),
+                                    MESSAGE_COUNT);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            long timestamp = (i % DAY_COUNT)*DAY_IN_MILLISECONDS + i;
+            append(store, history, "author", new Data.Message(new Date(timestamp), "message " + Integer.toString(i), new ArrayList<Data.Resource>()));
+        }
+        synchronized (writerDone) {
+            writerDone[0] = true;
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(errors.isEmpty());
+
+        // No append was built on a stale segment, and no reader left one in the cache
+        assertEquals(MESSAGE_COUNT, history.getMessages("author", null, null, MESSAGE_COUNT + 1).size());
+        assertEquals(MESSAGE_COUNT, new MessageHistory(store).getMessages("author", null, null, MESSAGE_COUNT + 1).size());
+        for (int day = 0; day < DAY_COUNT; day++) {
+            assertEquals(
+                    MESSAGE_COUNT/DAY_COUNT,
+                    history.getMessages(
+                            "author",
+                            new Date(day*DAY_IN_MILLISECONDS),
+                            new Date((day + 1)*DAY_IN_MILLISECONDS),
+                            MESSAGE_COUNT).size());
+        }
+
+        store.close();
+    }
+}
@@ -0,0 +1,244 @@
+package ca.psiphon.ploggy.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.KeyValueStore;
+import ca.psiphon.ploggy.MessageHistory;
+import ca.psiphon.ploggy.MessageSearchIndex;
+
+public class MessageSearchIndexTest extends AndroidTestCase {
+
+    private static final int MESSAGE_COUNT = 100000;
+    private static final int AUTHOR_COUNT = 20;
+    private static final int WORDS_PER_MESSAGE = 8;
+    private static final int VOCABULARY_SIZE = 5000;
+    private static final int MESSAGES_PER_COMMIT = 100;
+    private static final int PAGE_SIZE = 20;
+
+    private File mFile;
+
+    public MessageSearchIndexTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mFile = new File(getContext().getCacheDir(), "messageSearchIndexTest.db");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+
+        super.tearDown();
+    }
+
+    private static void add(
+            KeyValueStore store,
+            MessageHistory history,
+            MessageSearchIndex index,
+            String authorKey,
+            List<Data.Message> messages) throws Exception {
+        KeyValueStore.Batch batch = new KeyValueStore.Batch();
+        MessageHistory.Update historyUpdate = history.newUpdate();
+        history.append(batch, historyUpdate, authorKey, messages);
+        MessageSearchIndex.Update indexUpdate = index.newUpdate();
+        index.add(batch, indexUpdate, authorKey, messages);
+        store.commit(batch);
+        history.apply(historyUpdate);
+        index.apply(indexUpdate);
+    }
+
+    public void testSearch() throws Exception {
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.NONE);
+        MessageHistory history = new MessageHistory(store);
+        MessageSearchIndex index = new MessageSearchIndex(store);
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        messages.add(new Data.Message(new Date(1000), "Hello World", new ArrayList<Data.Resource>()));
+        messages.add(new Data.Message(new Date(2000), "hello there", new ArrayList<Data.Resource>()));
+        messages.add(new Data.Message(new Date(3000), "goodbye, world!", new ArrayList<Data.Resource>()));
+        add(store, history, index, "author", messages);
+
+        List<MessageSearchIndex.Posting> postings = index.search("hel", null, 10);
+        assertEquals(2, postings.size());
+        assertEquals(2000, postings.get(0).mTimestamp.getTime());
+        assertEquals(1000, postings.get(1).mTimestamp.getTime());
+        assertEquals(1, index.search("hello WOR", null, 10).size());
+        assertEquals(0, index.search("planet", null, 10).size());
+        postings = index.search("world", postings.get(0), 10);
+        assertEquals(1, postings.size());
+        assertEquals(1000, postings.get(0).mTimestamp.getTime());
+        assertTrue(MessageSearchIndex.matches("wor", "goodbye, world!"));
+        store.close();
+
+        // The index is persisted
+        store = KeyValueStore.open(mFile, KeyValueStore.Durability.NONE);
+        index = new MessageSearchIndex(store);
+        assertEquals(2, index.search("world", null, 10).size());
+        store.close();
+    }
+
+    public void testOutOfOrderBlocks() throws Exception {
+        // Postings are added out of recency order, so the newest results are spread across blocks;
+        // paged results must match a full scan
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.NONE);
+        MessageHistory history = new MessageHistory(store);
+        MessageSearchIndex index = new MessageSearchIndex(store);
+        Random random = new Random(0);
+        String[] words = {"alpha", "beta", "gamma", "delta"};
+        List<Data.Message> allMessages = new ArrayList<Data.Message>();
+        for (int i = 0; i < 2000; i += MESSAGES_PER_COMMIT) {
+            List<Data.Message> messages = new ArrayList<Data.Message>();
+            for (int j = 0; j < MESSAGES_PER_COMMIT; j++) {
+                String content = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+                // Distinct timestamps, in random order
+                long timestamp = (random.nextInt(1000000)*2000L) + i + j;
+                messages.add(new Data.Message(new Date(timestamp), content, new ArrayList<Data.Resource>()));
+            }
+            add(store, history, index, "author", messages);
+            allMessages.addAll(messages);
+        }
+
+        for (String query : new String[] {"alpha", "al", "alpha gam", "beta delta"}) {
+            List<Long> expected = new ArrayList<Long>();
+            for (Data.Message message : allMessages) {
+                if (MessageSearchIndex.matches(query, message.mContent)) {
+                    expected.add(message.mTimestamp.getTime());
+                }
+            }
+            Collections.sort(expected, Collections.reverseOrder());
+            List<Long> actual = new ArrayList<Long>();
+            MessageSearchIndex.Posting cursor = null;
+            while (true) {
+                List<MessageSearchIndex.Posting> page = index.search(query, cursor, PAGE_SIZE);
+                if (page.isEmpty()) {
+                    break;
+                }
+                assertTrue(page.size() <= PAGE_SIZE);
+                for (MessageSearchIndex.Posting posting : page) {
+                    actual.add(posting.mTimestamp.getTime());
+                }
+                cursor = page.get(page.size() - 1);
+            }
+            assertEquals(expected, actual);
+        }
+        store.close();
+    }
+
+    public void testAuthorOrdinalBound() throws Exception {
+        // Authors past MAXIMUM_AUTHOR_COUNT aren't indexed, and don't affect other authors' postings
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.NONE);
+        MessageSearchIndex index = new MessageSearchIndex(store);
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        // No terms, so only the author is added
+        messages.add(new Data.Message(new Date(1000), "!", new ArrayList<Data.Resource>()));
+        int authorCount = 0;
+        while (authorCount < MessageSearchIndex.MAXIMUM_AUTHOR_COUNT) {
+            KeyValueStore.Batch batch = new KeyValueStore.Batch();
+            MessageSearchIndex.Update update = index.newUpdate();
+            for (int i = 0; i < 1024 && authorCount < MessageSearchIndex.MAXIMUM_AUTHOR_COUNT; i++) {
+                index.add(batch, update, "author" + Integer.toString(authorCount), messages);
+                authorCount++;
+            }
+            store.commit(batch);
+            index.apply(update);
+        }
+        messages.set(0, new Data.Message(new Date(2000), "hello", new ArrayList<Data.Resource>()));
+        KeyValueStore.Batch batch = new KeyValueStore.Batch();
+        MessageSearchIndex.Update update = index.newUpdate();
+        index.add(batch, update, "author" + Integer.toString(MessageSearchIndex.MAXIMUM_AUTHOR_COUNT - 1), messages);
+        index.add(batch, update, "overflow", messages);
+        store.commit(batch);
+        index.apply(update);
+
+        for (MessageSearchIndex searchIndex : new MessageSearchIndex[] {index, new MessageSearchIndex(store)}) {
+            List<MessageSearchIndex.Posting> postings = searchIndex.search("hello", null, 10);
+            assertEquals(1, postings.size());
+            assertEquals("author" + Integer.toString(MessageSearchIndex.MAXIMUM_AUTHOR_COUNT - 1), postings.get(0).mAuthorKey);
+            assertEquals(2000, postings.get(0).mTimestamp.getTime());
+        }
+        store.close();
+    }
+
+    public void testSearchBenchmark() throws Exception {
+        KeyValueStore store = KeyValueStore.open(mFile, KeyValueStore.Durability.NONE);
+        MessageHistory history = new MessageHistory(store);
+        MessageSearchIndex index = new MessageSearchIndex(store);
+        Random random = new Random(0);
+        List<String> vocabulary = new ArrayList<String>();
+        String letters = "abcdefghijklmnopqrstuvwxyz";
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                word.append(letters.charAt(random.nextInt(letters.length())));
+            }
+            vocabulary.add(word.toString());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGE_COUNT; i += MESSAGES_PER_COMMIT) {
+            String authorKey = "author" + Integer.toString((i/MESSAGES_PER_COMMIT) % AUTHOR_COUNT);
+            List<Data.Message> messages = new ArrayList<Data.Message>();
+            for (int j = i; j < i + MESSAGES_PER_COMMIT; j++) {
+                StringBuilder content = new StringBuilder();
+                for (int k = 0; k < WORDS_PER_MESSAGE; k++) {
+                    content.append(vocabulary.get(random.nextInt(VOCABULARY_SIZE))).append(' ');
+                }
+                // A minute apart
+                messages.add(new Data.Message(new Date(j*60000L), content.toString(), new ArrayList<Data.Resource>()));
+            }
+            add(store, history, index, authorKey, messages);
+            if (store.needsCompaction()) {
+                store.compact();
+            }
+        }
+        long indexMilliseconds = (System.nanoTime() - start)/1000000;
+        Log.i(this.getName(), String.format(
+                "indexed %d messages in %d ms; index %d bytes; store %d bytes",
+                MESSAGE_COUNT,
+                indexMilliseconds,
+                index.getIndexSize(),
+                store.getFileSize()));
+
+        String[] queries = {vocabulary.get(0), vocabulary.get(1).substring(0, 2), vocabulary.get(2) + " " + vocabulary.get(3).substring(0, 1)};
+        for (String query : queries) {
+            start = System.nanoTime();
+            List<MessageSearchIndex.Posting> page = index.search(query, null, PAGE_SIZE);
+            long queryMicroseconds = (System.nanoTime() - start)/1000;
+            Log.i(this.getName(), String.format("query \"%s\": first page of %d in %d us", query, page.size(), queryMicroseconds));
+
+            // Pages are in recency order, without repeats
+            Set<Long> seen = new HashSet<Long>();
+            MessageSearchIndex.Posting cursor = null;
+            long previous = Long.MAX_VALUE;
+            for (int i = 0; i < 3 && !page.isEmpty(); i++) {
+                for (MessageSearchIndex.Posting posting : page) {
+                    assertTrue(posting.mTimestamp.getTime() <= previous);
+                    previous = posting.mTimestamp.getTime();
+                    assertTrue(seen.add(previous));
+                    List<Data.Message> messages = history.getMessages(
+                            posting.mAuthorKey, posting.mTimestamp, new Date(previous + 1), 1);
+                    assertEquals(1, messages.size());
+                    assertTrue(MessageSearchIndex.matches(query, messages.get(0).mContent));
+                }
+                cursor = page.get(page.size() - 1);
+                page = index.search(query, cursor, PAGE_SIZE);
+            }
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,94 @@
+package ca.psiphon.ploggy.test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.Identity;
+import ca.psiphon.ploggy.MessageTimeline;
+
+public class MessageTimelineTest extends AndroidTestCase {
+
+    public MessageTimelineTest() {
+        super();
+    }
+
+    private static Data.AnnotatedMessage makeMessage(String nickname, long time) {
+        return new Data.AnnotatedMessage(
+                new Identity.PublicIdentity(nickname, "", "", "", ""),
+                nickname,
+                new Data.Message(new Date(time), Long.toString(time), new ArrayList<Data.Resource>()));
+    }
+
+    private static void assertDescendingOrder(List<Data.AnnotatedMessage> messages) {
+        for (int i = 1; i < messages.size(); i++) {
+            assertFalse(messages.get(i).mMessage.mTimestamp.after(messages.get(i - 1).mMessage.mTimestamp));
+        }
+    }
+
+    public void testMergeInsertAndRemove() {
+        MessageTimeline timeline = new MessageTimeline(new Data.AnnotatedMessageComparator());
+
+        List<Data.AnnotatedMessage> aliceMessages = new ArrayList<Data.AnnotatedMessage>();
+        for (long time = 1; time <= 9; time += 2) {
+            aliceMessages.add(makeMessage("alice", time));
+        }
+        timeline.putRun("alice", aliceMessages);
+        for (long time = 2; time <= 10; time += 2) {
+            timeline.insert("bob", makeMessage("bob", time));
+        }
+        List<Data.AnnotatedMessage> messages = timeline.getMessages();
+        assertEquals(10, messages.size());
+        assertDescendingOrder(messages);
+
+        // Unchanged timeline is returned without merging again
+        long version = timeline.getVersion();
+        assertSame(messages, timeline.getMessages());
+
+        // Newest and out-of-order inserts
+        timeline.insert("alice", makeMessage("alice", 11));
+        timeline.insert("alice", makeMessage("alice", 4));
+        assertTrue(timeline.getVersion() > version);
+        messages = timeline.getMessages();
+        assertEquals(12, messages.size());
+        assertDescendingOrder(messages);
+        assertEquals("alice", messages.get(0).mFriendId);
+
+        timeline.removeRun("alice");
+        messages = timeline.getMessages();
+        assertEquals(5, messages.size());
+        for (Data.AnnotatedMessage message : messages) {
+            assertEquals("bob", message.mFriendId);
+        }
+    }
+
+    public void testPaging() {
+        MessageTimeline timeline = new MessageTimeline(new Data.AnnotatedMessageComparator());
+        for (long time = 1; time <= 100; time++) {
+            // Several authors, with timestamp ties across authors
+            timeline.insert("friend" + Long.toString(time % 7), makeMessage("friend" + Long.toString(time % 7), time / 3));
+        }
+        List<Data.AnnotatedMessage> allMessages = timeline.getMessages();
+        assertEquals(100, timeline.getCount());
+
+        // Page forward through the whole timeline with cursors
+        List<Data.AnnotatedMessage> pagedMessages = new ArrayList<Data.AnnotatedMessage>();
+        Data.AnnotatedMessage cursor = null;
+        while (true) {
+            assertEquals(pagedMessages.size(), timeline.countThrough(cursor));
+            List<Data.AnnotatedMessage> page = timeline.getMessagesBefore(cursor, 15);
+            if (page.isEmpty()) {
+                break;
+            }
+            pagedMessages.addAll(page);
+            cursor = page.get(page.size() - 1);
+        }
+        assertEquals(allMessages, pagedMessages);
+
+        // Page back from the middle
+        List<Data.AnnotatedMessage> newerMessages = timeline.getMessagesAfter(allMessages.get(50), 10);
+        assertEquals(allMessages.subList(40, 50), newerMessages);
+    }
+}
@@ -0,0 +1,124 @@
+package ca.psiphon.ploggy.test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.PushCoalescer;
+
+public class PushCoalescerTest extends AndroidTestCase {
+
+    private static final long DELAY_IN_MILLISECONDS = 5000;
+    private static final long MAXIMUM_DELAY_IN_MILLISECONDS = 30000;
+    private static final int DISTANCE_IN_METERS = 100;
+
+    private long mTime;
+    private PushCoalescer mCoalescer;
+
+    public PushCoalescerTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mTime = 1000000;
+        mCoalescer = new PushCoalescer(
+            new PushCoalescer.Clock() {
+                @Override
+                public long getTimeInMilliseconds() {
+                    return mTime;
+                }
+            });
+        mCoalescer.setPolicy(DELAY_IN_MILLISECONDS, MAXIMUM_DELAY_IN_MILLISECONDS, DISTANCE_IN_METERS);
+    }
+
+    private static List<Data.Message> makeMessages(int messageCount) {
+        // A new list each time, as Data builds for each status
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (int i = messageCount; i > 0; i--) {
+            messages.add(new Data.Message(new Date(i*1000L), "message " + Integer.toString(i), new ArrayList<Data.Resource>()));
+        }
+        return messages;
+    }
+
+    private static Data.Status makeStatus(int messageCount, double latitude) {
+        return new Data.Status(makeMessages(messageCount), new Data.Location(new Date(), latitude, -79.3832, 10, "street"));
+    }
+
+    public void testDebounce() throws Exception {
+        // Each change restarts the delay
+        assertEquals(DELAY_IN_MILLISECONDS, mCoalescer.onStatusChanged(makeStatus(1, 43.6532)));
+        mTime += 1000;
+        assertEquals(DELAY_IN_MILLISECONDS, mCoalescer.onStatusChanged(makeStatus(2, 43.6532)));
+        mTime += DELAY_IN_MILLISECONDS;
+        mCoalescer.onPushed(makeStatus(2, 43.6532));
+
+        // After the push, the next change starts a new delay
+        mTime += 60000;
+        assertEquals(DELAY_IN_MILLISECONDS, mCoalescer.onStatusChanged(makeStatus(3, 43.6532)));
+
+        // A cancelled push is rescheduled by the next change
+        mCoalescer.cancel();
+        mTime += 60000;
+        assertEquals(DELAY_IN_MILLISECONDS, mCoalescer.onStatusChanged(makeStatus(4, 43.6532)));
+    }
+
+    public void testMaximumDelay() throws Exception {
+        // Changes more frequent than the delay are pushed no later than the maximum delay after the first
+        long firstChangeTime = mTime;
+        int messageCount = 1;
+        long delay = mCoalescer.onStatusChanged(makeStatus(messageCount, 43.6532));
+        while (mTime + delay < firstChangeTime + MAXIMUM_DELAY_IN_MILLISECONDS) {
+            assertEquals(DELAY_IN_MILLISECONDS, delay);
+            mTime += DELAY_IN_MILLISECONDS - 1000;
+            messageCount++;
+            delay = mCoalescer.onStatusChanged(makeStatus(messageCount, 43.6532));
+        }
+        assertEquals(firstChangeTime + MAXIMUM_DELAY_IN_MILLISECONDS, mTime + delay);
+
+        // Past the maximum delay, the push is due immediately
+        mTime = firstChangeTime + MAXIMUM_DELAY_IN_MILLISECONDS + 1000;
+        messageCount++;
+        assertEquals(0, mCoalescer.onStatusChanged(makeStatus(messageCount, 43.6532)));
+    }
+
+    public void testMinorChanges() throws Exception {
+        // Before the first push, every change is pushed
+        assertTrue(mCoalescer.onStatusChanged(makeStatus(2, 43.6532)) != PushCoalescer.NO_PUSH);
+        mCoalescer.onPushed(makeStatus(2, 43.6532));
+
+        // An equal status, with new lists, is unchanged
+        assertEquals(PushCoalescer.NO_PUSH, mCoalescer.onStatusChanged(makeStatus(2, 43.6532)));
+
+        // Moving less than the distance isn't pushed; moving further is. About 11 m per 0.0001 degrees.
+        assertEquals(PushCoalescer.NO_PUSH, mCoalescer.onStatusChanged(makeStatus(2, 43.6532 + 0.0005)));
+        assertTrue(mCoalescer.onStatusChanged(makeStatus(2, 43.6532 + 0.0020)) != PushCoalescer.NO_PUSH);
+
+        // A new message is pushed, even without moving
+        mCoalescer.onPushed(makeStatus(2, 43.6532));
+        assertTrue(mCoalescer.onStatusChanged(makeStatus(3, 43.6532)) != PushCoalescer.NO_PUSH);
+
+        // As is a message changed without changing the count
+        mCoalescer.onPushed(makeStatus(3, 43.6532));
+        List<Data.Message> messages = makeMessages(3);
+        messages.set(0, new Data.Message(messages.get(0).mTimestamp, "edited", new ArrayList<Data.Resource>()));
+        assertTrue(mCoalescer.onStatusChanged(new Data.Status(messages, makeStatus(0, 43.6532).mLocation)) != PushCoalescer.NO_PUSH);
+
+        // Starting or stopping location sharing is pushed
+        mCoalescer.onPushed(makeStatus(3, 43.6532));
+        Data.Location unsharedLocation = new Data.Location(null, 0, 0, 0, null);
+        assertTrue(mCoalescer.onStatusChanged(new Data.Status(makeMessages(3), unsharedLocation)) != PushCoalescer.NO_PUSH);
+        mCoalescer.onPushed(new Data.Status(makeMessages(3), unsharedLocation));
+        assertEquals(PushCoalescer.NO_PUSH, mCoalescer.onStatusChanged(new Data.Status(makeMessages(3), unsharedLocation)));
+        assertTrue(mCoalescer.onStatusChanged(makeStatus(3, 43.6532)) != PushCoalescer.NO_PUSH);
+
+        // Once the last push is forgotten, the next change is pushed
+        mCoalescer.onPushed(makeStatus(3, 43.6532));
+        mCoalescer.resetLastPushedStatus();
+        assertTrue(mCoalescer.onStatusChanged(makeStatus(3, 43.6532)) != PushCoalescer.NO_PUSH);
+    }
+}
@@ -0,0 +1,58 @@
+package ca.psiphon.ploggy.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import android.test.AndroidTestCase;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.Json;
+import ca.psiphon.ploggy.Protocol;
+import ca.psiphon.ploggy.StatusDeltaPayloadCache;
+
+public class StatusDeltaPayloadCacheTest extends AndroidTestCase {
+
+    public StatusDeltaPayloadCacheTest() {
+        super();
+    }
+
+    private static Data.StatusDelta makeStatusDelta(long baseVersion, long version) {
+        return new Data.StatusDelta(
+                baseVersion,
+                version,
+                Arrays.asList(new Data.Message(new Date(version), "message é", new ArrayList<Data.Resource>())),
+                new Data.Location(new Date(), 43.6532, -79.3832, 10, "street"));
+    }
+
+    public void testCache() throws Exception {
+        StatusDeltaPayloadCache cache = new StatusDeltaPayloadCache();
+
+        // The payload is the UTF-8 JSON encoding of the delta
+        Data.StatusDelta fullDelta = makeStatusDelta(Protocol.NO_STATUS_VERSION, 2);
+        StatusDeltaPayloadCache.Payload fullPayload = cache.get(fullDelta);
+        assertEquals(2, fullPayload.mVersion);
+        assertEquals(Json.toJson(fullDelta), new String(fullPayload.mBody, "UTF-8"));
+        assertEquals(1, cache.getMissCount());
+
+        // Each delta for the current version is encoded once, and then shared
+        assertSame(fullPayload, cache.get(makeStatusDelta(Protocol.NO_STATUS_VERSION, 2)));
+        StatusDeltaPayloadCache.Payload payload = cache.get(makeStatusDelta(1, 2));
+        assertSame(payload, cache.get(makeStatusDelta(1, 2)));
+        assertNotSame(fullPayload, payload);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+
+        // A newer version replaces the payloads; an older one isn't cached
+        cache.get(makeStatusDelta(2, 3));
+        assertEquals(1, cache.size());
+        cache.get(makeStatusDelta(1, 2));
+        assertEquals(1, cache.size());
+        assertNotSame(payload, cache.get(makeStatusDelta(1, 2)));
+
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        cache.get(makeStatusDelta(2, 3));
+        assertEquals(1, cache.size());
+    }
+}
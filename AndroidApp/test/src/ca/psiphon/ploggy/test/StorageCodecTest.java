@@ -0,0 +1,143 @@
+package ca.psiphon.ploggy.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import ca.psiphon.ploggy.Data;
+import ca.psiphon.ploggy.Identity;
+import ca.psiphon.ploggy.StorageCodec;
+
+public class StorageCodecTest extends AndroidTestCase {
+
+    private static final int STATUS_COUNT = 100;
+    private static final int MESSAGES_PER_STATUS = 50;
+    private static final int FRIEND_COUNT = 100;
+
+    public StorageCodecTest() {
+        super();
+    }
+
+    private static Data.Status makeStatus(int messageCount) {
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (int i = messageCount; i > 0; i--) {
+            List<Data.Resource> attachments = new ArrayList<Data.Resource>();
+            if (i % 10 == 0) {
+                attachments.add(new Data.Resource("resource-" + Integer.toString(i), "image/jpeg", 100000 + i));
+            }
+            // Whole seconds, as the JSON date format doesn't retain milliseconds
+            messages.add(new Data.Message(new Date(1380000000000L + i*1000L), "message \u00e9 " + Integer.toString(i), attachments));
+        }
+        return new Data.Status(messages, new Data.Location(new Date(1380000000000L), 43.6532, -79.3832, 10, "Toronto"));
+    }
+
+    private static List<Data.Friend> makeFriends(int count) throws Exception {
+        List<Data.Friend> friends = new ArrayList<Data.Friend>();
+        for (int i = 0; i < count; i++) {
+            String nickname = "friend" + Integer.toString(i);
+            friends.add(
+                new Data.Friend(
+                    new Identity.PublicIdentity(nickname, "certificate-" + nickname, nickname + ".onion", "cookie", "signature"),
+                    new Date(1380000000000L),
+                    new Date(1380000001000L),
+                    null,
+                    null));
+        }
+        return friends;
+    }
+
+    private static <T> byte[] encode(StorageCodec<T> codec, T value) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        codec.encode(value, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static <T> T decode(StorageCodec<T> codec, byte[] bytes) throws Exception {
+        return codec.decode(new ByteArrayInputStream(bytes));
+    }
+
+    public void testRoundTrip() throws Exception {
+        Data.Status status = makeStatus(MESSAGES_PER_STATUS);
+        byte[] bytes = encode(StorageCodec.BINARY_STATUS, status);
+        assertTrue(Arrays.equals(bytes, encode(StorageCodec.BINARY_STATUS, decode(StorageCodec.BINARY_STATUS, bytes))));
+
+        Data.Friend friend = makeFriends(1).get(0);
+        bytes = encode(StorageCodec.BINARY_FRIEND, friend);
+        Data.Friend decodedFriend = decode(StorageCodec.BINARY_FRIEND, bytes);
+        assertEquals(friend.mId, decodedFriend.mId);
+        assertTrue(Arrays.equals(bytes, encode(StorageCodec.BINARY_FRIEND, decodedFriend)));
+
+        // A migrated JSON status encodes identically to the original
+        byte[] jsonBytes = encode(StorageCodec.json(Data.Status.class), status);
+        assertTrue(Arrays.equals(
+                encode(StorageCodec.BINARY_STATUS, status),
+                encode(StorageCodec.BINARY_STATUS, decode(StorageCodec.json(Data.Status.class), jsonBytes))));
+
+        Data.Download download = new Data.Download("friend", "resource", "image/jpeg", 12345, Data.Download.State.COMPLETE);
+        bytes = encode(StorageCodec.BINARY_DOWNLOAD, download);
+        assertEquals(Data.Download.State.COMPLETE, decode(StorageCodec.BINARY_DOWNLOAD, bytes).mState);
+    }
+
+    public void testLoadBenchmark() throws Exception {
+        // Compares the size and decode time of friend status files, the bulk of the data loaded
+        // on startup, in the JSON and binary encodings
+        StorageCodec<Data.Status> jsonCodec = StorageCodec.json(Data.Status.class);
+        List<byte[]> jsonFiles = new ArrayList<byte[]>();
+        List<byte[]> binaryFiles = new ArrayList<byte[]>();
+        long jsonSize = 0;
+        long binarySize = 0;
+        for (int i = 0; i < STATUS_COUNT; i++) {
+            Data.Status status = makeStatus(MESSAGES_PER_STATUS);
+            byte[] jsonBytes = encode(jsonCodec, status);
+            byte[] binaryBytes = encode(StorageCodec.BINARY_STATUS, status);
+            jsonFiles.add(jsonBytes);
+            binaryFiles.add(binaryBytes);
+            jsonSize += jsonBytes.length;
+            binarySize += binaryBytes.length;
+        }
+        // Friends are one legacy JSON file, but one store value each
+        List<Data.Friend> friends = makeFriends(FRIEND_COUNT);
+        byte[] jsonFriends = encode(StorageCodec.jsonList(Data.Friend[].class), friends);
+        List<byte[]> binaryFriends = new ArrayList<byte[]>();
+        long binaryFriendsSize = 0;
+        for (Data.Friend friend : friends) {
+            byte[] binaryBytes = encode(StorageCodec.BINARY_FRIEND, friend);
+            binaryFriends.add(binaryBytes);
+            binaryFriendsSize += binaryBytes.length;
+        }
+
+        long start = System.nanoTime();
+        for (byte[] bytes : jsonFiles) {
+            decode(jsonCodec, bytes);
+        }
+        decode(StorageCodec.jsonList(Data.Friend[].class), jsonFriends);
+        long jsonNanoseconds = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (byte[] bytes : binaryFiles) {
+            decode(StorageCodec.BINARY_STATUS, bytes);
+        }
+        for (byte[] bytes : binaryFriends) {
+            decode(StorageCodec.BINARY_FRIEND, bytes);
+        }
+        long binaryNanoseconds = System.nanoTime() - start;
+
+        Log.i(this.getName(), String.format(
+                "%d statuses x %d messages, %d friends: JSON %d bytes, %d ms; binary %d bytes, %d ms",
+                STATUS_COUNT,
+                MESSAGES_PER_STATUS,
+                FRIEND_COUNT,
+                jsonSize + jsonFriends.length,
+                jsonNanoseconds/1000000,
+                binarySize + binaryFriendsSize,
+                binaryNanoseconds/1000000));
+
+        assertTrue(binarySize < jsonSize);
+        assertTrue(binaryFriendsSize < jsonFriends.length);
+    }
+}